@@ -24,16 +24,25 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.jununmp3.player.adapter.MusicAdapter;
 import com.jununmp3.player.model.Music;
 import com.jununmp3.player.service.MusicService;
-import com.jununmp3.player.utils.MusicLibrary;
+import com.jununmp3.player.service.ProgressClock;
+import com.jununmp3.player.utils.AlbumArtLoader;
+import com.jununmp3.player.utils.LibraryQueryExecutor;
+import com.jununmp3.player.utils.LibrarySync;
+import com.jununmp3.player.utils.PlaylistManager;
+import com.jununmp3.player.utils.TrackStore;
 
 import java.util.ArrayList;
 import java.util.List;
 
 public class MainActivity extends AppCompatActivity implements MusicAdapter.OnMusicClickListener {
+    
+    // The bar moves in small steps, the time text only changes once a second
+    private static final long SEEK_BAR_INTERVAL_MS = 250;
+    private static final long TIME_TEXT_INTERVAL_MS = 1000;
 
     private RecyclerView recyclerViewMusic;
     private MusicAdapter musicAdapter;
-    private List<Music> musicList = new ArrayList<>();
+    private TrackStore tracks = TrackStore.EMPTY;
     
     // Player UI components
     private ImageView imageAlbumArt;
@@ -44,7 +53,10 @@ public class MainActivity extends AppCompatActivity implements MusicAdapter.OnMu
     // Service
     private MusicService musicService;
     private boolean serviceBound = false;
-    
+    private final ProgressClock.Listener seekBarUpdater = (position, duration) -> seekBar.setProgress(position);
+    private final ProgressClock.Listener timeUpdater =
+            (position, duration) -> textCurrentTime.setText(formatTime(position));
+
     // Permission launcher
     private ActivityResultLauncher<String[]> permissionLauncher;
     
@@ -54,7 +66,9 @@ public class MainActivity extends AppCompatActivity implements MusicAdapter.OnMu
             MusicService.MusicBinder binder = (MusicService.MusicBinder) service;
             musicService = binder.getService();
             serviceBound = true;
+            musicService.setPlaybackStateListener(MainActivity.this::updateUI);
             updateUI();
+            startProgressUpdates();
         }
         
         @Override
@@ -91,7 +105,7 @@ public class MainActivity extends AppCompatActivity implements MusicAdapter.OnMu
     }
 
     private void setupRecyclerView() {
-        musicAdapter = new MusicAdapter(musicList, this);
+        musicAdapter = new MusicAdapter(tracks.asList(), this);
         recyclerViewMusic.setLayoutManager(new LinearLayoutManager(this));
         recyclerViewMusic.setAdapter(musicAdapter);
     }
@@ -203,9 +217,16 @@ public class MainActivity extends AppCompatActivity implements MusicAdapter.OnMu
     }
 
     private void loadMusicLibrary() {
-        musicList.clear();
-        musicList.addAll(MusicLibrary.getAllMusic(this));
-        musicAdapter.notifyDataSetChanged();
+        LibrarySync librarySync = LibrarySync.getInstance(this);
+        
+        // Paint the persisted index right away, then reconcile with MediaStore
+        showMusic(librarySync.getSnapshot());
+        LibraryQueryExecutor.getInstance().syncLibrary(this, this::showMusic);
+    }
+    
+    private void showMusic(TrackStore store) {
+        tracks = store;
+        musicAdapter.updateMusicList(store.asList());
     }
 
     private void startMusicService() {
@@ -217,7 +238,9 @@ public class MainActivity extends AppCompatActivity implements MusicAdapter.OnMu
     @Override
     public void onMusicClick(Music music, int position) {
         if (serviceBound && musicService != null) {
-            musicService.setPlaylist(musicList, position);
+            // The adapter may still show the previous snapshot while a diff is running
+            int index = tracks.indexOf(music.getId());
+            musicService.setPlaylist(tracks.asList(), index >= 0 ? index : position);
             musicService.playMusic();
             updateUI();
         }
@@ -231,9 +254,7 @@ public class MainActivity extends AppCompatActivity implements MusicAdapter.OnMu
                 textArtist.setText(currentMusic.getArtist());
                 seekBar.setMax((int) currentMusic.getDuration());
                 textTotalTime.setText(formatTime(currentMusic.getDuration()));
-                
-                // Load album art if available
-                // imageAlbumArt can be updated with Glide or similar library
+                AlbumArtLoader.load(imageAlbumArt, currentMusic.getAlbumId());
             }
             
             updatePlayPauseButton();
@@ -278,10 +299,43 @@ public class MainActivity extends AppCompatActivity implements MusicAdapter.OnMu
         return String.format("%d:%02d", minutes, seconds);
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        startProgressUpdates();
+    }
+    
+    private void startProgressUpdates() {
+        if (serviceBound && musicService != null) {
+            musicService.addProgressListener(seekBarUpdater, SEEK_BAR_INTERVAL_MS);
+            musicService.addProgressListener(timeUpdater, TIME_TEXT_INTERVAL_MS);
+        }
+    }
+    
+    private void stopProgressUpdates() {
+        if (serviceBound && musicService != null) {
+            musicService.removeProgressListener(seekBarUpdater);
+            musicService.removeProgressListener(timeUpdater);
+        }
+    }
+    
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Nothing to draw progress on until the activity is visible again
+        stopProgressUpdates();
+        // The process may be killed any time after this, write pending playlist edits
+        // now rather than after the writer's delay; MusicService flushes on destroy
+        PlaylistManager.flushPendingWritesInBackground();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        LibraryQueryExecutor.getInstance().cancel(LibraryQueryExecutor.CHANNEL_LIBRARY);
         if (serviceBound) {
+            musicService.setPlaybackStateListener(null);
+            stopProgressUpdates();
             unbindService(serviceConnection);
             serviceBound = false;
         }
@@ -7,17 +7,38 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.jununmp3.player.R;
 import com.jununmp3.player.model.Music;
+import com.jununmp3.player.utils.AlbumArtLoader;
 
 import java.util.List;
 
 public class MusicAdapter extends RecyclerView.Adapter<MusicAdapter.MusicViewHolder> {
     
-    private List<Music> musicList;
+    // Rows are the same track when id and path match; any visible field change rebinds it
+    private static final DiffUtil.ItemCallback<Music> DIFF_CALLBACK = new DiffUtil.ItemCallback<Music>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Music oldItem, @NonNull Music newItem) {
+            return oldItem.getId() == newItem.getId() && oldItem.getPath().equals(newItem.getPath());
+        }
+        
+        @Override
+        public boolean areContentsTheSame(@NonNull Music oldItem, @NonNull Music newItem) {
+            return oldItem.getTitle().equals(newItem.getTitle())
+                    && oldItem.getArtist().equals(newItem.getArtist())
+                    && oldItem.getAlbumId() == newItem.getAlbumId()
+                    && oldItem.getDuration() == newItem.getDuration();
+        }
+    };
+    
+    private final AsyncListDiffer<Music> differ;
     private OnMusicClickListener listener;
+    private long selectedId = -1;
+    // Row of selectedId when it was selected; the list may have changed since
     private int selectedPosition = -1;
     
     public interface OnMusicClickListener {
@@ -25,10 +46,12 @@ public class MusicAdapter extends RecyclerView.Adapter<MusicAdapter.MusicViewHol
     }
     
     public MusicAdapter(List<Music> musicList, OnMusicClickListener listener) {
-        this.musicList = musicList;
         this.listener = listener;
+        setHasStableIds(true);
+        differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+        differ.submitList(musicList);
     }
-    
+
     @NonNull
     @Override
     public MusicViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -39,31 +62,68 @@ public class MusicAdapter extends RecyclerView.Adapter<MusicAdapter.MusicViewHol
     
     @Override
     public void onBindViewHolder(@NonNull MusicViewHolder holder, int position) {
-        Music music = musicList.get(position);
-        holder.bind(music, position);
+        holder.bind(differ.getCurrentList().get(position));
     }
     
     @Override
-    public int getItemCount() {
-        return musicList.size();
+    public long getItemId(int position) {
+        return differ.getCurrentList().get(position).getId();
+    }
+    
+    @Override
+    public void onViewRecycled(@NonNull MusicViewHolder holder) {
+        super.onViewRecycled(holder);
+        // Stop loading art for a row that has scrolled away
+        AlbumArtLoader.clear(holder.imageAlbumArt);
     }
     
+    @Override
+    public int getItemCount() {
+        return differ.getCurrentList().size();
+    }
+
     public void setSelectedPosition(int position) {
-        int previousPosition = selectedPosition;
+        List<Music> musicList = differ.getCurrentList();
+        int previousPosition = findSelectedPosition();
+        selectedId = position != -1 ? musicList.get(position).getId() : -1;
         selectedPosition = position;
         
         if (previousPosition != -1) {
             notifyItemChanged(previousPosition);
         }
-        if (selectedPosition != -1) {
-            notifyItemChanged(selectedPosition);
+        if (position != -1) {
+            notifyItemChanged(position);
         }
     }
     
+    /**
+     * Diffs {@code newMusicList} against the current rows on a background thread and
+     * dispatches only the inserts, removals, moves and changes. The list is never
+     * modified, so read-only library views can be passed directly.
+     */
     public void updateMusicList(List<Music> newMusicList) {
-        this.musicList.clear();
-        this.musicList.addAll(newMusicList);
-        notifyDataSetChanged();
+        differ.submitList(newMusicList);
+    }
+    
+    /**
+     * Current row of the selected track. Checks the remembered row first, so only a
+     * list update that moved the track costs a scan.
+     */
+    private int findSelectedPosition() {
+        if (selectedId == -1) {
+            return -1;
+        }
+        List<Music> musicList = differ.getCurrentList();
+        if (selectedPosition >= 0 && selectedPosition < musicList.size()
+                && musicList.get(selectedPosition).getId() == selectedId) {
+            return selectedPosition;
+        }
+        for (int i = 0; i < musicList.size(); i++) {
+            if (musicList.get(i).getId() == selectedId) {
+                return i;
+            }
+        }
+        return -1;
     }
     
     public class MusicViewHolder extends RecyclerView.ViewHolder {
@@ -85,7 +145,7 @@ public class MusicAdapter extends RecyclerView.Adapter<MusicAdapter.MusicViewHol
             itemView.setOnClickListener(v -> {
                 int position = getAdapterPosition();
                 if (position != RecyclerView.NO_POSITION && listener != null) {
-                    listener.onMusicClick(musicList.get(position), position);
+                    listener.onMusicClick(differ.getCurrentList().get(position), position);
                     setSelectedPosition(position);
                 }
             });
@@ -95,17 +155,15 @@ public class MusicAdapter extends RecyclerView.Adapter<MusicAdapter.MusicViewHol
             });
         }
         
-        public void bind(Music music, int position) {
+        public void bind(Music music) {
             textSongTitle.setText(music.getTitle());
             textArtist.setText(music.getArtist());
             textDuration.setText(music.getFormattedDuration());
             
-            // Load album art using Glide or similar library
-            // For now, we'll use a placeholder
-            imageAlbumArt.setImageResource(R.drawable.music_placeholder);
+            AlbumArtLoader.load(imageAlbumArt, music.getAlbumId());
             
             // Highlight selected item
-            if (position == selectedPosition) {
+            if (music.getId() == selectedId) {
                 itemView.setBackgroundColor(itemView.getContext().getColor(R.color.selected_item_background));
             } else {
                 itemView.setBackgroundColor(itemView.getContext().getColor(R.color.card_background));
@@ -7,10 +7,13 @@ public class Music implements Serializable {
     private String title;
     private String artist;
     private String album;
+    private long albumId;
     private long duration;
     private String path;
     private String albumArt;
     private long size;
+    // MediaStore TRACK: disc number * 1000 + track number, 0 if unknown
+    private int trackNumber;
     private String displayName;
     
     public Music() {}
@@ -28,27 +31,37 @@ public class Music implements Serializable {
         this.displayName = displayName;
     }
     
+    public Music(long id, String title, String artist, String album, long albumId,
+                 long duration, String path, String albumArt, long size, String displayName) {
+        this(id, title, artist, album, duration, path, albumArt, size, displayName);
+        this.albumId = albumId;
+    }
+    
     // Getters
     public long getId() { return id; }
     public String getTitle() { return title; }
     public String getArtist() { return artist; }
     public String getAlbum() { return album; }
+    public long getAlbumId() { return albumId; }
     public long getDuration() { return duration; }
     public String getPath() { return path; }
     public String getAlbumArt() { return albumArt; }
     public long getSize() { return size; }
     public String getDisplayName() { return displayName; }
+    public int getTrackNumber() { return trackNumber; }
     
     // Setters
     public void setId(long id) { this.id = id; }
     public void setTitle(String title) { this.title = title; }
     public void setArtist(String artist) { this.artist = artist; }
     public void setAlbum(String album) { this.album = album; }
+    public void setAlbumId(long albumId) { this.albumId = albumId; }
     public void setDuration(long duration) { this.duration = duration; }
     public void setPath(String path) { this.path = path; }
     public void setAlbumArt(String albumArt) { this.albumArt = albumArt; }
     public void setSize(long size) { this.size = size; }
     public void setDisplayName(String displayName) { this.displayName = displayName; }
+    public void setTrackNumber(int trackNumber) { this.trackNumber = trackNumber; }
     
     public String getFormattedDuration() {
         long seconds = duration / 1000;
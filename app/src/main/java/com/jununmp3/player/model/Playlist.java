@@ -1,19 +1,59 @@
 package com.jununmp3.player.model;
 
+import com.jununmp3.player.utils.LongIntMap;
+
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class Playlist implements Serializable {
+    
+    /**
+     * Supplies the entries of a playlist that was created without them.
+     */
+    public interface TrackLoader {
+        TrackEntries loadTracks(long playlistId);
+    }
+    
+    /**
+     * Turns track ids into tracks in one batch. Ids that are not in the library are
+     * left out of the result.
+     */
+    public interface TrackResolver {
+        List<Music> resolve(long[] trackIds, int count);
+    }
+    
+    private static final long REMOVED = -1;
+    
     private long id;
     private String name;
     private String description;
-    private List<Music> musicList;
+    // Entries are only MediaStore track ids plus when they were added; the tracks
+    // themselves are looked up in the library when needed
+    private long[] trackIds;
+    private long[] addedAt;
+    private int slotCount;
     private long dateCreated;
     private long dateModified;
+    // Rule text of a smart playlist, whose entries follow the rule; null otherwise
+    private String rule;
+    
+    // Set while the entries have not been read yet; trackIds is null until then
+    private transient TrackLoader trackLoader;
+    private transient int trackCount;
+    private transient TrackResolver trackResolver;
+    
+    // Track id -> slot, built on first use. Removed entries are left as REMOVED slots
+    // and compacted away in bulk, so removal does not shift the arrays. Every method
+    // that touches the entries holds the playlist's monitor, since PlaylistWriter
+    // copies them on its flush thread while the UI and the browse tree read them.
+    private transient LongIntMap positions;
+    private transient int removedCount;
     
     public Playlist() {
-        this.musicList = new ArrayList<>();
+        this.trackIds = new long[0];
+        this.addedAt = new long[0];
         this.dateCreated = System.currentTimeMillis();
         this.dateModified = System.currentTimeMillis();
     }
@@ -22,7 +62,8 @@ public class Playlist implements Serializable {
         this.id = id;
         this.name = name;
         this.description = description;
-        this.musicList = new ArrayList<>();
+        this.trackIds = new long[0];
+        this.addedAt = new long[0];
         this.dateCreated = System.currentTimeMillis();
         this.dateModified = System.currentTimeMillis();
     }
@@ -32,18 +73,99 @@ public class Playlist implements Serializable {
         this.id = id;
         this.name = name;
         this.description = description;
-        this.musicList = musicList != null ? musicList : new ArrayList<>();
+        this.trackIds = new long[0];
+        this.addedAt = new long[0];
+        if (musicList != null) {
+            // The add time of each track is unknown, the playlist's last change is closest
+            long added = dateModified > 0 ? dateModified : System.currentTimeMillis();
+            for (Music music : musicList) {
+                addTrack(music.getId(), added);
+            }
+        }
+        this.dateCreated = dateCreated;
+        this.dateModified = dateModified;
+    }
+    
+    public Playlist(long id, String name, String description, TrackEntries entries,
+                   long dateCreated, long dateModified) {
+        this.id = id;
+        this.name = name;
+        this.description = description;
+        adopt(entries);
+        this.dateCreated = dateCreated;
+        this.dateModified = dateModified;
+    }
+    
+    /**
+     * Creates a playlist whose {@code trackCount} entries are loaded through
+     * {@code trackLoader} the first time they are needed.
+     */
+    public Playlist(long id, String name, String description, int trackCount,
+                   long dateCreated, long dateModified, TrackLoader trackLoader) {
+        this.id = id;
+        this.name = name;
+        this.description = description;
+        this.trackCount = trackCount;
         this.dateCreated = dateCreated;
         this.dateModified = dateModified;
+        this.trackLoader = trackLoader;
     }
     
     // Getters
     public long getId() { return id; }
     public String getName() { return name; }
     public String getDescription() { return description; }
-    public List<Music> getMusicList() { return musicList; }
     public long getDateCreated() { return dateCreated; }
     public long getDateModified() { return dateModified; }
+    public String getRule() { return rule; }
+    
+    public boolean isSmart() {
+        return rule != null;
+    }
+    
+    /**
+     * Resolves the entries against the library, in order. Tracks that are no longer
+     * in the library are skipped. The list is read-only.
+     */
+    public synchronized List<Music> getMusicList() {
+        ensureLoaded();
+        if (trackResolver == null || slotCount == removedCount) {
+            return Collections.emptyList();
+        }
+        // REMOVED slots are not in the library, so the resolver skips them
+        return Collections.unmodifiableList(trackResolver.resolve(trackIds, slotCount));
+    }
+    
+    /**
+     * Returns a copy of the entries.
+     */
+    public synchronized TrackEntries getEntries() {
+        ensureLoaded();
+        int count = slotCount - removedCount;
+        long[] ids = new long[count];
+        long[] added = new long[count];
+        int kept = 0;
+        for (int i = 0; i < slotCount; i++) {
+            if (trackIds[i] != REMOVED) {
+                ids[kept] = trackIds[i];
+                added[kept] = addedAt[i];
+                kept++;
+            }
+        }
+        return new TrackEntries(ids, added, count);
+    }
+    
+    public synchronized long getTrackId(int position) {
+        ensureLoaded();
+        compact();
+        return trackIds[position];
+    }
+    
+    public synchronized long getAddedAt(int position) {
+        ensureLoaded();
+        compact();
+        return addedAt[position];
+    }
     
     // Setters
     public void setId(long id) { this.id = id; }
@@ -55,45 +177,168 @@ public class Playlist implements Serializable {
         this.description = description; 
         updateModifiedDate();
     }
-    public void setMusicList(List<Music> musicList) { 
-        this.musicList = musicList != null ? musicList : new ArrayList<>(); 
+    public synchronized void setMusicList(List<Music> musicList) { 
+        resetEntries();
+        if (musicList != null) {
+            long now = System.currentTimeMillis();
+            for (Music music : musicList) {
+                addTrack(music.getId(), now);
+            }
+        }
         updateModifiedDate();
     }
     public void setDateCreated(long dateCreated) { this.dateCreated = dateCreated; }
     public void setDateModified(long dateModified) { this.dateModified = dateModified; }
+    public void setRule(String rule) { this.rule = rule; }
+
+    public void setTrackResolver(TrackResolver trackResolver) {
+        this.trackResolver = trackResolver;
+    }
+    
+    /**
+     * True once the entries are in memory.
+     */
+    public synchronized boolean isLoaded() {
+        return trackIds != null;
+    }
+    
+    private void ensureLoaded() {
+        if (trackIds == null) {
+            TrackEntries loaded = trackLoader != null ? trackLoader.loadTracks(id) : null;
+            trackLoader = null;
+            adopt(loaded);
+        }
+    }
+    
+    private void adopt(TrackEntries entries) {
+        if (entries != null) {
+            trackIds = entries.trackIds;
+            addedAt = entries.addedAt;
+            slotCount = entries.count;
+        } else {
+            trackIds = new long[0];
+            addedAt = new long[0];
+            slotCount = 0;
+        }
+        positions = null;
+        removedCount = 0;
+    }
+    
+    private void resetEntries() {
+        trackLoader = null;
+        adopt(null);
+    }
+    
+    private void ensureIndexed() {
+        ensureLoaded();
+        if (positions == null) {
+            positions = new LongIntMap(slotCount);
+            for (int i = 0; i < slotCount; i++) {
+                if (trackIds[i] != REMOVED) {
+                    positions.put(trackIds[i], i);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Drops the slots left by removals and renumbers the index.
+     */
+    private void compact() {
+        if (removedCount == 0) {
+            return;
+        }
+        int kept = 0;
+        for (int i = 0; i < slotCount; i++) {
+            if (trackIds[i] != REMOVED) {
+                trackIds[kept] = trackIds[i];
+                addedAt[kept] = addedAt[i];
+                kept++;
+            }
+        }
+        slotCount = kept;
+        removedCount = 0;
+        positions = null;
+    }
     
     // Utility methods
     public void addMusic(Music music) {
-        if (!musicList.contains(music)) {
-            musicList.add(music);
-            updateModifiedDate();
-        }
+        addTrack(music.getId());
     }
     
     public void removeMusic(Music music) {
-        if (musicList.remove(music)) {
-            updateModifiedDate();
+        removeTrack(music.getId());
+    }
+    
+    public boolean containsMusic(Music music) {
+        return containsTrack(music.getId());
+    }
+    
+    public boolean addTrack(long trackId) {
+        return addTrack(trackId, System.currentTimeMillis());
+    }
+    
+    /**
+     * Appends {@code trackId} unless it is already in the playlist. Constant time.
+     */
+    public synchronized boolean addTrack(long trackId, long addedAtMillis) {
+        ensureIndexed();
+        if (positions.containsKey(trackId)) {
+            return false;
         }
+        if (slotCount == trackIds.length) {
+            int capacity = Math.max(8, slotCount * 2);
+            trackIds = Arrays.copyOf(trackIds, capacity);
+            addedAt = Arrays.copyOf(addedAt, capacity);
+        }
+        trackIds[slotCount] = trackId;
+        addedAt[slotCount] = addedAtMillis;
+        positions.put(trackId, slotCount);
+        slotCount++;
+        updateModifiedDate();
+        return true;
     }
     
-    public void removeMusicAt(int position) {
-        if (position >= 0 && position < musicList.size()) {
-            musicList.remove(position);
-            updateModifiedDate();
+    public synchronized boolean removeTrack(long trackId) {
+        ensureIndexed();
+        int position = positions.remove(trackId);
+        if (position == LongIntMap.MISSING) {
+            return false;
         }
+        trackIds[position] = REMOVED;
+        removedCount++;
+        // Compact once most of the slots are empty, keeping removal amortized O(1)
+        if (removedCount > 16 && removedCount * 2 > slotCount) {
+            compact();
+        }
+        updateModifiedDate();
+        return true;
     }
     
-    public boolean containsMusic(Music music) {
-        return musicList.contains(music);
+    public synchronized boolean containsTrack(long trackId) {
+        ensureIndexed();
+        return positions.containsKey(trackId);
+    }
+    
+    public synchronized void removeMusicAt(int position) {
+        ensureLoaded();
+        compact();
+        if (position >= 0 && position < slotCount) {
+            System.arraycopy(trackIds, position + 1, trackIds, position, slotCount - position - 1);
+            System.arraycopy(addedAt, position + 1, addedAt, position, slotCount - position - 1);
+            slotCount--;
+            positions = null;
+            updateModifiedDate();
+        }
     }
     
-    public int getMusicCount() {
-        return musicList.size();
+    public synchronized int getMusicCount() {
+        return trackIds != null ? slotCount - removedCount : trackCount;
     }
     
     public long getTotalDuration() {
         long totalDuration = 0;
-        for (Music music : musicList) {
+        for (Music music : getMusicList()) {
             totalDuration += music.getDuration();
         }
         return totalDuration;
@@ -117,13 +362,14 @@ public class Playlist implements Serializable {
         this.dateModified = System.currentTimeMillis();
     }
     
-    public void clearPlaylist() {
-        musicList.clear();
+    public synchronized void clearPlaylist() {
+        // No need to read entries that are about to be dropped
+        resetEntries();
         updateModifiedDate();
     }
     
     public boolean isEmpty() {
-        return musicList.isEmpty();
+        return getMusicCount() == 0;
     }
     
     @Override
@@ -144,7 +390,25 @@ public class Playlist implements Serializable {
         return "Playlist{" +
                 "name='" + name + '\'' +
                 ", musicCount=" + getMusicCount() +
-                ", duration='" + getFormattedDuration() + '\'' +
                 '}';
     }
+    
+    /**
+     * Ordered track ids of a playlist with the time each was added.
+     */
+    public static final class TrackEntries {
+        private final long[] trackIds;
+        private final long[] addedAt;
+        private final int count;
+        
+        public TrackEntries(long[] trackIds, long[] addedAt, int count) {
+            this.trackIds = trackIds;
+            this.addedAt = addedAt;
+            this.count = count;
+        }
+        
+        public int size() { return count; }
+        public long getTrackId(int index) { return trackIds[index]; }
+        public long getAddedAt(int index) { return addedAt[index]; }
+    }
 }
@@ -0,0 +1,364 @@
+package com.jununmp3.player.service;
+
+import android.content.Context;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.LruCache;
+
+import com.jununmp3.player.model.Music;
+import com.jununmp3.player.model.Playlist;
+import com.jununmp3.player.utils.LibraryGroups;
+import com.jununmp3.player.utils.LibrarySync;
+import com.jununmp3.player.utils.PlaylistManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The library as a browse tree for MediaBrowser clients: Artists, Albums, Playlists
+ * and Songs under the root, tracks under each artist, album and playlist.
+ * <p>
+ * Children are only ever built one page at a time. Clients that page themselves get
+ * exactly the page they ask for; the others get {@link #PAGE_SIZE} items and a "More"
+ * item whose id is a cursor to the next page. Artists and albums come from the
+ * snapshot's {@link LibraryGroups}, and recent pages are cached until the snapshot
+ * changes. Calls are serialized on the tree, so pages can be built on any thread.
+ * <p>
+ * Media ids: {@code root}, {@code artists}, {@code artist:<name>},
+ * {@code playlist:<id>} and so on for nodes; {@code page:<offset>:<node>} for a page
+ * of a node; {@code track:<trackId>:<node>} for a track played within a node.
+ */
+final class BrowseTree {
+    
+    static final String ROOT = "root";
+    
+    private static final String ARTISTS = "artists";
+    private static final String ALBUMS = "albums";
+    private static final String PLAYLISTS = "playlists";
+    private static final String SONGS = "songs";
+    private static final String ARTIST_PREFIX = "artist:";
+    private static final String ALBUM_PREFIX = "album:";
+    private static final String PLAYLIST_PREFIX = "playlist:";
+    private static final String PAGE_PREFIX = "page:";
+    private static final String TRACK_PREFIX = "track:";
+    
+    // Items per page for clients that do not page themselves
+    private static final int PAGE_SIZE = 200;
+    private static final int CACHED_PAGES = 32;
+    
+    /**
+     * Tracks to queue for a played media id, and where in them to start.
+     */
+    static final class Selection {
+        final List<Music> tracks;
+        final int start;
+        
+        Selection(List<Music> tracks, int start) {
+            this.tracks = tracks;
+            this.start = start;
+        }
+    }
+    
+    /**
+     * The children of one node, built on demand.
+     */
+    private abstract static class Node {
+        abstract int size();
+        
+        abstract MediaItem item(int index);
+        
+        // Playlists change without notice, so their pages are not cached
+        boolean isCacheable() {
+            return true;
+        }
+    }
+    
+    private final Context context;
+    private final LruCache<String, List<MediaItem>> pages = new LruCache<>(CACHED_PAGES);
+    // Groupings of the snapshot the cached pages belong to
+    private LibraryGroups groups;
+    
+    BrowseTree(Context context) {
+        this.context = context.getApplicationContext();
+    }
+    
+    /**
+     * Children of {@code parentId}, a node or a page cursor, for a client that does
+     * not page: one page, followed by a "More" item if there are more.
+     */
+    synchronized List<MediaItem> getChildren(String parentId) {
+        int offset = 0;
+        String nodeId = parentId;
+        if (parentId.startsWith(PAGE_PREFIX)) {
+            int end = parentId.indexOf(':', PAGE_PREFIX.length());
+            if (end < 0) {
+                return null;
+            }
+            offset = parseInt(parentId.substring(PAGE_PREFIX.length(), end));
+            nodeId = parentId.substring(end + 1);
+        }
+        
+        String key = parentId + "/-";
+        List<MediaItem> cached = getCached(key);
+        if (cached != null) {
+            return cached;
+        }
+        Node node = getNode(nodeId);
+        if (node == null || offset < 0) {
+            return null;
+        }
+        List<MediaItem> items = slice(node, offset, PAGE_SIZE);
+        if (offset + PAGE_SIZE < node.size()) {
+            int next = offset + PAGE_SIZE;
+            items.add(browsable(PAGE_PREFIX + next + ":" + nodeId, "More",
+                    (next + 1) + "-" + Math.min(node.size(), next + PAGE_SIZE) + " of " + node.size()));
+        }
+        if (node.isCacheable()) {
+            pages.put(key, items);
+        }
+        return items;
+    }
+    
+    /**
+     * Page {@code page} of {@code pageSize} children of {@code parentId}, for a client
+     * that pages itself.
+     */
+    synchronized List<MediaItem> getChildren(String parentId, int page, int pageSize) {
+        String key = parentId + "/" + page + "/" + pageSize;
+        List<MediaItem> cached = getCached(key);
+        if (cached != null) {
+            return cached;
+        }
+        Node node = getNode(parentId);
+        if (node == null || page < 0 || pageSize <= 0) {
+            return null;
+        }
+        List<MediaItem> items = slice(node, page * pageSize, pageSize);
+        if (node.isCacheable()) {
+            pages.put(key, items);
+        }
+        return items;
+    }
+    
+    /**
+     * What to play for the playable {@code mediaId}: every track of the node it was
+     * picked in, starting at it. Null if the id is not a track or the node is gone.
+     */
+    synchronized Selection select(String mediaId) {
+        if (!mediaId.startsWith(TRACK_PREFIX)) {
+            return null;
+        }
+        int end = mediaId.indexOf(':', TRACK_PREFIX.length());
+        if (end < 0) {
+            return null;
+        }
+        long trackId = parseLong(mediaId.substring(TRACK_PREFIX.length(), end));
+        String nodeId = mediaId.substring(end + 1);
+        refresh();
+        
+        List<Music> tracks = getTracks(nodeId);
+        if (tracks == null) {
+            return null;
+        }
+        if (nodeId.equals(SONGS)) {
+            int index = groups.getStore().indexOf(trackId);
+            return index >= 0 ? new Selection(tracks, index) : null;
+        }
+        for (int i = 0; i < tracks.size(); i++) {
+            if (tracks.get(i).getId() == trackId) {
+                return new Selection(tracks, i);
+            }
+        }
+        return null;
+    }
+    
+    private List<MediaItem> getCached(String key) {
+        refresh();
+        return pages.get(key);
+    }
+    
+    /**
+     * Drops pages built from an older snapshot.
+     */
+    private void refresh() {
+        LibraryGroups current = LibrarySync.getInstance(context).getGroups();
+        if (current != groups) {
+            groups = current;
+            pages.evictAll();
+        }
+    }
+    
+    /**
+     * The tracks under {@code nodeId}, or null if it is not a node of tracks.
+     */
+    private List<Music> getTracks(String nodeId) {
+        if (nodeId.equals(SONGS)) {
+            return groups.getStore().asList();
+        }
+        String name = nodeId.substring(nodeId.indexOf(':') + 1);
+        if (nodeId.startsWith(ARTIST_PREFIX)) {
+            int position = groups.findArtist(name);
+            return position >= 0 ? groups.getArtistTracks(position) : null;
+        }
+        if (nodeId.startsWith(ALBUM_PREFIX)) {
+            int position = groups.findAlbum(name);
+            return position >= 0 ? groups.getAlbumTracks(position) : null;
+        }
+        if (nodeId.startsWith(PLAYLIST_PREFIX)) {
+            Playlist playlist = PlaylistManager.getInstance(context).getPlaylist(parseLong(name));
+            // A read-only view; tracks are only created as they are read
+            return playlist != null ? playlist.getMusicList() : null;
+        }
+        return null;
+    }
+    
+    private Node getNode(final String nodeId) {
+        switch (nodeId) {
+            case ROOT:
+                return new Node() {
+                    final MediaItem[] items = {
+                        browsable(ARTISTS, "Artists", null),
+                        browsable(ALBUMS, "Albums", null),
+                        browsable(PLAYLISTS, "Playlists", null),
+                        browsable(SONGS, "Songs", null)
+                    };
+                    
+                    @Override
+                    int size() {
+                        return items.length;
+                    }
+                    
+                    @Override
+                    MediaItem item(int index) {
+                        return items[index];
+                    }
+                };
+            case ARTISTS:
+                return new Node() {
+                    @Override
+                    int size() {
+                        return groups.getArtistCount();
+                    }
+                    
+                    @Override
+                    MediaItem item(int index) {
+                        String name = groups.getArtistName(index);
+                        int albums = groups.getArtistAlbumCount(index);
+                        return browsable(ARTIST_PREFIX + name, name,
+                                (albums == 1 ? "1 album, " : albums + " albums, ")
+                                        + formatCount(groups.getArtistTrackCount(index)));
+                    }
+                };
+            case ALBUMS:
+                return new Node() {
+                    @Override
+                    int size() {
+                        return groups.getAlbumCount();
+                    }
+                    
+                    @Override
+                    MediaItem item(int index) {
+                        String name = groups.getAlbumName(index);
+                        String artist = groups.getAlbumArtist(index);
+                        return browsable(ALBUM_PREFIX + name, name,
+                                artist != null ? artist : "Various Artists");
+                    }
+                };
+            case PLAYLISTS:
+                return playlistsNode();
+        }
+        
+        final List<Music> tracks = getTracks(nodeId);
+        if (tracks == null) {
+            return null;
+        }
+        final boolean cacheable = !nodeId.startsWith(PLAYLIST_PREFIX);
+        return new Node() {
+            @Override
+            int size() {
+                return tracks.size();
+            }
+            
+            @Override
+            MediaItem item(int index) {
+                Music track = tracks.get(index);
+                return playable(TRACK_PREFIX + track.getId() + ":" + nodeId,
+                        track.getTitle(), track.getArtist());
+            }
+            
+            @Override
+            boolean isCacheable() {
+                return cacheable;
+            }
+        };
+    }
+    
+    private Node playlistsNode() {
+        final List<Playlist> playlists = PlaylistManager.getInstance(context).getAllPlaylists();
+        return new Node() {
+            @Override
+            int size() {
+                return playlists.size();
+            }
+            
+            @Override
+            MediaItem item(int index) {
+                Playlist playlist = playlists.get(index);
+                return browsable(PLAYLIST_PREFIX + playlist.getId(), playlist.getName(),
+                        formatCount(playlist.getMusicCount()));
+            }
+            
+            @Override
+            boolean isCacheable() {
+                return false;
+            }
+        };
+    }
+    
+    private static List<MediaItem> slice(Node node, int from, int count) {
+        int to = Math.min(node.size(), from + count);
+        List<MediaItem> items = new ArrayList<>(Math.max(0, to - from) + 1);
+        for (int i = from; i < to; i++) {
+            items.add(node.item(i));
+        }
+        return items;
+    }
+    
+    private static MediaItem playable(String mediaId, String title, String subtitle) {
+        MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                .setMediaId(mediaId)
+                .setTitle(title)
+                .setSubtitle(subtitle)
+                .build();
+        return new MediaItem(description, MediaItem.FLAG_PLAYABLE);
+    }
+    
+    private static MediaItem browsable(String mediaId, String title, String subtitle) {
+        MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                .setMediaId(mediaId)
+                .setTitle(title)
+                .setSubtitle(subtitle)
+                .build();
+        return new MediaItem(description, MediaItem.FLAG_BROWSABLE);
+    }
+    
+    private static String formatCount(int count) {
+        return count == 1 ? "1 song" : count + " songs";
+    }
+    
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.jununmp3.player.service;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import com.bumptech.glide.request.target.Target;
+import com.jununmp3.player.model.Music;
+import com.jununmp3.player.utils.AlbumArtLoader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Publishes the service's playback to its MediaSession and routes the session's
+ * transport controls back to the service.
+ * <p>
+ * Every change only marks the session stale; the state, metadata and queue are
+ * compared with what was last published and sent once per main looper turn, so the
+ * several callbacks of one skip cost one IPC per part that actually changed. The
+ * playback state carries the {@link ProgressClock} anchor, which controllers
+ * extrapolate themselves, so it is not republished while a track simply plays on.
+ * <p>
+ * Large queues are published as a window of {@link #QUEUE_WINDOW} items around the
+ * current track, with play positions as queue item ids; the window moves when
+ * playback gets near its end.
+ */
+final class MediaSessionController {
+    
+    private static final int QUEUE_WINDOW = 100;
+    // Items kept before the current one, and the minimum left after it before the
+    // window moves on
+    private static final int QUEUE_MARGIN = 10;
+    
+    private static final long ACTIONS = PlaybackStateCompat.ACTION_PLAY
+            | PlaybackStateCompat.ACTION_PAUSE
+            | PlaybackStateCompat.ACTION_PLAY_PAUSE
+            | PlaybackStateCompat.ACTION_STOP
+            | PlaybackStateCompat.ACTION_SKIP_TO_NEXT
+            | PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS
+            | PlaybackStateCompat.ACTION_SEEK_TO
+            | PlaybackStateCompat.ACTION_SKIP_TO_QUEUE_ITEM
+            | PlaybackStateCompat.ACTION_PLAY_FROM_MEDIA_ID
+            | PlaybackStateCompat.ACTION_SET_SHUFFLE_MODE
+            | PlaybackStateCompat.ACTION_SET_REPEAT_MODE;
+    
+    private final MusicService service;
+    private final PlaybackEngine engine;
+    private final PlayQueue queue;
+    private final ProgressClock progressClock;
+    private final MediaSessionCompat session;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable publishRunnable = this::publish;
+    private boolean publishPending = false;
+    
+    // Art of the current track's album, loaded at the size the system uses
+    private long artAlbumId = -1;
+    private Bitmap art;
+    private Target<Bitmap> artRequest;
+    
+    // What the session was last given
+    private long publishedTrackId = -1;
+    private Bitmap publishedArt;
+    private int publishedState = -1;
+    private long publishedPosition;
+    private long publishedUpdateTime;
+    private float publishedSpeed;
+    private long publishedActiveId;
+    private int publishedShuffleMode = -1;
+    private int publishedRepeatMode = -1;
+    private int publishedQueueVersion = -1;
+    private ShuffleOrder publishedShuffleOrder;
+    private int windowStart = 0;
+    private int windowEnd = 0;
+    
+    MediaSessionController(MusicService service, PlaybackEngine engine, PlayQueue queue,
+                           ProgressClock progressClock) {
+        this.service = service;
+        this.engine = engine;
+        this.queue = queue;
+        this.progressClock = progressClock;
+        
+        session = new MediaSessionCompat(service, "MusicService");
+        session.setFlags(MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS
+                | MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
+        session.setCallback(new TransportCallback());
+        session.setActive(true);
+        invalidate();
+    }
+    
+    MediaSessionCompat.Token getSessionToken() {
+        return session.getSessionToken();
+    }
+    
+    /**
+     * Marks the published playback as stale. Cheap; call it after every change.
+     */
+    void invalidate() {
+        if (!publishPending) {
+            publishPending = true;
+            handler.post(publishRunnable);
+        }
+    }
+    
+    void release() {
+        handler.removeCallbacks(publishRunnable);
+        AlbumArtLoader.cancel(service, artRequest);
+        artRequest = null;
+        art = null;
+        session.setActive(false);
+        session.release();
+    }
+    
+    private void publish() {
+        publishPending = false;
+        // Metadata first, so controllers never see the new state with the old track
+        publishMetadata();
+        publishQueue();
+        publishModes();
+        publishState();
+    }
+    
+    private void publishMetadata() {
+        Music track = service.getCurrentMusic();
+        long trackId = track != null ? track.getId() : -1;
+        long albumId = track != null ? track.getAlbumId() : -1;
+        if (albumId != artAlbumId) {
+            artAlbumId = albumId;
+            art = null;
+            AlbumArtLoader.cancel(service, artRequest);
+            // Cached art arrives synchronously and goes out with this update
+            artRequest = AlbumArtLoader.loadBitmap(service, albumId,
+                    AlbumArtLoader.MEDIA_ART_SIZE_PX, this::onArtLoaded);
+        }
+        if (trackId == publishedTrackId && art == publishedArt) {
+            return;
+        }
+        
+        publishedTrackId = trackId;
+        publishedArt = art;
+        if (track == null) {
+            session.setMetadata(null);
+            return;
+        }
+        session.setMetadata(new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, String.valueOf(trackId))
+                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, track.getTitle())
+                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, track.getArtist())
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, track.getAlbum())
+                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, track.getDuration())
+                .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, art)
+                .build());
+    }
+    
+    private void onArtLoaded(long albumId, Bitmap bitmap) {
+        if (albumId == artAlbumId && bitmap != art) {
+            art = bitmap;
+            invalidate();
+        }
+    }
+    
+    private void publishQueue() {
+        int size = queue.size();
+        int current = Math.max(0, queue.getCurrentPosition());
+        boolean sameOrder = queue.getContentVersion() == publishedQueueVersion
+                && queue.getShuffleOrder() == publishedShuffleOrder;
+        boolean inWindow = size == 0 ? windowEnd == 0 : current >= windowStart && current < windowEnd
+                && (windowEnd == size || current < windowEnd - QUEUE_MARGIN);
+        if (sameOrder && inWindow) {
+            return;
+        }
+        
+        publishedQueueVersion = queue.getContentVersion();
+        publishedShuffleOrder = queue.getShuffleOrder();
+        windowStart = Math.max(0, Math.min(current - QUEUE_MARGIN, size - QUEUE_WINDOW));
+        windowEnd = Math.min(size, windowStart + QUEUE_WINDOW);
+        
+        List<MediaSessionCompat.QueueItem> items = new ArrayList<>(windowEnd - windowStart);
+        for (int position = windowStart; position < windowEnd; position++) {
+            Music track = queue.get(position);
+            MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                    .setMediaId(String.valueOf(track.getId()))
+                    .setTitle(track.getTitle())
+                    .setSubtitle(track.getArtist())
+                    .build();
+            items.add(new MediaSessionCompat.QueueItem(description, position));
+        }
+        session.setQueue(items);
+    }
+    
+    private void publishModes() {
+        int shuffleMode = queue.isShuffleEnabled()
+                ? PlaybackStateCompat.SHUFFLE_MODE_ALL : PlaybackStateCompat.SHUFFLE_MODE_NONE;
+        // Without repeat-one the queue wraps around at its end
+        int repeatMode = service.isRepeatEnabled()
+                ? PlaybackStateCompat.REPEAT_MODE_ONE : PlaybackStateCompat.REPEAT_MODE_ALL;
+        if (shuffleMode != publishedShuffleMode) {
+            publishedShuffleMode = shuffleMode;
+            session.setShuffleMode(shuffleMode);
+        }
+        if (repeatMode != publishedRepeatMode) {
+            publishedRepeatMode = repeatMode;
+            session.setRepeatMode(repeatMode);
+        }
+    }
+    
+    private void publishState() {
+        int state;
+        long position = 0;
+        long updateTime = progressClock.getAnchorRealtime();
+        float speed = 0f;
+        switch (engine.getState()) {
+            case PlaybackEngine.STATE_PLAYING:
+            case PlaybackEngine.STATE_PAUSED:
+                state = progressClock.isRunning()
+                        ? PlaybackStateCompat.STATE_PLAYING : PlaybackStateCompat.STATE_PAUSED;
+                position = progressClock.getAnchorPosition();
+                speed = progressClock.isRunning() ? 1f : 0f;
+                break;
+            case PlaybackEngine.STATE_PREPARING:
+                state = PlaybackStateCompat.STATE_BUFFERING;
+                break;
+            case PlaybackEngine.STATE_STOPPED:
+                state = PlaybackStateCompat.STATE_STOPPED;
+                break;
+            case PlaybackEngine.STATE_ERROR:
+                state = PlaybackStateCompat.STATE_ERROR;
+                break;
+            default:
+                // Nothing loaded yet, e.g. a restored session waiting at its offset
+                state = service.getCurrentMusic() != null
+                        ? PlaybackStateCompat.STATE_PAUSED : PlaybackStateCompat.STATE_NONE;
+                position = service.getCurrentPosition();
+                break;
+        }
+        long activeId = queue.getCurrentPosition() >= 0
+                ? queue.getCurrentPosition() : MediaSessionCompat.QueueItem.UNKNOWN_ID;
+        if (state == publishedState && position == publishedPosition
+                && updateTime == publishedUpdateTime && speed == publishedSpeed
+                && activeId == publishedActiveId) {
+            return;
+        }
+        
+        publishedState = state;
+        publishedPosition = position;
+        publishedUpdateTime = updateTime;
+        publishedSpeed = speed;
+        publishedActiveId = activeId;
+        PlaybackStateCompat.Builder builder = new PlaybackStateCompat.Builder()
+                .setActions(ACTIONS)
+                .setState(state, position, speed, updateTime)
+                .setActiveQueueItemId(activeId);
+        if (state == PlaybackStateCompat.STATE_ERROR) {
+            builder.setErrorMessage(PlaybackStateCompat.ERROR_CODE_UNKNOWN_ERROR, "Error playing music");
+        }
+        session.setPlaybackState(builder.build());
+    }
+    
+    /**
+     * Controls from the lock screen, Bluetooth devices and other apps.
+     */
+    private class TransportCallback extends MediaSessionCompat.Callback {
+        
+        @Override
+        public void onPlay() {
+            service.resumeMusic();
+        }
+        
+        @Override
+        public void onPlayFromMediaId(String mediaId, Bundle extras) {
+            service.playFromMediaId(mediaId);
+        }
+        
+        @Override
+        public void onPause() {
+            service.pauseMusic();
+        }
+        
+        @Override
+        public void onStop() {
+            service.stopMusic();
+        }
+        
+        @Override
+        public void onSkipToNext() {
+            service.nextSong();
+        }
+        
+        @Override
+        public void onSkipToPrevious() {
+            service.previousSong();
+        }
+        
+        @Override
+        public void onSeekTo(long position) {
+            service.seekTo((int) position);
+        }
+        
+        @Override
+        public void onSkipToQueueItem(long id) {
+            // Ids are play positions of the last published window
+            if (id >= 0 && id < queue.size()) {
+                service.playQueueItem((int) id);
+            }
+        }
+        
+        @Override
+        public void onSetShuffleMode(int shuffleMode) {
+            boolean enabled = shuffleMode != PlaybackStateCompat.SHUFFLE_MODE_NONE;
+            if (enabled != service.isShuffleEnabled()) {
+                service.toggleShuffle();
+            }
+        }
+        
+        @Override
+        public void onSetRepeatMode(int repeatMode) {
+            boolean enabled = repeatMode == PlaybackStateCompat.REPEAT_MODE_ONE;
+            if (enabled != service.isRepeatEnabled()) {
+                service.toggleRepeat();
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.jununmp3.player.service;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Process;
+import android.support.v4.media.MediaBrowserCompat;
+import android.util.Log;
+
+import androidx.media.MediaBrowserServiceCompat;
+
+import com.jununmp3.player.utils.LibraryQueryExecutor;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The browse tree for Android Auto, Wear and other media controllers, and the only
+ * component other apps can bind to. Playback stays in {@link MusicService}, which is
+ * not exported; this service binds to it for its session token, so clients control
+ * playback through the session alone.
+ * <p>
+ * Only the app itself, the system, apps signed like this one, preinstalled apps and
+ * the controllers in {@link #TRUSTED_PACKAGES} are given the root. Children are built
+ * on the {@link LibraryQueryExecutor} pool and sent from its callback.
+ */
+public class MusicBrowserService extends MediaBrowserServiceCompat {
+    
+    private static final String TAG = "MusicBrowserService";
+    
+    // Android Auto, its desktop head unit and the Wear OS companion
+    private static final Set<String> TRUSTED_PACKAGES = new HashSet<>(Arrays.asList(
+            "com.google.android.projection.gearhead",
+            "com.google.android.autosimulator",
+            "com.google.android.wearable.app"));
+    
+    private BrowseTree browseTree;
+    // Each load gets its own channel, so no load supersedes another
+    private int loadCount = 0;
+    
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            if (getSessionToken() == null) {
+                setSessionToken(((MusicService.MusicBinder) binder).getService().getSessionToken());
+            }
+        }
+        
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+        }
+    };
+    
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        browseTree = new BrowseTree(this);
+        // Clients are only connected once the session token is set
+        bindService(new Intent(this, MusicService.class), connection, BIND_AUTO_CREATE);
+    }
+    
+    @Override
+    public BrowserRoot onGetRoot(String clientPackageName, int clientUid, Bundle rootHints) {
+        if (!isTrusted(clientPackageName, clientUid)) {
+            Log.w(TAG, "Refused to browse for " + clientPackageName + " (uid " + clientUid + ")");
+            return null;
+        }
+        return new BrowserRoot(BrowseTree.ROOT, null);
+    }
+    
+    /**
+     * Whether {@code clientPackageName} may browse. MediaBrowserServiceCompat has
+     * already checked that the package belongs to {@code clientUid}.
+     */
+    private boolean isTrusted(String clientPackageName, int clientUid) {
+        if (clientUid == Process.myUid() || clientUid == Process.SYSTEM_UID) {
+            return true;
+        }
+        PackageManager packageManager = getPackageManager();
+        if (packageManager.checkSignatures(Process.myUid(), clientUid) == PackageManager.SIGNATURE_MATCH
+                || TRUSTED_PACKAGES.contains(clientPackageName)) {
+            return true;
+        }
+        try {
+            ApplicationInfo info = packageManager.getApplicationInfo(clientPackageName, 0);
+            return info.uid == clientUid && (info.flags & ApplicationInfo.FLAG_SYSTEM) != 0;
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+    
+    @Override
+    public void onLoadChildren(final String parentId, Result<List<MediaBrowserCompat.MediaItem>> result) {
+        load(result, () -> browseTree.getChildren(parentId));
+    }
+    
+    @Override
+    public void onLoadChildren(final String parentId, Result<List<MediaBrowserCompat.MediaItem>> result,
+                               Bundle options) {
+        final int page = options != null ? options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1) : -1;
+        final int pageSize = options != null ? options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1) : -1;
+        if (page < 0 || pageSize <= 0) {
+            onLoadChildren(parentId, result);
+        } else {
+            load(result, () -> browseTree.getChildren(parentId, page, pageSize));
+        }
+    }
+    
+    private interface Page {
+        List<MediaBrowserCompat.MediaItem> build();
+    }
+    
+    /**
+     * Builds {@code page} in the background and sends it, or null if building failed,
+     * on the main thread.
+     */
+    private void load(final Result<List<MediaBrowserCompat.MediaItem>> result, final Page page) {
+        result.detach();
+        String channel = LibraryQueryExecutor.CHANNEL_BROWSE_TREE + ":" + loadCount++;
+        LibraryQueryExecutor.getInstance().submit(channel, "loadChildren", signal -> {
+            try {
+                return page.build();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "loadChildren failed", e);
+                return null;
+            }
+        }, result::sendResult);
+    }
+    
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        unbindService(connection);
+    }
+}
@@ -1,56 +1,72 @@
 package com.jununmp3.player.service;
 
-import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
-import android.media.MediaPlayer;
 import android.os.Binder;
 import android.os.Build;
-import android.os.Handler;
 import android.os.IBinder;
-import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.widget.Toast;
 
-import androidx.core.app.NotificationCompat;
-import androidx.core.app.NotificationManagerCompat;
-
-import com.jununmp3.player.MainActivity;
 import com.jununmp3.player.R;
 import com.jununmp3.player.model.Music;
+import com.jununmp3.player.utils.LibrarySync;
+import com.jununmp3.player.utils.PlayEventLog;
+import com.jununmp3.player.utils.PlayHistory;
+import com.jununmp3.player.utils.PlaylistManager;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Random;
 
-public class MusicService extends Service {
+public class MusicService extends Service implements PlaybackEngine.Callback {
     
     private static final String CHANNEL_ID = "music_playback";
     private static final int NOTIFICATION_ID = 1;
-    
-    private MediaPlayer mediaPlayer;
-    private List<Music> playlist = new ArrayList<>();
-    private List<Music> originalPlaylist = new ArrayList<>();
-    private int currentPosition = -1;
+    // How often the offset is saved while playing, in case the process is killed
+    private static final long SESSION_SAVE_INTERVAL_MS = 15000;
+
+    // All MediaPlayer work happens on the engine's own thread
+    private PlaybackEngine engine;
+    private final PlayQueue queue = new PlayQueue();
+    private SessionStore sessionStore;
+    // Whether the saved session is still being read. Nothing is saved meanwhile, and
+    // a change the user makes to the queue or modes before it arrives wins over it
+    private boolean restorePending = false;
+    // Offset to start the current track at, set while a restored session has not
+    // been played yet; -1 otherwise
+    private int resumePositionMs = -1;
     private boolean isPlaying = false;
-    private boolean shuffleEnabled = false;
     private boolean repeatEnabled = false;
     
-    private MediaSessionCompat mediaSession;
-    private Handler handler = new Handler(Looper.getMainLooper());
-    private Runnable updateProgressRunnable;
-    
+    // Gapless playback: the engine prepares the upcoming queue entry ahead of time
+    private int nextPosition = -1;
+    private boolean gaplessEnabled = true;
+    private long startedTrackId = -1;
+    private long transitionStartedAt = -1;
+    private long lastTransitionMillis = -1;
+    
+    // Listening session of the current track, written to the PlayEventLog when it ends
+    private long sessionTrackId = -1;
+    private long sessionStartedAt;
+    private long sessionListenedMs;
+    private long sessionResumedAt = -1;
+    private int sessionSeeks;
+
+    private MediaSessionController sessionController;
+    private NotificationController notificationController;
+    private BrowseTree browseTree;
+
     private final IBinder binder = new MusicBinder();
     
-    public interface ProgressUpdateListener {
-        void onProgressUpdate(int currentPosition, int duration);
+    public interface PlaybackStateListener {
+        void onPlaybackStateChanged();
     }
     
-    private ProgressUpdateListener progressListener;
+    private final ProgressClock progressClock = new ProgressClock();
+    private final ProgressClock.Listener sessionSaver = (position, duration) -> saveSession();
+    private PlaybackStateListener stateListener;
     
     public class MusicBinder extends Binder {
         public MusicService getService() {
@@ -61,33 +77,67 @@ public class MusicService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        initializeMediaPlayer();
+        engine = new PlaybackEngine(this);
+        sessionController = new MediaSessionController(this, engine, queue, progressClock);
+        sessionStore = new SessionStore(this);
+        restorePending = true;
+        sessionStore.load(LibrarySync.getInstance(this), this::restoreSession);
         createNotificationChannel();
-        initializeMediaSession();
-        startProgressUpdater();
-    }
-    
-    private void initializeMediaPlayer() {
-        mediaPlayer = new MediaPlayer();
+        notificationController = new NotificationController(this, CHANNEL_ID, NOTIFICATION_ID,
+                sessionController.getSessionToken());
+        browseTree = new BrowseTree(this);
+    }
+    
+    /**
+     * Puts back the queue, modes and offset saved before the service last went away.
+     * Playback itself waits for the user. Dropped if the user already set up
+     * something else while the session was being read.
+     */
+    private void restoreSession(SessionStore.Session session) {
+        boolean wanted = restorePending;
+        restorePending = false;
+        // Registered only now, since adding it saves straight away
+        progressClock.addListener(sessionSaver, SESSION_SAVE_INTERVAL_MS);
+        if (!wanted || session == null) {
+            return;
+        }
         
-        mediaPlayer.setOnCompletionListener(mp -> {
-            if (repeatEnabled) {
-                seekTo(0);
-                playMusic();
-            } else {
-                nextSong();
+        queue.restore(session.tracks, session.shuffleEnabled, session.drawn, session.drawnCount,
+                session.cursor);
+        Music current = queue.getCurrent();
+        boolean exact = session.complete && current != null && current.getId() == session.currentTrackId;
+        if (!exact) {
+            // The files were saved at different moments or tracks are gone; go by the track id
+            int index = -1;
+            for (int i = 0; i < session.tracks.size() && index < 0; i++) {
+                if (session.tracks.get(i).getId() == session.currentTrackId) {
+                    index = i;
+                }
             }
-        });
+            queue.restore(session.tracks, false, null, 0, index);
+            queue.setShuffleEnabled(session.shuffleEnabled);
+        } else {
+            sessionStore.markRestored(queue, session);
+        }
         
-        mediaPlayer.setOnErrorListener((mp, what, extra) -> {
-            Toast.makeText(this, "Error playing music", Toast.LENGTH_SHORT).show();
-            return true;
-        });
+        repeatEnabled = session.repeatEnabled;
+        Music restored = queue.getCurrent();
+        if (restored != null) {
+            resumePositionMs = restored.getId() == session.currentTrackId ? session.positionMs : 0;
+        }
+        sessionController.invalidate();
+        notifyStateChanged();
     }
     
-    private void initializeMediaSession() {
-        mediaSession = new MediaSessionCompat(this, "MusicService");
-        mediaSession.setActive(true);
+    /**
+     * Saves the session and has the media session show it. Called after every change
+     * to the queue, modes, track or playback state.
+     */
+    private void saveSession() {
+        if (!restorePending) {
+            sessionStore.save(queue, repeatEnabled, getCurrentPosition());
+        }
+        sessionController.invalidate();
     }
     
     private void createNotificationChannel() {
@@ -106,28 +156,18 @@ public class MusicService extends Service {
         }
     }
     
-    private void startProgressUpdater() {
-        updateProgressRunnable = new Runnable() {
-            @Override
-            public void run() {
-                if (mediaPlayer != null && isPlaying) {
-                    if (progressListener != null) {
-                        progressListener.onProgressUpdate(
-                            mediaPlayer.getCurrentPosition(),
-                            mediaPlayer.getDuration()
-                        );
-                    }
-                    handler.postDelayed(this, 1000);
-                }
-            }
-        };
-    }
-    
     @Override
     public IBinder onBind(Intent intent) {
         return binder;
     }
     
+    /**
+     * Token of the media session, for {@link MusicBrowserService} to hand to its clients.
+     */
+    MediaSessionCompat.Token getSessionToken() {
+        return sessionController.getSessionToken();
+    }
+    
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         handleNotificationActions(intent);
@@ -155,218 +195,418 @@ public class MusicService extends Service {
     }
     
     public void setPlaylist(List<Music> musicList, int startPosition) {
-        this.originalPlaylist = new ArrayList<>(musicList);
-        this.playlist = new ArrayList<>(musicList);
-        this.currentPosition = startPosition;
+        restorePending = false;
+        // Library lists are read-only views, so they are shared rather than copied
+        queue.setTracks(musicList, startPosition);
+        this.nextPosition = -1;
+        this.resumePositionMs = -1;
+        saveSession();
+    }
+    
+    /**
+     * Queues {@code tracks} to play right after the current track.
+     */
+    public void playNext(List<Music> tracks) {
+        restorePending = false;
+        queue.playNext(tracks);
+        refreshUpcoming();
+        saveSession();
+    }
+    
+    public void addToQueue(List<Music> tracks) {
+        restorePending = false;
+        queue.enqueue(tracks);
+        refreshUpcoming();
+        saveSession();
+    }
+    
+    public void moveQueueItem(int from, int to) {
+        restorePending = false;
+        queue.move(from, to);
+        refreshUpcoming();
+        saveSession();
+    }
+    
+    /**
+     * Removes a queue entry. If it is the current track, playback moves on to the
+     * entry that takes its place; when paused, that entry waits to be resumed.
+     */
+    public void removeQueueItem(int position) {
+        if (position < 0 || position >= queue.size()) return;
         
-        if (shuffleEnabled) {
-            shufflePlaylist();
+        restorePending = false;
+        boolean current = position == queue.getCurrentPosition();
+        queue.remove(position);
+        if (!current) {
+            refreshUpcoming();
+        } else if (queue.isEmpty()) {
+            stopMusic();
+        } else if (isPlaying) {
+            playMusic();
+        } else {
+            // The engine still holds the removed track; drop it so that resuming
+            // starts the replacement, as for a restored session
+            engine.stop();
+            endSession(PlayEventLog.REASON_SKIPPED);
+            startedTrackId = -1;
+            resumePositionMs = 0;
+            updateNotification();
+        }
+        saveSession();
+        notifyStateChanged();
+    }
+    
+    /**
+     * The queue in play order, unaffected by later changes to it.
+     */
+    public List<Music> getQueue() {
+        return queue.snapshot();
+    }
+    
+    public int getQueuePosition() {
+        return queue.getCurrentPosition();
+    }
+    
+    /**
+     * Plays a track picked in a media browser, queueing the list it was picked from.
+     */
+    void playFromMediaId(String mediaId) {
+        BrowseTree.Selection selection = browseTree.select(mediaId);
+        if (selection != null) {
+            setPlaylist(selection.tracks, selection.start);
+            playMusic();
         }
     }
     
+    /**
+     * Jumps to play position {@code position} of the queue and starts it.
+     */
+    public void playQueueItem(int position) {
+        if (position < 0 || position >= queue.size()) return;
+        
+        queue.setCurrentPosition(position);
+        playMusic();
+    }
+    
+    /**
+     * Starts the current queue entry. Returns immediately; the engine prepares the
+     * file asynchronously and a newer call replaces one that has not started yet.
+     */
     public void playMusic() {
-        if (currentPosition >= 0 && currentPosition < playlist.size()) {
-            try {
-                Music currentMusic = playlist.get(currentPosition);
-                
-                mediaPlayer.reset();
-                mediaPlayer.setDataSource(currentMusic.getPath());
-                mediaPlayer.prepare();
-                mediaPlayer.start();
-                
-                isPlaying = true;
-                startForeground(NOTIFICATION_ID, createNotification());
-                startProgressUpdater();
-                handler.post(updateProgressRunnable);
-                
-            } catch (Exception e) {
-                Toast.makeText(this, "Error playing: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+        Music current = queue.getCurrent();
+        if (current != null) {
+            if (transitionStartedAt < 0) {
+                transitionStartedAt = SystemClock.elapsedRealtime();
             }
+            isPlaying = true;
+            resumePositionMs = -1;
+            engine.play(current);
+            engine.setNext(getUpcoming());
         }
     }
     
     public void pauseMusic() {
-        if (mediaPlayer != null && isPlaying) {
-            mediaPlayer.pause();
+        if (isPlaying) {
+            engine.pause();
             isPlaying = false;
-            handler.removeCallbacks(updateProgressRunnable);
             updateNotification();
         }
     }
     
     public void resumeMusic() {
-        if (mediaPlayer != null && !isPlaying) {
-            mediaPlayer.start();
+        if (!isPlaying && getCurrentMusic() != null && resumePositionMs >= 0) {
+            // Nothing loaded yet in a restored session
+            int position = resumePositionMs;
+            playMusic();
+            engine.seekTo(position);
+        } else if (!isPlaying && getCurrentMusic() != null) {
+            engine.resume();
             isPlaying = true;
-            handler.post(updateProgressRunnable);
             updateNotification();
         }
     }
     
     public void stopMusic() {
-        if (mediaPlayer != null) {
-            mediaPlayer.stop();
-            mediaPlayer.reset();
-            isPlaying = false;
-            handler.removeCallbacks(updateProgressRunnable);
-            stopForeground(true);
-        }
+        engine.stop();
+        isPlaying = false;
+        endSession(PlayEventLog.REASON_STOPPED);
+        notificationController.stop();
+        // Lives on only while something is still bound to it
+        stopSelf();
     }
     
     public void nextSong() {
-        if (playlist.isEmpty()) return;
+        if (queue.isEmpty()) return;
         
-        currentPosition++;
-        if (currentPosition >= playlist.size()) {
-            currentPosition = 0;
+        if (transitionStartedAt < 0) {
+            transitionStartedAt = SystemClock.elapsedRealtime();
+        }
+        int position = queue.getCurrentPosition() + 1;
+        if (position >= queue.size()) {
+            position = 0;
         }
+        queue.setCurrentPosition(position);
         playMusic();
     }
     
     public void previousSong() {
-        if (playlist.isEmpty()) return;
+        if (queue.isEmpty()) return;
         
-        currentPosition--;
-        if (currentPosition < 0) {
-            currentPosition = playlist.size() - 1;
+        int position = queue.getCurrentPosition() - 1;
+        if (position < 0) {
+            position = queue.size() - 1;
         }
+        queue.setCurrentPosition(position);
         playMusic();
     }
     
     public void seekTo(int position) {
-        if (mediaPlayer != null) {
-            mediaPlayer.seekTo(position);
+        if (resumePositionMs >= 0) {
+            resumePositionMs = position;
+        } else {
+            engine.seekTo(position);
+            sessionSeeks++;
         }
+        saveSession();
     }
     
     public void toggleShuffle() {
-        shuffleEnabled = !shuffleEnabled;
-        
-        if (shuffleEnabled) {
-            shufflePlaylist();
-        } else {
-            // Restore original order
-            Music currentSong = getCurrentMusic();
-            playlist = new ArrayList<>(originalPlaylist);
-            currentPosition = playlist.indexOf(currentSong);
-        }
+        restorePending = false;
+        queue.setShuffleEnabled(!queue.isShuffleEnabled());
+        refreshUpcoming();
+        saveSession();
     }
     
     public void toggleRepeat() {
+        restorePending = false;
         repeatEnabled = !repeatEnabled;
+        // Repeat-one chains the current track to itself instead of the next one
+        refreshUpcoming();
+        saveSession();
     }
     
-    private void shufflePlaylist() {
-        Music currentSong = getCurrentMusic();
-        Collections.shuffle(playlist, new Random());
-        
-        // Move current song to front
-        if (currentSong != null) {
-            playlist.remove(currentSong);
-            playlist.add(0, currentSong);
-            currentPosition = 0;
+    public void setGaplessEnabled(boolean enabled) {
+        gaplessEnabled = enabled;
+        refreshUpcoming();
+    }
+    
+    private void refreshUpcoming() {
+        if (startedTrackId >= 0) {
+            engine.setNext(getUpcoming());
         }
     }
     
-    private Notification createNotification() {
-        Intent intent = new Intent(this, MainActivity.class);
-        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
-        PendingIntent pendingIntent = PendingIntent.getActivity(
-            this, 0, intent,
-            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
-        );
-        
-        Music currentMusic = getCurrentMusic();
-        String title = currentMusic != null ? currentMusic.getTitle() : "Unknown";
-        String artist = currentMusic != null ? currentMusic.getArtist() : "Unknown Artist";
-        
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, CHANNEL_ID)
-            .setContentTitle(title)
-            .setContentText(artist)
-            .setSmallIcon(R.drawable.ic_music_note)
-            .setContentIntent(pendingIntent)
-            .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
-            .setPriority(NotificationCompat.PRIORITY_LOW)
-            .setOngoing(isPlaying)
-            .setShowWhen(false);
-        
-        // Add media controls
-        builder.addAction(createNotificationAction("PREVIOUS", "Previous", R.drawable.ic_skip_previous))
-               .addAction(createNotificationAction(
-                   isPlaying ? "PAUSE" : "PLAY", 
-                   isPlaying ? "Pause" : "Play", 
-                   isPlaying ? R.drawable.ic_pause : R.drawable.ic_play))
-               .addAction(createNotificationAction("NEXT", "Next", R.drawable.ic_skip_next));
-        
-        builder.setStyle(new androidx.media.app.NotificationCompat.MediaStyle()
-            .setShowActionsInCompactView(0, 1, 2)
-            .setMediaSession(mediaSession.getSessionToken()));
-        
-        return builder.build();
+    /**
+     * Returns the entry the engine should prepare after the current one, or null when
+     * nothing should be chained. With repeat-one that is the current entry again, so
+     * every loop reaches {@link #onTrackStarted} like any other track change.
+     */
+    private Music getUpcoming() {
+        nextPosition = -1;
+        int currentPosition = queue.getCurrentPosition();
+        if (!gaplessEnabled || currentPosition < 0) {
+            return null;
+        }
+        if (repeatEnabled) {
+            nextPosition = currentPosition;
+            return queue.get(currentPosition);
+        }
+        if (queue.size() < 2) {
+            return null;
+        }
+        nextPosition = currentPosition + 1;
+        if (nextPosition >= queue.size()) {
+            nextPosition = 0;
+        }
+        return queue.get(nextPosition);
     }
     
-    private NotificationCompat.Action createNotificationAction(String action, String title, int icon) {
-        Intent intent = new Intent(this, MusicService.class);
-        intent.setAction(action);
-        PendingIntent pendingIntent = PendingIntent.getService(
-            this, 0, intent, 
-            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
-        );
+    private void beginSession(long trackId) {
+        sessionTrackId = trackId;
+        sessionStartedAt = System.currentTimeMillis();
+        sessionListenedMs = 0;
+        sessionSeeks = 0;
+        sessionResumedAt = SystemClock.elapsedRealtime();
+    }
+    
+    /**
+     * Counts listening time only while the engine is actually playing.
+     */
+    private void setSessionPlaying(boolean playing) {
+        if (sessionTrackId < 0) {
+            return;
+        }
+        if (playing && sessionResumedAt < 0) {
+            sessionResumedAt = SystemClock.elapsedRealtime();
+        } else if (!playing && sessionResumedAt >= 0) {
+            sessionListenedMs += SystemClock.elapsedRealtime() - sessionResumedAt;
+            sessionResumedAt = -1;
+        }
+    }
+    
+    private void endSession(int reason) {
+        if (sessionTrackId < 0) {
+            return;
+        }
+        setSessionPlaying(false);
+        PlayEventLog.getInstance(this).record(sessionTrackId, sessionStartedAt,
+                sessionListenedMs, sessionSeeks, reason);
+        sessionTrackId = -1;
+    }
+    
+    @Override
+    public void onStateChanged(int state) {
+        setSessionPlaying(state == PlaybackEngine.STATE_PLAYING);
+        boolean playing = state == PlaybackEngine.STATE_PLAYING
+                || (state == PlaybackEngine.STATE_PREPARING && isPlaying);
+        if (playing != isPlaying) {
+            isPlaying = playing;
+            updateNotification();
+            notifyStateChanged();
+        }
+        saveSession();
+    }
+    
+    @Override
+    public void onTrackStarted(Music track, boolean gapless) {
+        Music current = getCurrentMusic();
+        if (gapless && current != null && current.getId() == startedTrackId
+                && nextPosition >= 0 && nextPosition < queue.size()) {
+            // The engine moved on by itself, unless a skip is already on its way
+            queue.setCurrentPosition(nextPosition);
+            engine.setNext(getUpcoming());
+        }
+        startedTrackId = track.getId();
+        recordTransition(gapless);
+        // A gapless start means the previous track, or the previous loop of this one
+        // under repeat-one, played to its end
+        endSession(gapless ? PlayEventLog.REASON_COMPLETED : PlayEventLog.REASON_SKIPPED);
+        beginSession(track.getId());
+        PlayHistory.getInstance(this).recordPlay(track.getId());
+        saveSession();
         
-        return new NotificationCompat.Action(icon, title, pendingIntent);
+        isPlaying = true;
+        notificationController.startForeground(track, true);
+        notifyStateChanged();
     }
     
-    private void updateNotification() {
-        if (NotificationManagerCompat.from(this).areNotificationsEnabled()) {
-            NotificationManagerCompat.from(this)
-                .notify(NOTIFICATION_ID, createNotification());
+    @Override
+    public void onTrackCompleted(Music track) {
+        transitionStartedAt = SystemClock.elapsedRealtime();
+        endSession(PlayEventLog.REASON_COMPLETED);
+        if (repeatEnabled) {
+            playMusic();
+        } else {
+            nextSong();
+        }
+    }
+    
+    @Override
+    public void onError(Music track) {
+        transitionStartedAt = -1;
+        endSession(PlayEventLog.REASON_ERROR);
+        isPlaying = false;
+        Toast.makeText(this, "Error playing music", Toast.LENGTH_SHORT).show();
+        updateNotification();
+        notifyStateChanged();
+    }
+    
+    @Override
+    public void onProgress(int position, int duration, boolean playing, long elapsedRealtime) {
+        progressClock.sync(position, duration, playing, elapsedRealtime);
+        sessionController.invalidate();
+    }
+    
+    private void recordTransition(boolean gapless) {
+        if (transitionStartedAt >= 0) {
+            lastTransitionMillis = SystemClock.elapsedRealtime() - transitionStartedAt;
+            transitionStartedAt = -1;
+        } else if (gapless) {
+            lastTransitionMillis = 0;
         }
     }
     
+    private void notifyStateChanged() {
+        if (stateListener != null) {
+            stateListener.onPlaybackStateChanged();
+        }
+    }
+    
+    private void updateNotification() {
+        notificationController.update(getCurrentMusic(), isPlaying);
+    }
+    
     // Getters
     public boolean isPlaying() {
         return isPlaying;
     }
     
     public boolean isShuffleEnabled() {
-        return shuffleEnabled;
+        return queue.isShuffleEnabled();
     }
     
     public boolean isRepeatEnabled() {
         return repeatEnabled;
     }
     
+    public boolean isGaplessEnabled() {
+        return gaplessEnabled;
+    }
+    
+    /**
+     * Time in milliseconds between the last track change being triggered (completion
+     * or skip) and the new track playing, or -1 before the first change.
+     */
+    public long getLastTransitionMillis() {
+        return lastTransitionMillis;
+    }
+    
     public Music getCurrentMusic() {
-        if (currentPosition >= 0 && currentPosition < playlist.size()) {
-            return playlist.get(currentPosition);
-        }
-        return null;
+        return queue.getCurrent();
     }
     
     public int getCurrentPosition() {
-        return mediaPlayer != null ? mediaPlayer.getCurrentPosition() : 0;
+        return resumePositionMs >= 0 ? resumePositionMs : progressClock.getPosition();
     }
     
     public int getDuration() {
-        return mediaPlayer != null ? mediaPlayer.getDuration() : 0;
+        int duration = engine.getDuration();
+        if (duration <= 0) {
+            Music currentMusic = getCurrentMusic();
+            return currentMusic != null ? (int) currentMusic.getDuration() : 0;
+        }
+        return duration;
+    }
+    
+    /**
+     * Calls {@code listener} on the main thread about every {@code intervalMs} while
+     * playing and whenever playback jumps. Remove it when its UI is not visible.
+     */
+    public void addProgressListener(ProgressClock.Listener listener, long intervalMs) {
+        progressClock.addListener(listener, intervalMs);
+    }
+    
+    public void removeProgressListener(ProgressClock.Listener listener) {
+        progressClock.removeListener(listener);
     }
     
-    public void setProgressUpdateListener(ProgressUpdateListener listener) {
-        this.progressListener = listener;
+    public void setPlaybackStateListener(PlaybackStateListener listener) {
+        this.stateListener = listener;
     }
     
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (mediaPlayer != null) {
-            mediaPlayer.release();
-            mediaPlayer = null;
-        }
-        
-        if (mediaSession != null) {
-            mediaSession.release();
-        }
+        engine.release();
+        progressClock.removeListener(sessionSaver);
+        endSession(PlayEventLog.REASON_STOPPED);
+        saveSession();
+        sessionStore.release();
+        PlaylistManager.flushPendingWrites();
+        PlayHistory.flushPendingWrites();
+        PlayEventLog.flushPendingWrites();
         
-        handler.removeCallbacks(updateProgressRunnable);
+        notificationController.release();
+        sessionController.release();
     }
 }
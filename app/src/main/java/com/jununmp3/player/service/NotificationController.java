@@ -0,0 +1,247 @@
+package com.jununmp3.player.service;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.text.TextUtils;
+
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+import androidx.core.content.ContextCompat;
+
+import com.bumptech.glide.request.target.Target;
+import com.jununmp3.player.MainActivity;
+import com.jununmp3.player.R;
+import com.jununmp3.player.model.Music;
+import com.jununmp3.player.utils.AlbumArtLoader;
+
+/**
+ * Owns the playback notification and posts it only when what it shows has changed.
+ * <p>
+ * The content intent and the four transport actions never change, so they are built
+ * once. Every update is compared with what was last posted (title, artist, art and
+ * the play/pause button) and dropped if nothing differs. Posts are at least
+ * {@link #MIN_POST_INTERVAL_MS} apart, since the system drops updates from apps that
+ * post faster than that; during a burst of skips only the latest state goes out.
+ * Album art goes through Glide's caches, decoded at the size the media session uses.
+ */
+final class NotificationController {
+    
+    private static final long MIN_POST_INTERVAL_MS = 500;
+
+    private final Service service;
+    private final String channelId;
+    private final int notificationId;
+    private final MediaSessionCompat.Token sessionToken;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable postRunnable = this::post;
+    
+    private final PendingIntent contentIntent;
+    private final NotificationCompat.Action previousAction;
+    private final NotificationCompat.Action playAction;
+    private final NotificationCompat.Action pauseAction;
+    private final NotificationCompat.Action nextAction;
+    
+    // What the notification should show
+    private Music track;
+    private boolean playing;
+    private Bitmap art;
+    private long artAlbumId = -1;
+    private Target<Bitmap> artRequest;
+    
+    // What it showed when last posted
+    private long postedTrackId = -1;
+    private String postedTitle;
+    private String postedArtist;
+    private boolean postedPlaying;
+    private Bitmap postedArt;
+    private long lastPostAt = -MIN_POST_INTERVAL_MS;
+    
+    private boolean foreground = false;
+    
+    NotificationController(Service service, String channelId, int notificationId,
+                           MediaSessionCompat.Token sessionToken) {
+        this.service = service;
+        this.channelId = channelId;
+        this.notificationId = notificationId;
+        this.sessionToken = sessionToken;
+
+        Intent intent = new Intent(service, MainActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        contentIntent = PendingIntent.getActivity(
+            service, 0, intent,
+            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
+        );
+        previousAction = createAction("PREVIOUS", "Previous", R.drawable.ic_skip_previous);
+        playAction = createAction("PLAY", "Play", R.drawable.ic_play);
+        pauseAction = createAction("PAUSE", "Pause", R.drawable.ic_pause);
+        nextAction = createAction("NEXT", "Next", R.drawable.ic_skip_next);
+    }
+    
+    private NotificationCompat.Action createAction(String action, String title, int icon) {
+        Intent intent = new Intent(service, MusicService.class);
+        intent.setAction(action);
+        PendingIntent pendingIntent = PendingIntent.getService(
+            service, 0, intent,
+            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
+        );
+        return new NotificationCompat.Action(icon, title, pendingIntent);
+    }
+    
+    /**
+     * Shows {@code track}, making the service a started foreground service if it is
+     * not one yet. Once it is, this is an ordinary rate-limited update.
+     * <p>
+     * Starting it keeps it alive once its clients unbind, which MusicBrowserService
+     * does as soon as the controller that started playback disconnects.
+     */
+    void startForeground(Music track, boolean playing) {
+        if (foreground) {
+            update(track, playing);
+            return;
+        }
+        setState(track, playing);
+        handler.removeCallbacks(postRunnable);
+        ContextCompat.startForegroundService(service, new Intent(service, MusicService.class));
+        service.startForeground(notificationId, build());
+        markPosted();
+        foreground = true;
+    }
+    
+    /**
+     * Shows {@code track} in the notification, if it is up. Nothing is posted if the
+     * notification already shows the same thing.
+     */
+    void update(Music track, boolean playing) {
+        if (!foreground) {
+            return;
+        }
+        setState(track, playing);
+        schedule();
+    }
+    
+    /**
+     * Takes the notification down along with the foreground state. Updates are ignored
+     * until the next {@link #startForeground}.
+     */
+    void stop() {
+        handler.removeCallbacks(postRunnable);
+        foreground = false;
+        service.stopForeground(true);
+        postedTrackId = -1;
+        postedArt = null;
+    }
+    
+    void release() {
+        handler.removeCallbacks(postRunnable);
+        AlbumArtLoader.cancel(service, artRequest);
+        artRequest = null;
+        art = null;
+        postedArt = null;
+    }
+    
+    private void setState(Music track, boolean playing) {
+        this.track = track;
+        this.playing = playing;
+        
+        long albumId = track != null ? track.getAlbumId() : -1;
+        if (albumId != artAlbumId) {
+            artAlbumId = albumId;
+            art = null;
+            AlbumArtLoader.cancel(service, artRequest);
+            // Cached art arrives synchronously, before the first post of this track
+            artRequest = AlbumArtLoader.loadBitmap(service, albumId,
+                    AlbumArtLoader.MEDIA_ART_SIZE_PX, this::onArtLoaded);
+        }
+    }
+    
+    private void onArtLoaded(long albumId, Bitmap bitmap) {
+        if (albumId != artAlbumId) {
+            return;
+        }
+        art = bitmap;
+        if (foreground) {
+            schedule();
+        }
+    }
+    
+    private boolean isChanged() {
+        long trackId = track != null ? track.getId() : -1;
+        return trackId != postedTrackId
+                || playing != postedPlaying
+                || art != postedArt
+                || !TextUtils.equals(getTitle(), postedTitle)
+                || !TextUtils.equals(getArtist(), postedArtist);
+    }
+    
+    private void schedule() {
+        handler.removeCallbacks(postRunnable);
+        if (!isChanged()) {
+            return;
+        }
+        long wait = lastPostAt + MIN_POST_INTERVAL_MS - SystemClock.elapsedRealtime();
+        if (wait <= 0) {
+            post();
+        } else {
+            handler.postDelayed(postRunnable, wait);
+        }
+    }
+    
+    private void post() {
+        if (!foreground || !isChanged()) {
+            return;
+        }
+        NotificationManagerCompat manager = NotificationManagerCompat.from(service);
+        if (manager.areNotificationsEnabled()) {
+            manager.notify(notificationId, build());
+        }
+        markPosted();
+    }
+    
+    private void markPosted() {
+        postedTrackId = track != null ? track.getId() : -1;
+        postedTitle = getTitle();
+        postedArtist = getArtist();
+        postedPlaying = playing;
+        postedArt = art;
+        lastPostAt = SystemClock.elapsedRealtime();
+    }
+    
+    private String getTitle() {
+        return track != null ? track.getTitle() : "Unknown";
+    }
+    
+    private String getArtist() {
+        return track != null ? track.getArtist() : "Unknown Artist";
+    }
+    
+    private Notification build() {
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(service, channelId)
+            .setContentTitle(getTitle())
+            .setContentText(getArtist())
+            .setLargeIcon(art)
+            .setSmallIcon(R.drawable.ic_music_note)
+            .setContentIntent(contentIntent)
+            .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
+            .setPriority(NotificationCompat.PRIORITY_LOW)
+            .setOngoing(playing)
+            .setOnlyAlertOnce(true)
+            .setShowWhen(false);
+        
+        builder.addAction(previousAction)
+               .addAction(playing ? pauseAction : playAction)
+               .addAction(nextAction);
+        
+        builder.setStyle(new androidx.media.app.NotificationCompat.MediaStyle()
+            .setShowActionsInCompactView(0, 1, 2)
+            .setMediaSession(sessionToken));
+        
+        return builder.build();
+    }
+}
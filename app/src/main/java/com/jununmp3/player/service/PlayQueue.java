@@ -0,0 +1,418 @@
+package com.jununmp3.player.service;
+
+import com.jununmp3.player.model.Music;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The play queue: tracks in play order plus a cursor on the current one.
+ * <p>
+ * The tracks are kept as a chunked list of segments, each a read-only slice of some
+ * list. Setting a queue shares the given list as a single segment instead of copying
+ * it; inserting, removing and moving only split segments or add small new ones, and
+ * neighbouring small segments are merged back into one chunk. A position is found by
+ * binary search over the segment start offsets. Segments are never modified once
+ * created, so {@link #snapshot()} only copies the segment table.
+ * <p>
+ * With shuffle on, play positions go through a {@link ShuffleOrder} over the queue, so
+ * toggling costs nothing. Edits made while shuffled go to both: removals drop the
+ * track from the queue, inserted tracks go into the queue right after the track played
+ * before them, and moves only change the play order. Turning shuffle off therefore
+ * goes back to the queue order with the edits applied. Tracks added after the last
+ * play position join the tracks not played yet at random, since the shuffled order
+ * past the positions drawn so far is not fixed.
+ */
+public class PlayQueue {
+    
+    // Neighbouring segments are merged while together they fit in one chunk
+    private static final int CHUNK_SIZE = 256;
+
+    private Segment[] segments = new Segment[0];
+    // starts[i] is the queue position of the first track of segments[i]
+    private int[] starts = new int[1];
+    private int segmentCount = 0;
+    private int size = 0;
+    
+    private int cursor = -1;
+    private boolean shuffleEnabled = false;
+    // Set while shuffled; maps play positions to queue positions
+    private ShuffleOrder shuffleOrder;
+    private final Random random = new Random();
+    // Bumped whenever the tracks or their queue order change
+    private int contentVersion = 0;
+
+    /**
+     * Replaces the queue with {@code tracks}, which is shared rather than copied and
+     * must not change afterwards, and puts the cursor on {@code startPosition}.
+     */
+    public void setTracks(List<Music> tracks, int startPosition) {
+        reset(tracks);
+        cursor = startPosition >= 0 && startPosition < size ? startPosition : -1;
+        if (shuffleEnabled) {
+            startShuffle();
+        }
+    }
+    
+    /**
+     * Puts back a saved queue: {@code tracks} in queue order and, when shuffled, the
+     * first {@code drawnCount} positions of the play order. {@code cursor} is a play
+     * position.
+     */
+    void restore(List<Music> tracks, boolean shuffleEnabled, int[] drawn, int drawnCount, int cursor) {
+        reset(tracks);
+        this.shuffleEnabled = shuffleEnabled;
+        if (shuffleEnabled && drawn != null) {
+            shuffleOrder = new ShuffleOrder(size, drawn, drawnCount, random);
+        }
+        setCurrentPosition(cursor);
+    }
+    
+    private void reset(List<Music> tracks) {
+        segments = new Segment[4];
+        starts = new int[5];
+        segmentCount = 0;
+        size = 0;
+        shuffleOrder = null;
+        contentVersion++;
+        if (!tracks.isEmpty()) {
+            insertSegments(0, new Segment[] {new Segment(tracks, 0, tracks.size())});
+        }
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    /**
+     * Track at {@code position} in play order.
+     */
+    public Music get(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + size);
+        }
+        return getQueued(shuffleOrder != null ? shuffleOrder.get(position) : position);
+    }
+    
+    /**
+     * Play position of the current track, or -1 if there is none.
+     */
+    public int getCurrentPosition() {
+        return cursor;
+    }
+    
+    public Music getCurrent() {
+        return cursor >= 0 ? get(cursor) : null;
+    }
+    
+    public void setCurrentPosition(int position) {
+        cursor = position >= 0 && position < size ? position : -1;
+    }
+    
+    public boolean isShuffleEnabled() {
+        return shuffleEnabled;
+    }
+    
+    /**
+     * Turns shuffle on, with the current track first, or off, continuing from the
+     * current track. Constant time.
+     */
+    public void setShuffleEnabled(boolean enabled) {
+        if (enabled == shuffleEnabled) {
+            return;
+        }
+        shuffleEnabled = enabled;
+        if (enabled) {
+            startShuffle();
+        } else if (shuffleOrder != null) {
+            if (cursor >= 0) {
+                cursor = shuffleOrder.get(cursor);
+            }
+            shuffleOrder = null;
+        }
+    }
+    
+    int getContentVersion() {
+        return contentVersion;
+    }
+    
+    /**
+     * The order play positions go through, or null while they are queue positions.
+     */
+    ShuffleOrder getShuffleOrder() {
+        return shuffleOrder;
+    }
+    
+    /**
+     * Inserts {@code tracks} right after the current track, or at the front if there
+     * is none.
+     */
+    public void playNext(List<Music> tracks) {
+        insert(cursor + 1, tracks);
+    }
+    
+    /**
+     * Adds {@code tracks} at the end of the queue.
+     */
+    public void enqueue(List<Music> tracks) {
+        insert(size, tracks);
+    }
+    
+    /**
+     * Inserts {@code tracks} at play position {@code position}. They are copied, so
+     * the caller may reuse the list.
+     */
+    public void insert(int position, List<Music> tracks) {
+        if (position < 0 || position > size) {
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + size);
+        }
+        if (tracks.isEmpty()) {
+            return;
+        }
+        
+        List<Music> copy = new ArrayList<>(tracks);
+        int queued = position;
+        if (shuffleOrder != null) {
+            // After the track played before them, or at the end when added at the end
+            queued = position == size ? size : position > 0 ? shuffleOrder.get(position - 1) + 1 : 0;
+            shuffleOrder = shuffleOrder.withInserted(position, queued, copy.size());
+        }
+        contentVersion++;
+        int segment = split(queued);
+        insertSegments(segment, new Segment[] {new Segment(copy, 0, copy.size())});
+        mergeAround(segment);
+        if (cursor >= position) {
+            cursor += copy.size();
+        }
+    }
+    
+    /**
+     * Removes the track at {@code position}. When that was the current track the
+     * cursor moves to the track after it, or to the new last track, or to -1 once the
+     * queue is empty.
+     */
+    public Music remove(int position) {
+        Music removed = get(position);
+        int queued = position;
+        if (shuffleOrder != null) {
+            queued = shuffleOrder.get(position);
+            shuffleOrder = shuffleOrder.withRemoved(position);
+        }
+        
+        contentVersion++;
+        removeRange(queued, queued + 1);
+        if (cursor > position || cursor == size) {
+            cursor--;
+        }
+        return removed;
+    }
+    
+    /**
+     * Moves the track at {@code from} to {@code to}, keeping the cursor on the same
+     * track. While shuffled only the play order changes.
+     */
+    public void move(int from, int to) {
+        if (to < 0 || to >= size) {
+            throw new IndexOutOfBoundsException("Position " + to + ", size " + size);
+        }
+        if (from == to) {
+            return;
+        }
+        Music track = get(from);
+        if (shuffleOrder != null) {
+            // Both positions must have been drawn
+            shuffleOrder.get(to);
+            shuffleOrder = shuffleOrder.withMoved(from, to);
+        } else {
+            contentVersion++;
+            removeRange(from, from + 1);
+            int segment = split(to);
+            insertSegments(segment, new Segment[] {new Segment(Collections.singletonList(track), 0, 1)});
+            mergeAround(segment);
+        }
+        
+        if (cursor == from) {
+            cursor = to;
+        } else if (from < cursor && to >= cursor) {
+            cursor--;
+        } else if (from > cursor && to <= cursor) {
+            cursor++;
+        }
+    }
+    
+    /**
+     * Read-only view of the queue in play order as it is now. Later edits do not show
+     * in it. Costs a copy of the segment table, not of the tracks.
+     */
+    public List<Music> snapshot() {
+        return snapshot(shuffleOrder);
+    }
+    
+    /**
+     * Like {@link #snapshot()}, but in queue order when shuffled.
+     */
+    List<Music> queueOrderSnapshot() {
+        return snapshot(null);
+    }
+    
+    private List<Music> snapshot(final ShuffleOrder frozenOrder) {
+        final Segment[] frozenSegments = Arrays.copyOf(segments, segmentCount);
+        final int[] frozenStarts = Arrays.copyOf(starts, segmentCount + 1);
+        final int frozenSize = size;
+        return new AbstractList<Music>() {
+            @Override
+            public Music get(int position) {
+                if (position < 0 || position >= frozenSize) {
+                    throw new IndexOutOfBoundsException("Position " + position + ", size " + frozenSize);
+                }
+                int queued = frozenOrder != null ? frozenOrder.get(position) : position;
+                int segment = findSegment(frozenStarts, frozenSegments.length, queued);
+                return frozenSegments[segment].get(queued - frozenStarts[segment]);
+            }
+            
+            @Override
+            public int size() {
+                return frozenSize;
+            }
+        };
+    }
+    
+    private void startShuffle() {
+        shuffleOrder = new ShuffleOrder(size, cursor, random);
+        if (cursor >= 0) {
+            cursor = 0;
+        }
+    }
+    
+    private Music getQueued(int position) {
+        int segment = findSegment(starts, segmentCount, position);
+        return segments[segment].get(position - starts[segment]);
+    }
+    
+    private static int findSegment(int[] starts, int count, int position) {
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (starts[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Makes {@code position} the start of a segment and returns that segment's index,
+     * which is segmentCount for the end of the queue.
+     */
+    private int split(int position) {
+        if (position == size) {
+            return segmentCount;
+        }
+        int index = findSegment(starts, segmentCount, position);
+        int offset = position - starts[index];
+        if (offset == 0) {
+            return index;
+        }
+        Segment segment = segments[index];
+        segments[index] = new Segment(segment.list, segment.from, offset);
+        insertSegments(index + 1, new Segment[] {
+            new Segment(segment.list, segment.from + offset, segment.size - offset)
+        });
+        // insertSegments counted the tail as new tracks
+        size -= segment.size - offset;
+        return index + 1;
+    }
+    
+    private void removeRange(int from, int to) {
+        int first = split(from);
+        int end = split(to);
+        int removed = to - from;
+        System.arraycopy(segments, end, segments, first, segmentCount - end);
+        segmentCount -= end - first;
+        Arrays.fill(segments, segmentCount, segmentCount + end - first, null);
+        size -= removed;
+        updateStarts(first);
+        mergeAround(first);
+    }
+    
+    private void insertSegments(int index, Segment[] added) {
+        if (segmentCount + added.length > segments.length) {
+            int capacity = Math.max(segmentCount + added.length, segments.length * 2);
+            segments = Arrays.copyOf(segments, capacity);
+            starts = Arrays.copyOf(starts, capacity + 1);
+        }
+        System.arraycopy(segments, index, segments, index + added.length, segmentCount - index);
+        System.arraycopy(added, 0, segments, index, added.length);
+        segmentCount += added.length;
+        for (Segment segment : added) {
+            size += segment.size;
+        }
+        updateStarts(index);
+    }
+    
+    private void updateStarts(int index) {
+        int start = index > 0 ? starts[index - 1] + segments[index - 1].size : 0;
+        for (int i = index; i < segmentCount; i++) {
+            starts[i] = start;
+            start += segments[i].size;
+        }
+        starts[segmentCount] = start;
+    }
+    
+    /**
+     * Merges small segments near {@code index} into single chunks, so edits do not
+     * leave the queue in ever smaller pieces.
+     */
+    private void mergeAround(int index) {
+        int first = Math.max(0, index - 2);
+        int last = Math.min(segmentCount - 1, index + 1);
+        for (int i = last - 1; i >= first; i--) {
+            Segment left = segments[i];
+            Segment right = segments[i + 1];
+            int combined = left.size + right.size;
+            if (combined <= CHUNK_SIZE) {
+                List<Music> chunk = new ArrayList<>(combined);
+                left.addTo(chunk);
+                right.addTo(chunk);
+                segments[i] = new Segment(chunk, 0, combined);
+                System.arraycopy(segments, i + 2, segments, i + 1, segmentCount - i - 2);
+                segments[--segmentCount] = null;
+            }
+        }
+        updateStarts(first);
+    }
+    
+    /**
+     * A read-only slice of a list that is never modified.
+     */
+    private static final class Segment {
+        final List<Music> list;
+        final int from;
+        final int size;
+        
+        Segment(List<Music> list, int from, int size) {
+            this.list = list;
+            this.from = from;
+            this.size = size;
+        }
+        
+        Music get(int offset) {
+            return list.get(from + offset);
+        }
+        
+        void addTo(List<Music> target) {
+            target.addAll(list.subList(from, from + size));
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package com.jununmp3.player.service;
+
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.jununmp3.player.model.Music;
+
+/**
+ * Owns the MediaPlayers and drives them from a dedicated HandlerThread.
+ * <p>
+ * Every public method only enqueues a command, so callers never block on storage.
+ * Play and seek commands replace any still-queued command of the same kind, which
+ * makes a burst of skips collapse into a single prepare. Preparation is always
+ * asynchronous, and state changes are reported to the {@link Callback} on the main
+ * thread. A second player is prepared for the upcoming track and chained with
+ * setNextMediaPlayer for gapless transitions.
+ */
+public class PlaybackEngine {
+    
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_PREPARING = 1;
+    public static final int STATE_PLAYING = 2;
+    public static final int STATE_PAUSED = 3;
+    public static final int STATE_STOPPED = 4;
+    public static final int STATE_ERROR = 5;
+    
+    private static final int MSG_INIT = 1;
+    private static final int MSG_PLAY = 2;
+    private static final int MSG_SET_NEXT = 3;
+    private static final int MSG_PAUSE = 4;
+    private static final int MSG_RESUME = 5;
+    private static final int MSG_STOP = 6;
+    private static final int MSG_SEEK = 7;
+    private static final int MSG_RELEASE = 8;
+
+    public interface Callback {
+        void onStateChanged(int state);
+        
+        /**
+         * A track started playing. {@code gapless} is true when it was the chained
+         * next track and took over on its own when the previous one ended.
+         */
+        void onTrackStarted(Music track, boolean gapless);
+        
+        /**
+         * The track ended and there was no prepared next track to continue with.
+         */
+        void onTrackCompleted(Music track);
+        
+        void onError(Music track);
+        
+        /**
+         * The track was at {@code position} at {@code elapsedRealtime}, and is advancing
+         * if {@code playing}. Sent on every state change and seek, never periodically;
+         * see {@link ProgressClock}.
+         */
+        void onProgress(int position, int duration, boolean playing, long elapsedRealtime);
+    }
+    
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Callback callback;
+    
+    // Only touched on the engine thread
+    private MediaPlayer player;
+    private MediaPlayer nextPlayer;
+    private Music currentTrack;
+    private Music nextTrack;
+    private boolean nextPrepared = false;
+    // Whether player is linked to nextPlayer with setNextMediaPlayer
+    private boolean chained = false;
+    private boolean playWhenReady = false;
+    // Whether onTrackStarted has been sent for the track since it was prepared
+    private boolean trackStarted = false;
+    private int pendingSeek = -1;
+    private int state = STATE_IDLE;
+    
+    // Published for readers on other threads
+    private volatile int publishedState = STATE_IDLE;
+    private volatile int position = 0;
+    private volatile int duration = 0;
+    private volatile boolean released = false;
+    
+    public PlaybackEngine(Callback callback) {
+        this.callback = callback;
+        thread = new HandlerThread("PlaybackEngine", Process.THREAD_PRIORITY_AUDIO);
+        thread.start();
+        handler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                handleCommand(msg);
+            }
+        };
+        // Players are created on the engine thread so their callbacks arrive there too
+        handler.sendEmptyMessage(MSG_INIT);
+    }
+    
+    /**
+     * Starts {@code track} from the beginning. Replaces any play or seek that has not
+     * been handled yet.
+     */
+    public void play(Music track) {
+        handler.removeMessages(MSG_PLAY);
+        handler.removeMessages(MSG_SEEK);
+        handler.obtainMessage(MSG_PLAY, track).sendToTarget();
+    }
+    
+    /**
+     * Sets the track to prepare and chain after the current one, or null for none.
+     */
+    public void setNext(Music track) {
+        handler.removeMessages(MSG_SET_NEXT);
+        handler.obtainMessage(MSG_SET_NEXT, track).sendToTarget();
+    }
+    
+    public void pause() {
+        handler.sendEmptyMessage(MSG_PAUSE);
+    }
+    
+    public void resume() {
+        handler.sendEmptyMessage(MSG_RESUME);
+    }
+    
+    public void stop() {
+        handler.removeMessages(MSG_PLAY);
+        handler.sendEmptyMessage(MSG_STOP);
+    }
+    
+    public void seekTo(int positionMs) {
+        handler.removeMessages(MSG_SEEK);
+        handler.obtainMessage(MSG_SEEK, positionMs, 0).sendToTarget();
+    }
+    
+    public void release() {
+        released = true;
+        handler.removeCallbacksAndMessages(null);
+        handler.sendEmptyMessage(MSG_RELEASE);
+    }
+    
+    public int getState() {
+        return publishedState;
+    }
+    
+    /**
+     * Position read at the last state change or seek. {@link ProgressClock} carries it
+     * forward from there.
+     */
+    public int getPosition() {
+        return position;
+    }
+    
+    public int getDuration() {
+        return duration;
+    }
+    
+    private void handleCommand(Message msg) {
+        switch (msg.what) {
+            case MSG_INIT:
+                player = createPlayer();
+                nextPlayer = createPlayer();
+                break;
+            case MSG_PLAY:
+                handlePlay((Music) msg.obj);
+                break;
+            case MSG_SET_NEXT:
+                nextTrack = (Music) msg.obj;
+                if (state == STATE_PLAYING || state == STATE_PAUSED) {
+                    prepareNext();
+                }
+                break;
+            case MSG_PAUSE:
+                handlePause();
+                break;
+            case MSG_RESUME:
+                handleResume();
+                break;
+            case MSG_STOP:
+                handleStop();
+                break;
+            case MSG_SEEK:
+                handleSeek(msg.arg1);
+                break;
+            case MSG_RELEASE:
+                if (player != null) {
+                    player.release();
+                    nextPlayer.release();
+                }
+                thread.quitSafely();
+                break;
+        }
+    }
+    
+    private MediaPlayer createPlayer() {
+        MediaPlayer mediaPlayer = new MediaPlayer();
+        mediaPlayer.setOnPreparedListener(this::onPrepared);
+        mediaPlayer.setOnCompletionListener(this::onCompletion);
+        mediaPlayer.setOnSeekCompleteListener(this::onSeekComplete);
+        mediaPlayer.setOnErrorListener((mp, what, extra) -> {
+            onPlayerError(mp);
+            return true;
+        });
+        return mediaPlayer;
+    }
+    
+    private void handlePlay(Music track) {
+        playWhenReady = true;
+        pendingSeek = -1;
+        
+        if (nextPrepared && isSameTrack(track, nextTrack)) {
+            // Skipped onto the track that is already prepared, no need to load it again
+            swapToNext();
+            player.start();
+            setState(STATE_PLAYING);
+            postTrackStarted(currentTrack, false);
+            return;
+        }
+        
+        clearNext();
+        currentTrack = track;
+        trackStarted = false;
+        position = 0;
+        duration = 0;
+        try {
+            player.reset();
+            player.setDataSource(track.getPath());
+            setState(STATE_PREPARING);
+            player.prepareAsync();
+        } catch (Exception e) {
+            e.printStackTrace();
+            onPlayerError(player);
+        }
+    }
+    
+    private void onPrepared(MediaPlayer mp) {
+        if (mp == nextPlayer) {
+            // The current player may have failed or stopped meanwhile; only a loaded
+            // one can be chained
+            if (state != STATE_PLAYING && state != STATE_PAUSED) {
+                return;
+            }
+            nextPrepared = true;
+            player.setNextMediaPlayer(nextPlayer);
+            chained = true;
+            return;
+        }
+        if (mp != player || state != STATE_PREPARING) {
+            return;
+        }
+        
+        duration = mp.getDuration();
+        if (pendingSeek >= 0) {
+            mp.seekTo(pendingSeek);
+            position = pendingSeek;
+            pendingSeek = -1;
+        }
+        if (playWhenReady) {
+            mp.start();
+            setState(STATE_PLAYING);
+            postTrackStarted(currentTrack, false);
+        } else {
+            setState(STATE_PAUSED);
+        }
+        // Only start reading the next file once the current one is playing
+        prepareNext();
+    }
+    
+    private void onCompletion(MediaPlayer mp) {
+        if (mp != player) {
+            return;
+        }
+        if (nextPrepared) {
+            // The chained player has already been started by the framework
+            swapToNext();
+            setState(STATE_PLAYING);
+            postTrackStarted(currentTrack, true);
+            return;
+        }
+        
+        final Music track = currentTrack;
+        position = duration;
+        setState(STATE_IDLE);
+        post(() -> callback.onTrackCompleted(track));
+    }
+    
+    private void onSeekComplete(MediaPlayer mp) {
+        if (mp == player && (state == STATE_PLAYING || state == STATE_PAUSED)) {
+            // Playback continues from the target only now
+            position = player.getCurrentPosition();
+            postProgress();
+        }
+    }
+    
+    private void onPlayerError(MediaPlayer mp) {
+        if (mp == nextPlayer) {
+            // Not fatal, the transition falls back to a regular prepare
+            clearNext();
+            return;
+        }
+        final Music track = currentTrack;
+        // Drops a prepare still running on the next player too, which would otherwise
+        // chain itself to the reset player
+        clearNext();
+        player.reset();
+        setState(STATE_ERROR);
+        post(() -> callback.onError(track));
+    }
+    
+    private void handlePause() {
+        playWhenReady = false;
+        if (state == STATE_PLAYING) {
+            player.pause();
+            position = player.getCurrentPosition();
+            setState(STATE_PAUSED);
+        }
+    }
+    
+    private void handleResume() {
+        playWhenReady = true;
+        if (state == STATE_PAUSED) {
+            player.start();
+            setState(STATE_PLAYING);
+            // Paused while it was still preparing, so this is the track's first start
+            if (!trackStarted) {
+                postTrackStarted(currentTrack, false);
+            }
+        } else if ((state == STATE_IDLE || state == STATE_STOPPED || state == STATE_ERROR)
+                && currentTrack != null) {
+            handlePlay(currentTrack);
+        }
+    }
+    
+    private void handleStop() {
+        playWhenReady = false;
+        pendingSeek = -1;
+        clearNext();
+        player.reset();
+        position = 0;
+        setState(STATE_STOPPED);
+    }
+    
+    private void handleSeek(int positionMs) {
+        if (state == STATE_PLAYING || state == STATE_PAUSED) {
+            player.seekTo(positionMs);
+            position = positionMs;
+            postProgress();
+        } else if (state == STATE_PREPARING) {
+            pendingSeek = positionMs;
+        }
+    }
+    
+    private void prepareNext() {
+        clearNext();
+        if (nextTrack == null) {
+            return;
+        }
+        try {
+            nextPlayer.setDataSource(nextTrack.getPath());
+            nextPlayer.prepareAsync();
+        } catch (Exception e) {
+            e.printStackTrace();
+            clearNext();
+        }
+    }
+    
+    /**
+     * Drops the prepared next track. The current player is only unlinked if it was
+     * chained: setNextMediaPlayer throws on a player without a data source, which is
+     * what the current one is before the first play and after a reset.
+     */
+    private void clearNext() {
+        if (chained) {
+            player.setNextMediaPlayer(null);
+            chained = false;
+        }
+        nextPlayer.reset();
+        nextPrepared = false;
+    }
+    
+    private void swapToNext() {
+        MediaPlayer previous = player;
+        player = nextPlayer;
+        nextPlayer = previous;
+        currentTrack = nextTrack;
+        nextTrack = null;
+        nextPrepared = false;
+        
+        if (chained) {
+            previous.setNextMediaPlayer(null);
+            chained = false;
+        }
+        previous.reset();
+        position = 0;
+        duration = player.getDuration();
+        // The state usually stays PLAYING, so setState() would not send a new anchor
+        postProgress();
+    }
+    
+    private void setState(int newState) {
+        if (state == newState) {
+            return;
+        }
+        state = newState;
+        publishedState = newState;
+        
+        if (newState == STATE_PLAYING || newState == STATE_PAUSED) {
+            position = player.getCurrentPosition();
+        }
+        post(() -> callback.onStateChanged(newState));
+        postProgress();
+    }
+    
+    private void postTrackStarted(final Music track, final boolean gapless) {
+        trackStarted = true;
+        post(() -> callback.onTrackStarted(track, gapless));
+    }
+    
+    private void postProgress() {
+        final int currentPosition = position;
+        final int currentDuration = duration;
+        final boolean playing = state == STATE_PLAYING;
+        final long realtime = SystemClock.elapsedRealtime();
+        post(() -> callback.onProgress(currentPosition, currentDuration, playing, realtime));
+    }
+    
+    private void post(Runnable runnable) {
+        mainHandler.post(() -> {
+            if (!released) {
+                runnable.run();
+            }
+        });
+    }
+    
+    private static boolean isSameTrack(Music a, Music b) {
+        return a != null && b != null && a.getId() == b.getId() && a.getPath().equals(b.getPath());
+    }
+}
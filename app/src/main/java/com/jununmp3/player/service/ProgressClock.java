@@ -0,0 +1,156 @@
+package com.jununmp3.player.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Playback position derived from one anchor instead of polling the player.
+ * <p>
+ * The engine reports the position it read at each state change or seek together
+ * with the elapsedRealtime of that read; while playing, the position is the anchor
+ * plus the time since. Listeners each ask for their own update interval and are
+ * called on the main thread, at the moments the position crosses a multiple of
+ * that interval, so a once-a-second text changes exactly when the second does. With
+ * no listeners, or while paused, nothing is scheduled at all.
+ */
+public class ProgressClock {
+    
+    public interface Listener {
+        void onProgress(int positionMs, int durationMs);
+    }
+    
+    private static final class Registration {
+        final Listener listener;
+        final long intervalMs;
+        long nextAt;
+        
+        Registration(Listener listener, long intervalMs) {
+            this.listener = listener;
+            this.intervalMs = intervalMs;
+        }
+    }
+    
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<Registration> registrations = new ArrayList<>();
+    // Allocated once; reposted for every tick
+    private final Runnable tick = this::tick;
+    
+    private int anchorPosition = 0;
+    private long anchorRealtime = 0;
+    private int duration = 0;
+    private boolean running = false;
+    
+    /**
+     * Sets a new anchor: the track was at {@code positionMs} at {@code elapsedRealtime}
+     * and is advancing if {@code running}. Every listener is told right away.
+     */
+    public void sync(int positionMs, int durationMs, boolean running, long elapsedRealtime) {
+        this.anchorPosition = positionMs;
+        this.anchorRealtime = elapsedRealtime;
+        this.duration = durationMs;
+        this.running = running;
+        
+        int position = getPosition();
+        for (int i = 0; i < registrations.size(); i++) {
+            Registration registration = registrations.get(i);
+            registration.nextAt = 0;
+            registration.listener.onProgress(position, duration);
+        }
+        schedule(SystemClock.elapsedRealtime());
+    }
+    
+    public int getPosition() {
+        if (!running) {
+            return anchorPosition;
+        }
+        long position = anchorPosition + SystemClock.elapsedRealtime() - anchorRealtime;
+        if (duration > 0 && position > duration) {
+            position = duration;
+        }
+        return (int) position;
+    }
+    
+    public int getDuration() {
+        return duration;
+    }
+    
+    /**
+     * Position at the last anchor; with {@link #getAnchorRealtime()} and
+     * {@link #isRunning()} this describes playback for as long as nothing changes.
+     */
+    public int getAnchorPosition() {
+        return anchorPosition;
+    }
+    
+    public long getAnchorRealtime() {
+        return anchorRealtime;
+    }
+    
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Calls {@code listener} about every {@code intervalMs} while playing, and on
+     * every change of anchor. Adding a listener that is already there changes its
+     * interval.
+     */
+    public void addListener(Listener listener, long intervalMs) {
+        removeListener(listener);
+        registrations.add(new Registration(listener, Math.max(1, intervalMs)));
+        listener.onProgress(getPosition(), duration);
+        schedule(SystemClock.elapsedRealtime());
+    }
+    
+    public void removeListener(Listener listener) {
+        for (int i = registrations.size() - 1; i >= 0; i--) {
+            if (registrations.get(i).listener == listener) {
+                registrations.remove(i);
+            }
+        }
+        if (registrations.isEmpty()) {
+            handler.removeCallbacks(tick);
+        }
+    }
+    
+    private void tick() {
+        long now = SystemClock.elapsedRealtime();
+        int position = getPosition();
+        for (int i = 0; i < registrations.size(); i++) {
+            Registration registration = registrations.get(i);
+            if (registration.nextAt <= now) {
+                registration.listener.onProgress(position, duration);
+            }
+        }
+        schedule(now);
+    }
+    
+    /**
+     * Plans each listener's next call for when the position reaches its next multiple
+     * of the interval, and posts the tick for the earliest one.
+     */
+    private void schedule(long now) {
+        handler.removeCallbacks(tick);
+        if (!running || registrations.isEmpty()) {
+            return;
+        }
+        
+        int position = getPosition();
+        if (duration > 0 && position >= duration) {
+            return;
+        }
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < registrations.size(); i++) {
+            Registration registration = registrations.get(i);
+            if (registration.nextAt <= now) {
+                registration.nextAt = now + registration.intervalMs - position % registration.intervalMs;
+            }
+            earliest = Math.min(earliest, registration.nextAt);
+        }
+        handler.postDelayed(tick, earliest - now);
+    }
+}
@@ -0,0 +1,517 @@
+package com.jununmp3.player.service;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+
+import com.jununmp3.player.model.Music;
+import com.jununmp3.player.utils.LibrarySync;
+import com.jununmp3.player.utils.TrackStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves the playback session so a restarted service can pick up where it stopped.
+ * <p>
+ * Three files, so that each change writes only what it touched: the queue as track
+ * ids (rewritten when its contents change), the drawn part of the shuffle order
+ * (appended to as playback draws further positions), and a small state record with
+ * the cursor, offset and modes (rewritten a moment after the last change). The
+ * queue and order files carry random ids that the state refers to, so files left
+ * from different moments by a kill are recognised. Restoring reads the ids and
+ * looks them up in the persisted library snapshot, without querying MediaStore.
+ */
+final class SessionStore {
+    
+    private static final String QUEUE_FILE = "session_queue.bin";
+    private static final String ORDER_FILE = "session_order.bin";
+    private static final String STATE_FILE = "session_state.bin";
+    private static final int QUEUE_MAGIC = 0x4A505351; // "JPSQ"
+    private static final int ORDER_MAGIC = 0x4A50534F; // "JPSO"
+    private static final int STATE_MAGIC = 0x4A505353; // "JPSS"
+    private static final int FORMAT_VERSION = 1;
+    private static final long STATE_WRITE_DELAY_MS = 2000;
+    private static final long FLUSH_TIMEOUT_MS = 2000;
+    
+    private static final int MSG_WRITE_QUEUE = 1;
+    private static final int MSG_WRITE_ORDER = 2;
+    private static final int MSG_APPEND_ORDER = 3;
+    private static final int MSG_WRITE_STATE = 4;
+    
+    private static final int FLAG_SHUFFLE = 1;
+    private static final int FLAG_REPEAT = 2;
+    
+    /**
+     * A restored session. {@code tracks} is in queue order; {@code drawn} is null
+     * unless the play order was shuffled. {@code complete} is false when tracks or
+     * the shuffle order could not be restored as saved.
+     */
+    static final class Session {
+        final boolean complete;
+        final List<Music> tracks;
+        final boolean shuffleEnabled;
+        final boolean repeatEnabled;
+        final int[] drawn;
+        final int drawnCount;
+        final int cursor;
+        final long currentTrackId;
+        final int positionMs;
+        // Ids of the files read, for markRestored()
+        final long queueId;
+        final long orderId;
+        
+        Session(long queueId, long orderId, boolean complete, List<Music> tracks, boolean shuffleEnabled,
+                boolean repeatEnabled, int[] drawn, int drawnCount, int cursor, long currentTrackId,
+                int positionMs) {
+            this.complete = complete;
+            this.tracks = tracks;
+            this.shuffleEnabled = shuffleEnabled;
+            this.repeatEnabled = repeatEnabled;
+            this.drawn = drawn;
+            this.drawnCount = drawnCount;
+            this.cursor = cursor;
+            this.currentTrackId = currentTrackId;
+            this.positionMs = positionMs;
+            this.queueId = queueId;
+            this.orderId = orderId;
+        }
+    }
+    
+    interface LoadCallback {
+        void onLoaded(Session session);
+    }
+    
+    private static final class QueueWrite {
+        final long queueId;
+        final List<Music> tracks;
+        
+        QueueWrite(long queueId, List<Music> tracks) {
+            this.queueId = queueId;
+            this.tracks = tracks;
+        }
+    }
+    
+    private static final class OrderWrite {
+        final long queueId;
+        final long orderId;
+        final int[] drawn;
+        
+        OrderWrite(long queueId, long orderId, int[] drawn) {
+            this.queueId = queueId;
+            this.orderId = orderId;
+            this.drawn = drawn;
+        }
+    }
+    
+    private static final class State {
+        long queueId;
+        long orderId;
+        int flags;
+        int cursor;
+        long currentTrackId;
+        int positionMs;
+    }
+    
+    private final File directory;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Random random = new Random();
+    
+    // What was last handed to the writer; only touched on the caller's thread
+    private PlayQueue savedQueue;
+    private int savedContentVersion;
+    private long queueId;
+    private ShuffleOrder savedOrder;
+    private int savedDrawnCount;
+    private long orderId;
+    
+    // Latest state, written by the writer thread after STATE_WRITE_DELAY_MS
+    private State pendingState;
+    // Order file the writer last wrote; appends for another order are dropped
+    private long writtenOrderId;
+    
+    SessionStore(Context context) {
+        this.directory = context.getApplicationContext().getFilesDir();
+        
+        thread = new HandlerThread("SessionStore", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                handleWrite(msg);
+            }
+        };
+    }
+    
+    /**
+     * Hands the parts of the session that changed since the last call to the writer.
+     * Cheap when nothing but the offset moved, so it can be called on every tick.
+     */
+    void save(PlayQueue queue, boolean repeatEnabled, int positionMs) {
+        boolean queueChanged = queue != savedQueue || queue.getContentVersion() != savedContentVersion;
+        if (queueChanged) {
+            savedQueue = queue;
+            savedContentVersion = queue.getContentVersion();
+            queueId = newId();
+            handler.obtainMessage(MSG_WRITE_QUEUE, new QueueWrite(queueId, queue.queueOrderSnapshot()))
+                    .sendToTarget();
+        }
+        
+        ShuffleOrder order = queue.getShuffleOrder();
+        if (queueChanged || order != savedOrder) {
+            savedOrder = order;
+            savedDrawnCount = order != null ? order.getDrawnCount() : 0;
+            orderId = order != null ? newId() : 0;
+            if (order != null) {
+                handler.obtainMessage(MSG_WRITE_ORDER, new OrderWrite(queueId, orderId, order.copyDrawn(0)))
+                        .sendToTarget();
+            }
+        } else if (order != null && order.getDrawnCount() > savedDrawnCount) {
+            int[] added = order.copyDrawn(savedDrawnCount);
+            savedDrawnCount = order.getDrawnCount();
+            handler.obtainMessage(MSG_APPEND_ORDER, new OrderWrite(queueId, orderId, added)).sendToTarget();
+        }
+        
+        State state = new State();
+        state.queueId = queueId;
+        state.orderId = orderId;
+        state.flags = (queue.isShuffleEnabled() ? FLAG_SHUFFLE : 0) | (repeatEnabled ? FLAG_REPEAT : 0);
+        state.cursor = queue.getCurrentPosition();
+        Music current = queue.getCurrent();
+        state.currentTrackId = current != null ? current.getId() : -1;
+        state.positionMs = positionMs;
+        synchronized (this) {
+            boolean scheduled = pendingState != null;
+            pendingState = state;
+            if (!scheduled) {
+                handler.sendEmptyMessageDelayed(MSG_WRITE_STATE, STATE_WRITE_DELAY_MS);
+            }
+        }
+    }
+    
+    /**
+     * Writes everything handed over so far, waiting for the writer to finish.
+     */
+    void flush() {
+        final CountDownLatch done = new CountDownLatch(1);
+        if (handler.hasMessages(MSG_WRITE_STATE)) {
+            handler.removeMessages(MSG_WRITE_STATE);
+            handler.sendEmptyMessage(MSG_WRITE_STATE);
+        }
+        handler.post(done::countDown);
+        try {
+            done.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Flushes and stops the writer thread. A session still being loaded is not
+     * delivered; the store cannot be used afterwards.
+     */
+    void release() {
+        flush();
+        mainHandler.removeCallbacksAndMessages(null);
+        thread.quitSafely();
+    }
+    
+    /**
+     * Reads the saved session on the writer thread and delivers it, or null if there
+     * is no usable session, to {@code callback} on the main thread. The files are read
+     * before any write handed over after this call, and the library snapshot is
+     * loaded there too, so the caller's thread never waits on the disk.
+     */
+    void load(final LibrarySync library, final LoadCallback callback) {
+        handler.post(() -> {
+            final Session session = load(library.getSnapshot());
+            mainHandler.post(() -> callback.onLoaded(session));
+        });
+    }
+    
+    /**
+     * Reads the saved session and resolves its tracks against {@code library}.
+     * Tracks that left the library are dropped. Returns null if there is no usable
+     * session.
+     */
+    private Session load(TrackStore library) {
+        State state = readState();
+        if (state == null) {
+            return null;
+        }
+        long[] ids = readQueue(state.queueId);
+        if (ids == null || ids.length == 0) {
+            return null;
+        }
+        
+        // Old queue index -> index once missing tracks are left out, or -1
+        int[] remap = new int[ids.length];
+        int kept = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (library.contains(ids[i])) {
+                remap[i] = kept;
+                ids[kept++] = ids[i];
+            } else {
+                remap[i] = -1;
+            }
+        }
+        if (kept == 0) {
+            return null;
+        }
+        
+        boolean complete = kept == ids.length;
+        boolean shuffle = (state.flags & FLAG_SHUFFLE) != 0;
+        int[] drawn = null;
+        int drawnCount = 0;
+        if (shuffle && state.orderId != 0) {
+            drawn = readOrder(state.queueId, state.orderId, ids.length);
+            if (drawn != null) {
+                for (int index : drawn) {
+                    if (remap[index] >= 0) {
+                        drawn[drawnCount++] = remap[index];
+                    }
+                }
+            } else {
+                complete = false;
+            }
+        }
+        
+        return new Session(state.queueId, state.orderId, complete, library.resolve(ids, kept), shuffle,
+                (state.flags & FLAG_REPEAT) != 0, drawn, drawnCount, state.cursor, state.currentTrackId,
+                state.positionMs);
+    }
+    
+    /**
+     * Marks {@code queue}, restored exactly as {@code session} was loaded, as already
+     * saved, so an unchanged queue is not written again.
+     */
+    void markRestored(PlayQueue queue, Session session) {
+        queueId = session.queueId;
+        orderId = session.orderId;
+        savedQueue = queue;
+        savedContentVersion = queue.getContentVersion();
+        savedOrder = queue.getShuffleOrder();
+        savedDrawnCount = savedOrder != null ? savedOrder.getDrawnCount() : 0;
+        writtenOrderId = orderId;
+    }
+    
+    private long newId() {
+        long id;
+        do {
+            id = random.nextLong();
+        } while (id == 0);
+        return id;
+    }
+    
+    private void handleWrite(Message msg) {
+        switch (msg.what) {
+            case MSG_WRITE_QUEUE:
+                writeQueue((QueueWrite) msg.obj);
+                break;
+            case MSG_WRITE_ORDER:
+                writeOrder((OrderWrite) msg.obj);
+                break;
+            case MSG_APPEND_ORDER:
+                appendOrder((OrderWrite) msg.obj);
+                break;
+            case MSG_WRITE_STATE:
+                State state;
+                synchronized (this) {
+                    state = pendingState;
+                    pendingState = null;
+                }
+                if (state != null) {
+                    writeState(state);
+                }
+                break;
+        }
+    }
+    
+    private void writeQueue(QueueWrite write) {
+        if (handler.hasMessages(MSG_WRITE_QUEUE)) {
+            // Already replaced by a newer queue
+            return;
+        }
+        File temp = new File(directory, QUEUE_FILE + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(QUEUE_MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(write.queueId);
+                out.writeInt(write.tracks.size());
+                for (Music track : write.tracks) {
+                    out.writeLong(track.getId());
+                }
+            }
+            replace(temp, new File(directory, QUEUE_FILE));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    private void writeOrder(OrderWrite write) {
+        File temp = new File(directory, ORDER_FILE + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(ORDER_MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(write.queueId);
+                out.writeLong(write.orderId);
+                for (int index : write.drawn) {
+                    out.writeInt(index);
+                }
+            }
+            replace(temp, new File(directory, ORDER_FILE));
+            writtenOrderId = write.orderId;
+        } catch (IOException e) {
+            e.printStackTrace();
+            writtenOrderId = 0;
+        }
+    }
+    
+    private void appendOrder(OrderWrite write) {
+        if (write.orderId != writtenOrderId) {
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(directory, ORDER_FILE), true)))) {
+            for (int index : write.drawn) {
+                out.writeInt(index);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            // A partial append would misplace later ones
+            writtenOrderId = 0;
+        }
+    }
+    
+    private void writeState(State state) {
+        File temp = new File(directory, STATE_FILE + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(STATE_MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(state.queueId);
+                out.writeLong(state.orderId);
+                out.writeInt(state.flags);
+                out.writeInt(state.cursor);
+                out.writeLong(state.currentTrackId);
+                out.writeInt(state.positionMs);
+            }
+            replace(temp, new File(directory, STATE_FILE));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    private static void replace(File temp, File file) throws IOException {
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+    
+    private State readState() {
+        File file = new File(directory, STATE_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != STATE_MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            State state = new State();
+            state.queueId = in.readLong();
+            state.orderId = in.readLong();
+            state.flags = in.readInt();
+            state.cursor = in.readInt();
+            state.currentTrackId = in.readLong();
+            state.positionMs = in.readInt();
+            return state;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+    
+    private long[] readQueue(long expectedQueueId) {
+        File file = new File(directory, QUEUE_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        // One read and a bulk decode; this is on the service's startup path
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            byte[] bytes = new byte[(int) file.length()];
+            in.readFully(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (buffer.getInt() != QUEUE_MAGIC || buffer.getInt() != FORMAT_VERSION
+                    || buffer.getLong() != expectedQueueId) {
+                return null;
+            }
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / 8) {
+                return null;
+            }
+            long[] ids = new long[count];
+            buffer.asLongBuffer().get(ids);
+            return ids;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+    
+    /**
+     * Reads the drawn shuffle positions. An append cut short by a kill only loses
+     * its last, partial entry.
+     */
+    private int[] readOrder(long expectedQueueId, long expectedOrderId, int queueSize) {
+        File file = new File(directory, ORDER_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != ORDER_MAGIC || in.readInt() != FORMAT_VERSION
+                    || in.readLong() != expectedQueueId || in.readLong() != expectedOrderId) {
+                return null;
+            }
+            int count = (int) Math.min(queueSize, (file.length() - 24) / 4);
+            int[] drawn = new int[count];
+            boolean[] seen = new boolean[queueSize];
+            int read = 0;
+            try {
+                while (read < count) {
+                    int index = in.readInt();
+                    if (index < 0 || index >= queueSize || seen[index]) {
+                        return null;
+                    }
+                    seen[index] = true;
+                    drawn[read++] = index;
+                }
+            } catch (EOFException e) {
+                // Partial trailing entry
+            }
+            return Arrays.copyOf(drawn, read);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
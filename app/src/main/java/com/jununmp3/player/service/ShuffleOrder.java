@@ -0,0 +1,169 @@
+package com.jununmp3.player.service;
+
+import com.jununmp3.player.utils.LongIntMap;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A random play order over queue indices 0..size-1, drawn lazily with Fisher-Yates.
+ * <p>
+ * Only the positions asked for so far are materialized. Creating an order costs
+ * O(1), and so does each new position. The indices not yet drawn form an implicit
+ * identity array; the few slots a draw has disturbed are kept in a sparse map.
+ * <p>
+ * An order never changes once drawn. Edits to the queue derive a new order from the
+ * drawn positions alone, in O(drawn): the positions not drawn yet have no order, only
+ * the set of indices they will be drawn from.
+ */
+final class ShuffleOrder {
+    
+    private final int size;
+    private final Random random;
+    private int[] order = new int[16];
+    private int drawn = 0;
+    // Slot -> index for undrawn slots that no longer hold their own index
+    private final LongIntMap displaced = new LongIntMap();
+    
+    /**
+     * Creates an order that starts with {@code first}, or is fully random if it is
+     * not a valid index.
+     */
+    ShuffleOrder(int size, int first, Random random) {
+        this.size = size;
+        this.random = random;
+        if (first >= 0 && first < size) {
+            // Nothing has been drawn yet, so index first is still in slot first
+            draw(first);
+        }
+    }
+    
+    /**
+     * Recreates an order whose first {@code drawnCount} positions are {@code drawn},
+     * as saved from {@link #copyDrawn}. The rest is drawn anew.
+     */
+    ShuffleOrder(int size, int[] drawn, int drawnCount, Random random) {
+        this.size = size;
+        this.random = random;
+        this.order = Arrays.copyOf(drawn, Math.max(16, drawnCount));
+        this.drawn = drawnCount;
+        
+        // The undrawn slots must hold exactly the undrawn indices. Slots from
+        // drawnCount on hold their own index by default, so each drawn index there
+        // frees its slot for an undrawn index below drawnCount.
+        boolean[] lowDrawn = new boolean[drawnCount];
+        for (int i = 0; i < drawnCount; i++) {
+            if (drawn[i] < drawnCount) {
+                lowDrawn[drawn[i]] = true;
+            }
+        }
+        int undrawn = 0;
+        for (int i = 0; i < drawnCount; i++) {
+            if (drawn[i] >= drawnCount) {
+                while (lowDrawn[undrawn]) {
+                    undrawn++;
+                }
+                displaced.put(drawn[i], undrawn++);
+            }
+        }
+    }
+    
+    int size() {
+        return size;
+    }
+    
+    int getDrawnCount() {
+        return drawn;
+    }
+    
+    /**
+     * The queue indices of the positions drawn so far, from position {@code from}.
+     */
+    int[] copyDrawn(int from) {
+        return Arrays.copyOfRange(order, from, drawn);
+    }
+    
+    /**
+     * Queue index played at {@code position} of this order.
+     */
+    int get(int position) {
+        while (drawn <= position) {
+            draw(drawn + random.nextInt(size - drawn));
+        }
+        return order[position];
+    }
+    
+    /**
+     * This order after {@code count} indices were inserted into the queue at
+     * {@code index}. Drawn indices from there on move up by {@code count}; the new
+     * ones are played from {@code position} on if the order has been drawn that far,
+     * or drawn at random with the rest otherwise.
+     */
+    ShuffleOrder withInserted(int position, int index, int count) {
+        int[] result = new int[drawn + count];
+        int length = 0;
+        for (int i = 0; i <= drawn; i++) {
+            if (i == position) {
+                for (int j = 0; j < count; j++) {
+                    result[length++] = index + j;
+                }
+            }
+            if (i < drawn) {
+                result[length++] = order[i] >= index ? order[i] + count : order[i];
+            }
+        }
+        return new ShuffleOrder(size + count, result, length, random);
+    }
+    
+    /**
+     * This order without drawn position {@code position}, whose index was removed from
+     * the queue. Drawn indices after it move down by one.
+     */
+    ShuffleOrder withRemoved(int position) {
+        int removed = order[position];
+        int[] result = new int[drawn - 1];
+        int length = 0;
+        for (int i = 0; i < drawn; i++) {
+            if (i != position) {
+                result[length++] = order[i] > removed ? order[i] - 1 : order[i];
+            }
+        }
+        return new ShuffleOrder(size - 1, result, length, random);
+    }
+    
+    /**
+     * This order with drawn position {@code from} moved to {@code to}.
+     */
+    ShuffleOrder withMoved(int from, int to) {
+        int[] result = Arrays.copyOf(order, drawn);
+        int index = result[from];
+        if (from < to) {
+            System.arraycopy(result, from + 1, result, from, to - from);
+        } else {
+            System.arraycopy(result, to, result, to + 1, from - to);
+        }
+        result[to] = index;
+        return new ShuffleOrder(size, result, drawn, random);
+    }
+    
+    private int valueAt(int slot) {
+        int value = displaced.get(slot);
+        return value == LongIntMap.MISSING ? slot : value;
+    }
+    
+    /**
+     * One Fisher-Yates step: swaps {@code slot} into the next position.
+     */
+    private void draw(int slot) {
+        int value = valueAt(slot);
+        if (slot != drawn) {
+            displaced.put(slot, valueAt(drawn));
+        }
+        displaced.remove(drawn);
+        
+        if (drawn == order.length) {
+            order = Arrays.copyOf(order, Math.min(size, drawn * 2));
+        }
+        order[drawn++] = value;
+    }
+}
@@ -0,0 +1,41 @@
+package com.jununmp3.player.utils;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.annotation.GlideModule;
+import com.bumptech.glide.load.DecodeFormat;
+import com.bumptech.glide.load.engine.cache.InternalCacheDiskCacheFactory;
+import com.bumptech.glide.load.engine.cache.LruResourceCache;
+import com.bumptech.glide.load.engine.cache.MemorySizeCalculator;
+import com.bumptech.glide.module.AppGlideModule;
+import com.bumptech.glide.request.RequestOptions;
+
+/**
+ * Sizes Glide's caches for album art thumbnails.
+ * <p>
+ * Thumbnails are small and opaque, so they are decoded as RGB_565, which doubles how
+ * many albums fit in the memory LRU. Downsampled thumbnails are written to a
+ * dedicated disk cache so the original artwork is only decoded once per size.
+ */
+@GlideModule
+public class AlbumArtGlideModule extends AppGlideModule {
+    
+    private static final String DISK_CACHE_NAME = "album_art";
+    private static final long DISK_CACHE_SIZE = 64L * 1024 * 1024;
+    
+    @Override
+    public void applyOptions(@NonNull Context context, @NonNull GlideBuilder builder) {
+        MemorySizeCalculator calculator = new MemorySizeCalculator.Builder(context).build();
+        builder.setMemoryCache(new LruResourceCache(calculator.getMemoryCacheSize()));
+        builder.setDiskCache(new InternalCacheDiskCacheFactory(context, DISK_CACHE_NAME, DISK_CACHE_SIZE));
+        builder.setDefaultRequestOptions(new RequestOptions().format(DecodeFormat.PREFER_RGB_565));
+    }
+    
+    @Override
+    public boolean isManifestParsingEnabled() {
+        return false;
+    }
+}
@@ -0,0 +1,158 @@
+package com.jununmp3.player.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.load.engine.GlideException;
+import com.bumptech.glide.request.RequestListener;
+import com.bumptech.glide.request.target.CustomTarget;
+import com.bumptech.glide.request.target.Target;
+import com.bumptech.glide.request.transition.Transition;
+import com.jununmp3.player.R;
+
+/**
+ * Loads album art into ImageViews through Glide.
+ * <p>
+ * Requests are keyed by album id (through the albumart URI) and decoded at the
+ * view's own size, so every track of an album shares one cached thumbnail. Albums
+ * that turn out to have no art are remembered and skipped on later binds.
+ */
+public class AlbumArtLoader {
+    
+    /**
+     * Receives art loaded with {@link #loadBitmap}, on the main thread. The bitmap is
+     * null if the album has no art, or if the load was cancelled; it belongs to Glide
+     * and must not be used after the load is cancelled.
+     */
+    public interface BitmapCallback {
+        void onBitmapLoaded(long albumId, Bitmap bitmap);
+    }
+    
+    // Art handed to the system (notification, media session) is parceled across
+    // processes, so it is kept small. One size means one decode for both.
+    public static final int MEDIA_ART_SIZE_PX = 320;
+    
+    private static final int DEFAULT_SIZE_PX = 256;
+
+    // Album ids whose art failed to load, so scrolling does not retry them every bind
+    private static final LongIntMap missingArt = new LongIntMap();
+    
+    public static void load(ImageView view, long albumId) {
+        if (albumId <= 0 || isMissing(albumId)) {
+            clear(view);
+            return;
+        }
+        
+        Glide.with(view)
+                .load(Uri.parse(MusicLibrary.getAlbumArtUri(albumId)))
+                .override(getTargetSize(view))
+                .diskCacheStrategy(DiskCacheStrategy.RESOURCE)
+                .placeholder(R.drawable.music_placeholder)
+                .error(R.drawable.music_placeholder)
+                .dontAnimate()
+                .listener(new RequestListener<Drawable>() {
+                    @Override
+                    public boolean onLoadFailed(GlideException e, Object model,
+                                                Target<Drawable> target, boolean isFirstResource) {
+                        synchronized (missingArt) {
+                            missingArt.put(albumId, 0);
+                        }
+                        return false;
+                    }
+                    
+                    @Override
+                    public boolean onResourceReady(Drawable resource, Object model, Target<Drawable> target,
+                                                   DataSource dataSource, boolean isFirstResource) {
+                        return false;
+                    }
+                })
+                .into(view);
+    }
+    
+    /**
+     * Loads the art of {@code albumId} as a bitmap of about {@code sizePx} square, for
+     * places that are not views, such as notifications. Goes through the same caches
+     * as {@link #load}. Returns the request, to pass to {@link #cancel}, or null if
+     * the album is known to have no art, in which case the callback has been called.
+     */
+    public static Target<Bitmap> loadBitmap(Context context, long albumId, int sizePx,
+                                            BitmapCallback callback) {
+        if (albumId <= 0 || isMissing(albumId)) {
+            callback.onBitmapLoaded(albumId, null);
+            return null;
+        }
+        
+        return Glide.with(context.getApplicationContext())
+                .asBitmap()
+                .load(Uri.parse(MusicLibrary.getAlbumArtUri(albumId)))
+                .override(sizePx)
+                .diskCacheStrategy(DiskCacheStrategy.RESOURCE)
+                .into(new CustomTarget<Bitmap>() {
+                    @Override
+                    public void onResourceReady(Bitmap resource, Transition<? super Bitmap> transition) {
+                        callback.onBitmapLoaded(albumId, resource);
+                    }
+                    
+                    @Override
+                    public void onLoadFailed(Drawable errorDrawable) {
+                        synchronized (missingArt) {
+                            missingArt.put(albumId, 0);
+                        }
+                        callback.onBitmapLoaded(albumId, null);
+                    }
+                    
+                    @Override
+                    public void onLoadCleared(Drawable placeholder) {
+                        callback.onBitmapLoaded(albumId, null);
+                    }
+                });
+    }
+    
+    /**
+     * Cancels a request made with {@link #loadBitmap} and releases its bitmap.
+     */
+    public static void cancel(Context context, Target<Bitmap> request) {
+        if (request != null) {
+            Glide.with(context.getApplicationContext()).clear(request);
+        }
+    }
+    
+    /**
+     * Cancels any pending request for {@code view} and shows the placeholder.
+     */
+    public static void clear(ImageView view) {
+        Glide.with(view).clear(view);
+        view.setImageResource(R.drawable.music_placeholder);
+    }
+    
+    /**
+     * Forgets albums recorded as having no art, e.g. after the library changed.
+     */
+    public static void resetMissing() {
+        synchronized (missingArt) {
+            missingArt.clear();
+        }
+    }
+    
+    private static boolean isMissing(long albumId) {
+        synchronized (missingArt) {
+            return missingArt.containsKey(albumId);
+        }
+    }
+    
+    private static int getTargetSize(ImageView view) {
+        // Art views have a fixed size in the layouts, so it is known before layout
+        ViewGroup.LayoutParams params = view.getLayoutParams();
+        if (params != null && params.width > 0) {
+            return params.width;
+        }
+        return DEFAULT_SIZE_PX;
+    }
+}
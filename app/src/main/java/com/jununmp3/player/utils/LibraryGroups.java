@@ -0,0 +1,299 @@
+package com.jununmp3.player.utils;
+
+import com.jununmp3.player.model.Music;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Artists, albums and their tracks, grouped from one {@link TrackStore} snapshot.
+ * <p>
+ * One pass over the store counts the tracks and sums the durations of every artist
+ * and album; a second places the track indices, so each group's tracks are a slice
+ * of one int array. An artist's tracks are in title order like the store; an album's
+ * are then sorted once by track number, ties keeping title order. Artists and albums
+ * are addressed by position in name order, and looking one up by name, or getting its
+ * tracks, is a map lookup and a list view, with no query. Names MediaStore reports as
+ * {@code <unknown>} are left out of the listings, as MusicLibrary always did.
+ */
+public final class LibraryGroups {
+    
+    private static final String UNKNOWN = "<unknown>";
+    // Album artist of an album whose tracks have more than one artist
+    private static final int VARIOUS = -2;
+    
+    private final TrackStore store;
+    
+    // By artist position
+    private final int[] artistRefs;
+    private final int[] artistStarts;
+    private final int[] artistTracks;
+    private final long[] artistDurations;
+    // Album positions of each artist: artistAlbums[artistAlbumStarts[p]] up to [p + 1]
+    private final int[] artistAlbumStarts;
+    private final int[] artistAlbums;
+    private final Map<String, Integer> artistPositions = new HashMap<>();
+    
+    // By album position
+    private final int[] albumRefs;
+    private final int[] albumStarts;
+    private final int[] albumTracks;
+    private final long[] albumDurations;
+    private final int[] albumArtistRefs;
+    private final Map<String, Integer> albumPositions = new HashMap<>();
+    
+    public LibraryGroups(TrackStore store) {
+        this.store = store;
+        int artistRefCount = store.getArtistCount();
+        int albumRefCount = store.getAlbumNameCount();
+        int size = store.size();
+        
+        // Counts, durations and album artists, by ref
+        int[] artistCounts = new int[artistRefCount];
+        int[] albumCounts = new int[albumRefCount];
+        long[] artistRefDurations = new long[artistRefCount];
+        long[] albumRefDurations = new long[albumRefCount];
+        int[] albumArtists = new int[albumRefCount];
+        Arrays.fill(albumArtists, -1);
+        for (int i = 0; i < size; i++) {
+            int artist = store.getArtistRef(i);
+            int album = store.getAlbumRef(i);
+            long duration = store.getDuration(i);
+            artistCounts[artist]++;
+            albumCounts[album]++;
+            artistRefDurations[artist] += duration;
+            albumRefDurations[album] += duration;
+            if (albumArtists[album] == -1) {
+                albumArtists[album] = artist;
+            } else if (albumArtists[album] != artist) {
+                albumArtists[album] = VARIOUS;
+            }
+        }
+        
+        artistRefs = listNames(store, artistRefCount, artistCounts, false, artistPositions);
+        albumRefs = listNames(store, albumRefCount, albumCounts, true, albumPositions);
+        int[] artistPositionByRef = positionsByRef(artistRefs, artistRefCount);
+        int[] albumPositionByRef = positionsByRef(albumRefs, albumRefCount);
+        
+        artistStarts = new int[artistRefs.length + 1];
+        artistDurations = new long[artistRefs.length];
+        for (int p = 0; p < artistRefs.length; p++) {
+            artistStarts[p + 1] = artistStarts[p] + artistCounts[artistRefs[p]];
+            artistDurations[p] = artistRefDurations[artistRefs[p]];
+        }
+        albumStarts = new int[albumRefs.length + 1];
+        albumDurations = new long[albumRefs.length];
+        albumArtistRefs = new int[albumRefs.length];
+        for (int p = 0; p < albumRefs.length; p++) {
+            albumStarts[p + 1] = albumStarts[p] + albumCounts[albumRefs[p]];
+            albumDurations[p] = albumRefDurations[albumRefs[p]];
+            albumArtistRefs[p] = albumArtists[albumRefs[p]];
+        }
+        
+        // Place the tracks; the store is in title order, so each group is too until the
+        // albums are sorted by track number
+        artistTracks = new int[artistStarts[artistRefs.length]];
+        albumTracks = new int[albumStarts[albumRefs.length]];
+        int[] artistNext = Arrays.copyOf(artistStarts, artistRefs.length);
+        int[] albumNext = Arrays.copyOf(albumStarts, albumRefs.length);
+        for (int i = 0; i < size; i++) {
+            int artist = artistPositionByRef[store.getArtistRef(i)];
+            int album = albumPositionByRef[store.getAlbumRef(i)];
+            if (artist >= 0) {
+                artistTracks[artistNext[artist]++] = i;
+            }
+            if (album >= 0) {
+                albumTracks[albumNext[album]++] = i;
+            }
+        }
+        for (int p = 0; p < albumRefs.length; p++) {
+            sortByTrackNumber(store, albumTracks, albumStarts[p], albumStarts[p + 1]);
+        }
+        
+        // Each artist's distinct albums, in album name order
+        artistAlbumStarts = new int[artistRefs.length + 1];
+        int[] albums = new int[Math.max(16, artistRefs.length)];
+        int albumCount = 0;
+        int[] seenBy = new int[albumRefs.length];
+        Arrays.fill(seenBy, -1);
+        for (int p = 0; p < artistRefs.length; p++) {
+            int first = albumCount;
+            for (int t = artistStarts[p]; t < artistStarts[p + 1]; t++) {
+                int album = albumPositionByRef[store.getAlbumRef(artistTracks[t])];
+                if (album >= 0 && seenBy[album] != p) {
+                    seenBy[album] = p;
+                    if (albumCount == albums.length) {
+                        albums = Arrays.copyOf(albums, albumCount * 2);
+                    }
+                    albums[albumCount++] = album;
+                }
+            }
+            Arrays.sort(albums, first, albumCount);
+            artistAlbumStarts[p + 1] = albumCount;
+        }
+        artistAlbums = Arrays.copyOf(albums, albumCount);
+    }
+    
+    /**
+     * Refs of the names to list, sorted by name, recording each name's position.
+     */
+    private static int[] listNames(TrackStore store, int refCount, int[] counts, boolean albums,
+                                   Map<String, Integer> positions) {
+        final String[] names = new String[refCount];
+        List<Integer> listed = new ArrayList<>();
+        for (int r = 0; r < refCount; r++) {
+            names[r] = albums ? store.getAlbumName(r) : store.getArtistName(r);
+            if (counts[r] > 0 && names[r] != null && !names[r].equals(UNKNOWN)) {
+                listed.add(r);
+            }
+        }
+        Collections.sort(listed, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return String.CASE_INSENSITIVE_ORDER.compare(names[a], names[b]);
+            }
+        });
+        
+        int[] refs = new int[listed.size()];
+        for (int p = 0; p < refs.length; p++) {
+            refs[p] = listed.get(p);
+            positions.put(names[refs[p]], p);
+        }
+        return refs;
+    }
+    
+    /**
+     * Stable sort of {@code tracks[from]} up to {@code tracks[to]} by track number.
+     */
+    private static void sortByTrackNumber(final TrackStore store, int[] tracks, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        Integer[] boxed = new Integer[to - from];
+        for (int i = from; i < to; i++) {
+            boxed[i - from] = tracks[i];
+        }
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(store.getTrackNumber(a), store.getTrackNumber(b));
+            }
+        });
+        for (int i = from; i < to; i++) {
+            tracks[i] = boxed[i - from];
+        }
+    }
+    
+    private static int[] positionsByRef(int[] refs, int refCount) {
+        int[] positions = new int[refCount];
+        Arrays.fill(positions, -1);
+        for (int p = 0; p < refs.length; p++) {
+            positions[refs[p]] = p;
+        }
+        return positions;
+    }
+    
+    /**
+     * The snapshot these groups were built from.
+     */
+    public TrackStore getStore() {
+        return store;
+    }
+    
+    // Artists
+    
+    public int getArtistCount() {
+        return artistRefs.length;
+    }
+    
+    /**
+     * Position of the artist named {@code name}, or -1 if it has no tracks.
+     */
+    public int findArtist(String name) {
+        Integer position = artistPositions.get(name);
+        return position != null ? position : -1;
+    }
+    
+    public String getArtistName(int position) {
+        return store.getArtistName(artistRefs[position]);
+    }
+    
+    public int getArtistTrackCount(int position) {
+        return artistStarts[position + 1] - artistStarts[position];
+    }
+    
+    public long getArtistDuration(int position) {
+        return artistDurations[position];
+    }
+    
+    public int getArtistAlbumCount(int position) {
+        return artistAlbumStarts[position + 1] - artistAlbumStarts[position];
+    }
+    
+    /**
+     * Album position of the {@code index}th album of the artist at {@code position}.
+     */
+    public int getArtistAlbum(int position, int index) {
+        return artistAlbums[artistAlbumStarts[position] + index];
+    }
+    
+    /**
+     * The artist's tracks by title, as a read-only view.
+     */
+    public List<Music> getArtistTracks(int position) {
+        return store.view(artistTracks, artistStarts[position], getArtistTrackCount(position));
+    }
+    
+    // Albums
+    
+    public int getAlbumCount() {
+        return albumRefs.length;
+    }
+    
+    /**
+     * Position of the album named {@code name}, or -1 if it has no tracks.
+     */
+    public int findAlbum(String name) {
+        Integer position = albumPositions.get(name);
+        return position != null ? position : -1;
+    }
+    
+    public String getAlbumName(int position) {
+        return store.getAlbumName(albumRefs[position]);
+    }
+    
+    /**
+     * The artist of the album's tracks, or null if they have more than one.
+     */
+    public String getAlbumArtist(int position) {
+        int ref = albumArtistRefs[position];
+        return ref != VARIOUS ? store.getArtistName(ref) : null;
+    }
+    
+    /**
+     * MediaStore album id of the album's first track, for its art.
+     */
+    public long getAlbumId(int position) {
+        return store.getAlbumId(albumTracks[albumStarts[position]]);
+    }
+    
+    public int getAlbumTrackCount(int position) {
+        return albumStarts[position + 1] - albumStarts[position];
+    }
+    
+    public long getAlbumDuration(int position) {
+        return albumDurations[position];
+    }
+    
+    /**
+     * The album's tracks by track number, as a read-only view.
+     */
+    public List<Music> getAlbumTracks(int position) {
+        return store.view(albumTracks, albumStarts[position], getAlbumTrackCount(position));
+    }
+}
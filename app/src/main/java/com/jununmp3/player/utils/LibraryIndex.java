@@ -0,0 +1,242 @@
+package com.jununmp3.player.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact on-disk snapshot of the music library, read through a memory map so the
+ * list can be shown before any ContentResolver query runs.
+ * <p>
+ * Layout (big-endian): header, a deduplicated UTF-8 string table, one column per
+ * numeric field, one column of string-table indices per text field, and a trailing
+ * CRC32 over everything before it. A file with the wrong magic, format version or
+ * checksum is ignored and the caller falls back to a MediaStore scan.
+ */
+public class LibraryIndex {
+    
+    private static final int MAGIC = 0x4A4D4C49; // "JMLI"
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 4 + 4;
+    private static final int CHECKSUM_SIZE = 8;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private final String mediaVersion;
+    private final long generation;
+    private final long modifiedWatermark;
+    private final long addedWatermark;
+    private final TrackStore tracks;
+    
+    public LibraryIndex(String mediaVersion, long generation, long modifiedWatermark,
+                        long addedWatermark, TrackStore tracks) {
+        this.mediaVersion = mediaVersion;
+        this.generation = generation;
+        this.modifiedWatermark = modifiedWatermark;
+        this.addedWatermark = addedWatermark;
+        this.tracks = tracks;
+    }
+    
+    public String getMediaVersion() { return mediaVersion; }
+    public long getGeneration() { return generation; }
+    public long getModifiedWatermark() { return modifiedWatermark; }
+    public long getAddedWatermark() { return addedWatermark; }
+    public TrackStore getTracks() { return tracks; }
+    
+    /**
+     * Writes the index to a temporary file and renames it over {@code file}, so a
+     * crash mid-write never leaves a truncated index behind.
+     */
+    public void write(File file) throws IOException {
+        // String 0 is always the media version, the rest are deduplicated track fields
+        List<String> strings = new ArrayList<>();
+        Map<String, Integer> stringIds = new HashMap<>();
+        intern(mediaVersion, strings, stringIds);
+        
+        int count = tracks.size();
+        int[] titles = new int[count];
+        int[] artists = new int[count];
+        int[] albums = new int[count];
+        int[] paths = new int[count];
+        int[] displayNames = new int[count];
+        for (int i = 0; i < count; i++) {
+            titles[i] = intern(tracks.getTitle(i), strings, stringIds);
+            artists[i] = intern(tracks.getArtist(i), strings, stringIds);
+            albums[i] = intern(tracks.getAlbum(i), strings, stringIds);
+            paths[i] = intern(tracks.getPath(i), strings, stringIds);
+            displayNames[i] = intern(tracks.getDisplayName(i), strings, stringIds);
+        }
+        
+        File tmp = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            BufferedOutputStream buffered = new BufferedOutputStream(fos, 64 * 1024);
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(buffered, crc));
+            
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(generation);
+            out.writeLong(modifiedWatermark);
+            out.writeLong(addedWatermark);
+            out.writeInt(count);
+            out.writeInt(strings.size());
+            
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            
+            for (int i = 0; i < count; i++) out.writeLong(tracks.getId(i));
+            for (int i = 0; i < count; i++) out.writeLong(tracks.getAlbumId(i));
+            for (int i = 0; i < count; i++) out.writeLong(tracks.getDuration(i));
+            for (int i = 0; i < count; i++) out.writeLong(tracks.getSize(i));
+            for (int i = 0; i < count; i++) out.writeInt(tracks.getTrackNumber(i));
+            writeInts(out, titles);
+            writeInts(out, artists);
+            writeInts(out, albums);
+            writeInts(out, paths);
+            writeInts(out, displayNames);
+            out.flush();
+            
+            // The checksum itself is written past the CheckedOutputStream
+            new DataOutputStream(buffered).writeLong(crc.getValue());
+            buffered.flush();
+            fos.getFD().sync();
+        }
+        
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+    
+    /**
+     * Maps and decodes {@code file}, or returns null if it is missing, from another
+     * format version, or fails its checksum.
+     */
+    public static LibraryIndex read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            
+            long length = channel.size();
+            if (length < HEADER_SIZE + CHECKSUM_SIZE || length > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int bodyLength = (int) length - CHECKSUM_SIZE;
+            if (checksum(buffer, bodyLength) != buffer.getLong(bodyLength)) {
+                return null;
+            }
+            
+            long generation = buffer.getLong();
+            long modifiedWatermark = buffer.getLong();
+            long addedWatermark = buffer.getLong();
+            int count = buffer.getInt();
+            int stringCount = buffer.getInt();
+            
+            String[] strings = new String[stringCount];
+            byte[] scratch = new byte[256];
+            for (int i = 0; i < stringCount; i++) {
+                int size = buffer.getInt();
+                if (size > scratch.length) {
+                    scratch = new byte[Math.max(size, scratch.length * 2)];
+                }
+                buffer.get(scratch, 0, size);
+                strings[i] = new String(scratch, 0, size, UTF_8);
+            }
+            
+            long[] ids = readLongs(buffer, count);
+            long[] albumIds = readLongs(buffer, count);
+            long[] durations = readLongs(buffer, count);
+            long[] sizes = readLongs(buffer, count);
+            int[] trackNumbers = readInts(buffer, count);
+            int[] titles = readInts(buffer, count);
+            int[] artists = readInts(buffer, count);
+            int[] albums = readInts(buffer, count);
+            int[] paths = readInts(buffer, count);
+            int[] displayNames = readInts(buffer, count);
+            
+            // Rows go straight into the columnar store, no Music objects are created
+            TrackStore.Builder builder = new TrackStore.Builder(count);
+            for (int i = 0; i < count; i++) {
+                builder.add(ids[i], strings[titles[i]], strings[artists[i]], strings[albums[i]],
+                        albumIds[i], durations[i], strings[paths[i]], sizes[i],
+                        strings[displayNames[i]], trackNumbers[i]);
+            }
+            
+            // The index is written in snapshot order, so it does not need re-sorting
+            return new LibraryIndex(strings[0], generation, modifiedWatermark,
+                    addedWatermark, builder.build(false));
+        } catch (Exception e) {
+            // Truncated or otherwise unreadable, treat it as absent
+            e.printStackTrace();
+            return null;
+        }
+    }
+    
+    private static int intern(String value, List<String> strings, Map<String, Integer> stringIds) {
+        Integer id = stringIds.get(value);
+        if (id == null) {
+            id = strings.size();
+            strings.add(value);
+            stringIds.put(value, id);
+        }
+        return id;
+    }
+    
+    private static long checksum(ByteBuffer buffer, int length) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[64 * 1024];
+        ByteBuffer view = buffer.duplicate();
+        view.position(0);
+        int remaining = length;
+        while (remaining > 0) {
+            int size = Math.min(chunk.length, remaining);
+            view.get(chunk, 0, size);
+            crc.update(chunk, 0, size);
+            remaining -= size;
+        }
+        return crc.getValue();
+    }
+    
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+    
+    private static long[] readLongs(ByteBuffer buffer, int count) {
+        long[] values = new long[count];
+        buffer.asLongBuffer().get(values);
+        buffer.position(buffer.position() + count * 8);
+        return values;
+    }
+    
+    private static int[] readInts(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * 4);
+        return values;
+    }
+}
@@ -0,0 +1,274 @@
+package com.jununmp3.player.utils;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.Log;
+
+import com.jununmp3.player.model.Music;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs MusicLibrary queries on a small background pool and delivers results on the
+ * main looper.
+ * <p>
+ * Every query runs on a named channel. Submitting to a channel cancels whatever was
+ * still running there, so only the newest search is ever delivered while the user
+ * types. Per-query latency is recorded and can be read from {@link #getStats()}.
+ */
+public class LibraryQueryExecutor {
+    
+    private static final String TAG = "LibraryQueryExecutor";
+    private static final int POOL_SIZE = 2;
+    private static final int MAX_SEARCH_RESULTS = 200;
+    
+    public static final String CHANNEL_LIBRARY = "library";
+    public static final String CHANNEL_SEARCH = "search";
+    public static final String CHANNEL_BROWSE = "browse";
+    public static final String CHANNEL_PLAYLISTS = "playlists";
+    // Prefix of the browse tree's channels, one per page it builds
+    public static final String CHANNEL_BROWSE_TREE = "browseTree";
+    
+    public interface Query<T> {
+        T run(CancellationSignal signal);
+    }
+    
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+    
+    private static LibraryQueryExecutor instance;
+    private final ThreadPoolExecutor executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Request<?>> activeRequests = new HashMap<>();
+    private final Map<String, QueryStats> stats = new HashMap<>();
+    
+    private LibraryQueryExecutor() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "LibraryQuery-" + threadCount.incrementAndGet());
+        
+        executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+    
+    public static synchronized LibraryQueryExecutor getInstance() {
+        if (instance == null) {
+            instance = new LibraryQueryExecutor();
+        }
+        return instance;
+    }
+    
+    /**
+     * Runs {@code query} in the background, cancelling any request still pending on
+     * {@code channel}. {@code callback} is invoked on the main thread unless the
+     * request was cancelled or superseded first.
+     */
+    public <T> Request<T> submit(String channel, String name, Query<T> query, Callback<T> callback) {
+        Request<T> request = new Request<>(channel, name, query, callback);
+        synchronized (activeRequests) {
+            Request<?> previous = activeRequests.put(channel, request);
+            if (previous != null) {
+                previous.cancel();
+            }
+        }
+        executor.execute(request);
+        return request;
+    }
+    
+    /**
+     * Cancels whatever is pending on {@code channel}.
+     */
+    public void cancel(String channel) {
+        synchronized (activeRequests) {
+            Request<?> request = activeRequests.remove(channel);
+            if (request != null) {
+                request.cancel();
+            }
+        }
+    }
+    
+    public Request<TrackStore> syncLibrary(Context context, Callback<TrackStore> callback) {
+        final LibrarySync librarySync = LibrarySync.getInstance(context);
+        return submit(CHANNEL_LIBRARY, "syncLibrary", signal -> librarySync.sync(), callback);
+    }
+    
+    public Request<List<Music>> getAllMusic(Context context, Callback<List<Music>> callback) {
+        final Context appContext = context.getApplicationContext();
+        return submit(CHANNEL_LIBRARY, "getAllMusic",
+                signal -> MusicLibrary.getAllMusic(appContext, signal), callback);
+    }
+    
+    /**
+     * Searches the in-memory {@link SearchIndex} rather than MediaStore, so every
+     * keystroke is answered without a cursor.
+     */
+    public Request<List<Music>> searchMusic(Context context, final String query,
+                                            Callback<List<Music>> callback) {
+        final LibrarySync librarySync = LibrarySync.getInstance(context);
+        return submit(CHANNEL_SEARCH, "searchMusic",
+                signal -> librarySync.search(query, MAX_SEARCH_RESULTS), callback);
+    }
+    
+    /**
+     * Browse lookups are answered from {@link LibraryGroups}; they only run here because
+     * the groups are built on first use after a library change.
+     */
+    public Request<List<Music>> getMusicByArtist(Context context, final String artistName,
+                                                 Callback<List<Music>> callback) {
+        final Context appContext = context.getApplicationContext();
+        return submit(CHANNEL_BROWSE, "getMusicByArtist",
+                signal -> MusicLibrary.getMusicByArtist(appContext, artistName), callback);
+    }
+    
+    public Request<List<Music>> getMusicByAlbum(Context context, final String albumName,
+                                                Callback<List<Music>> callback) {
+        final Context appContext = context.getApplicationContext();
+        return submit(CHANNEL_BROWSE, "getMusicByAlbum",
+                signal -> MusicLibrary.getMusicByAlbum(appContext, albumName), callback);
+    }
+    
+    /**
+     * Returns a copy of the latency statistics, keyed by query name.
+     */
+    public Map<String, QueryStats> getStats() {
+        synchronized (stats) {
+            Map<String, QueryStats> copy = new HashMap<>();
+            for (Map.Entry<String, QueryStats> entry : stats.entrySet()) {
+                copy.put(entry.getKey(), new QueryStats(entry.getValue()));
+            }
+            return copy;
+        }
+    }
+    
+    private void record(String name, long elapsedNanos) {
+        synchronized (stats) {
+            QueryStats queryStats = stats.get(name);
+            if (queryStats == null) {
+                queryStats = new QueryStats();
+                stats.put(name, queryStats);
+            }
+            queryStats.add(elapsedNanos);
+        }
+    }
+    
+    private void finish(Request<?> request) {
+        synchronized (activeRequests) {
+            if (activeRequests.get(request.channel) == request) {
+                activeRequests.remove(request.channel);
+            }
+        }
+    }
+    
+    public final class Request<T> implements Runnable {
+        private final String channel;
+        private final String name;
+        private final Query<T> query;
+        private final Callback<T> callback;
+        private final CancellationSignal signal = new CancellationSignal();
+        private volatile boolean cancelled = false;
+        
+        private Request(String channel, String name, Query<T> query, Callback<T> callback) {
+            this.channel = channel;
+            this.name = name;
+            this.query = query;
+            this.callback = callback;
+        }
+        
+        public void cancel() {
+            cancelled = true;
+            signal.cancel();
+        }
+        
+        public boolean isCancelled() {
+            return cancelled;
+        }
+        
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            
+            long start = System.nanoTime();
+            final T result;
+            try {
+                result = query.run(signal);
+            } catch (OperationCanceledException e) {
+                return;
+            } catch (Exception e) {
+                Log.e(TAG, name + " failed", e);
+                finish(this);
+                return;
+            }
+            if (cancelled) {
+                return;
+            }
+            record(name, System.nanoTime() - start);
+            
+            mainHandler.post(() -> {
+                // Re-check on the main thread, a newer request may have arrived meanwhile
+                if (!cancelled) {
+                    finish(this);
+                    if (callback != null) {
+                        callback.onResult(result);
+                    }
+                }
+            });
+        }
+    }
+    
+    public static class QueryStats {
+        private int count;
+        private long totalNanos;
+        private long lastNanos;
+        private long maxNanos;
+        
+        QueryStats() {}
+        
+        QueryStats(QueryStats other) {
+            this.count = other.count;
+            this.totalNanos = other.totalNanos;
+            this.lastNanos = other.lastNanos;
+            this.maxNanos = other.maxNanos;
+        }
+        
+        void add(long elapsedNanos) {
+            count++;
+            totalNanos += elapsedNanos;
+            lastNanos = elapsedNanos;
+            maxNanos = Math.max(maxNanos, elapsedNanos);
+        }
+        
+        public int getCount() { return count; }
+        public long getLastMillis() { return TimeUnit.NANOSECONDS.toMillis(lastNanos); }
+        public long getMaxMillis() { return TimeUnit.NANOSECONDS.toMillis(maxNanos); }
+        public long getAverageMillis() {
+            return count > 0 ? TimeUnit.NANOSECONDS.toMillis(totalNanos / count) : 0;
+        }
+        
+        @Override
+        public String toString() {
+            return "QueryStats{" +
+                    "count=" + count +
+                    ", avgMs=" + getAverageMillis() +
+                    ", lastMs=" + getLastMillis() +
+                    ", maxMs=" + getMaxMillis() +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package com.jununmp3.player.utils;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.MediaStore;
+
+import com.jununmp3.player.model.Music;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps an in-memory snapshot of the music library in step with MediaStore.
+ * <p>
+ * The first sync does a full scan. Every later sync only pulls rows whose
+ * generation (Android 11+) or date_modified/date_added (older releases) moved past
+ * the persisted watermark, and applies them as a diff to the snapshot. Deleted rows
+ * are found with an id-only query, which is skipped when the row count matches.
+ * <p>
+ * Readers never wait for a sync. A sync queries MediaStore and builds the next
+ * snapshot on its own, then swaps it in; the lock readers share is only held for the
+ * swap. If a query fails the current snapshot stays in place.
+ */
+public class LibrarySync {
+    
+    /**
+     * Told after a {@link #sync()} that changed the snapshot.
+     */
+    public interface ChangeListener {
+        /**
+         * {@code changedIds} are the tracks added, updated or removed, or null after a
+         * full rescan when any track may have changed.
+         */
+        void onLibraryChanged(TrackStore snapshot, long[] changedIds);
+    }
+    
+    private static final String INDEX_FILE = "library_index.bin";
+    
+    private static LibrarySync instance;
+    private final Context context;
+    private volatile TrackStore snapshot = TrackStore.EMPTY;
+    private volatile boolean snapshotLoaded = false;
+    private volatile SearchIndex searchIndex;
+    private volatile LibraryGroups groups;
+    private volatile ChangeListener changeListener;
+    private volatile boolean rescanRequested = false;
+    
+    // Held for a whole sync, so syncs run one at a time; readers never take it
+    private final Object syncLock = new Object();
+    
+    // Sync state, guarded by syncLock. Changes collected during one sync are applied
+    // to the snapshot in a single pass
+    private final Map<Long, Music> pendingUpserts = new HashMap<>();
+    private final Set<Long> pendingRemovals = new HashSet<>();
+    
+    private String mediaVersion = "";
+    private long generation = -1;
+    private long modifiedWatermark = -1;
+    private long addedWatermark = -1;
+    
+    private LibrarySync(Context context) {
+        this.context = context.getApplicationContext();
+    }
+    
+    public static synchronized LibrarySync getInstance(Context context) {
+        if (instance == null) {
+            instance = new LibrarySync(context);
+        }
+        return instance;
+    }
+    
+    /**
+     * Returns the last persisted snapshot without touching MediaStore, so the list can
+     * be shown before {@link #sync()} has reconciled it. Empty on the very first run.
+     */
+    public TrackStore getSnapshot() {
+        ensureLoaded();
+        return snapshot;
+    }
+    
+    /**
+     * Returns the search index over the snapshot, building it on first use. After that
+     * it is updated in place by every {@link #sync()}.
+     */
+    public SearchIndex getSearchIndex() {
+        ensureLoaded();
+        SearchIndex index = searchIndex;
+        if (index == null) {
+            // Under the swap lock, so no sync can change the snapshot mid-build
+            synchronized (this) {
+                if (searchIndex == null) {
+                    searchIndex = new SearchIndex(snapshot);
+                }
+                index = searchIndex;
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * Returns the artist and album groupings of the snapshot, building them on first
+     * use after each change.
+     */
+    public LibraryGroups getGroups() {
+        ensureLoaded();
+        TrackStore store = snapshot;
+        LibraryGroups current = groups;
+        if (current == null || current.getStore() != store) {
+            current = new LibraryGroups(store);
+            groups = current;
+        }
+        return current;
+    }
+    
+    /**
+     * Searches the snapshot through {@link #getSearchIndex()}.
+     */
+    public List<Music> search(String query, int limit) {
+        SearchIndex index = getSearchIndex();
+        long[] ids = index.search(query, limit);
+        TrackStore store = getSnapshot();
+        
+        List<Music> results = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            Music music = store.findById(id);
+            if (music != null) {
+                results.add(music);
+            }
+        }
+        return results;
+    }
+    
+    public void setChangeListener(ChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+    
+    /**
+     * Brings the snapshot up to date with MediaStore and returns it, sorted by title.
+     */
+    public TrackStore sync() {
+        TrackStore store;
+        long[] changedIds = null;
+        boolean changed;
+        synchronized (syncLock) {
+            ensureLoaded();
+            TrackStore base = snapshot;
+            
+            String currentVersion = getMediaVersion();
+            boolean rescan = rescanRequested || generation < 0 || !currentVersion.equals(mediaVersion);
+            rescanRequested = false;
+            long oldGeneration = generation;
+            long oldModifiedWatermark = modifiedWatermark;
+            long oldAddedWatermark = addedWatermark;
+            
+            boolean complete;
+            if (rescan) {
+                complete = fullScan();
+            } else {
+                complete = pullChanges(base);
+                if (complete) {
+                    removeDeleted(base);
+                }
+            }
+            if (!complete) {
+                // Keep the current snapshot and watermarks; the next sync tries again
+                pendingUpserts.clear();
+                pendingRemovals.clear();
+                generation = oldGeneration;
+                modifiedWatermark = oldModifiedWatermark;
+                addedWatermark = oldAddedWatermark;
+                rescanRequested = rescan;
+                return base;
+            }
+            mediaVersion = currentVersion;
+            
+            changed = rescan || !pendingUpserts.isEmpty() || !pendingRemovals.isEmpty();
+            if (!changed) {
+                return base;
+            }
+            if (!rescan) {
+                changedIds = pendingIds();
+            }
+            store = applyPending(base, rescan);
+            saveState(store);
+        }
+        
+        // Outside the lock, the listener may take its own
+        ChangeListener listener = changeListener;
+        if (listener != null) {
+            listener.onLibraryChanged(store, changedIds);
+        }
+        return store;
+    }
+    
+    /**
+     * Makes the next {@link #sync()} rescan everything.
+     */
+    public void invalidate() {
+        rescanRequested = true;
+    }
+    
+    private void ensureLoaded() {
+        if (!snapshotLoaded) {
+            synchronized (this) {
+                if (!snapshotLoaded) {
+                    loadState();
+                    snapshotLoaded = true;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Collects every live row as an upsert against an empty library. False if the
+     * query failed.
+     */
+    private boolean fullScan() {
+        generation = 0;
+        modifiedWatermark = 0;
+        addedWatermark = 0;
+        
+        String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0";
+        return applyRows(TrackStore.EMPTY, selection, null);
+    }
+    
+    private boolean pullChanges(TrackStore base) {
+        String selection;
+        String[] selectionArgs;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            selection = MediaStore.MediaColumns.GENERATION_MODIFIED + " > ?";
+            selectionArgs = new String[] {String.valueOf(generation)};
+        } else {
+            // Both columns are in seconds, so re-pull the boundary second; rows that did
+            // not actually change are dropped in applyRows.
+            selection = MediaStore.Audio.Media.DATE_MODIFIED + " >= ? OR " +
+                       MediaStore.Audio.Media.DATE_ADDED + " >= ?";
+            selectionArgs = new String[] {
+                String.valueOf(modifiedWatermark), String.valueOf(addedWatermark)
+            };
+        }
+        return applyRows(base, selection, selectionArgs);
+    }
+    
+    /**
+     * Collects the rows matching {@code selection} as changes to {@code base}. False if
+     * the query failed.
+     */
+    private boolean applyRows(TrackStore base, String selection, String[] selectionArgs) {
+        List<String> projection = new ArrayList<>();
+        Collections.addAll(projection, MusicLibrary.MUSIC_PROJECTION);
+        projection.add(MediaStore.Audio.Media.IS_MUSIC);
+        projection.add(MediaStore.Audio.Media.DATE_MODIFIED);
+        projection.add(MediaStore.Audio.Media.DATE_ADDED);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            projection.add(MediaStore.MediaColumns.GENERATION_MODIFIED);
+        }
+        
+        Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+        
+        try (Cursor cursor = context.getContentResolver().query(
+                uri, projection.toArray(new String[0]), selection, selectionArgs, null)) {
+            
+            if (cursor == null) {
+                return false;
+            }
+            if (cursor.moveToFirst()) {
+                MusicLibrary.MusicColumns columns = new MusicLibrary.MusicColumns(cursor);
+                int isMusicColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.IS_MUSIC);
+                int modifiedColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATE_MODIFIED);
+                int addedColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATE_ADDED);
+                int generationColumn = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                        ? cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.GENERATION_MODIFIED)
+                        : -1;
+                
+                do {
+                    Music music = cursor.getInt(isMusicColumn) != 0 ? columns.read(cursor) : null;
+                    if (music != null) {
+                        int index = base.indexOf(music.getId());
+                        if (index < 0 || !base.sameContent(index, music)) {
+                            pendingUpserts.put(music.getId(), music);
+                        }
+                        pendingRemovals.remove(music.getId());
+                    } else {
+                        // The row stopped qualifying as music, treat it as removed
+                        long id = columns.readId(cursor);
+                        pendingUpserts.remove(id);
+                        if (base.contains(id)) {
+                            pendingRemovals.add(id);
+                        }
+                    }
+                    
+                    modifiedWatermark = Math.max(modifiedWatermark, cursor.getLong(modifiedColumn));
+                    addedWatermark = Math.max(addedWatermark, cursor.getLong(addedColumn));
+                    if (generationColumn >= 0) {
+                        generation = Math.max(generation, cursor.getLong(generationColumn));
+                    }
+                } while (cursor.moveToNext());
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+    
+    private void removeDeleted(TrackStore base) {
+        String[] projection = {MediaStore.Audio.Media._ID};
+        String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0 AND " +
+                          MediaStore.Audio.Media.DURATION + " > 0 AND " +
+                          MediaStore.Audio.Media.DATA + " IS NOT NULL";
+        Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+        
+        try (Cursor cursor = context.getContentResolver().query(
+                uri, projection, selection, null, null)) {
+            
+            if (cursor == null) {
+                return;
+            }
+            // Every insert and update has already been collected, so the live rows are a
+            // subset of the pending snapshot and equal counts mean nothing was deleted.
+            if (cursor.getCount() == pendingSize(base)) {
+                return;
+            }
+            
+            LongIntMap liveIds = new LongIntMap(cursor.getCount());
+            int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
+            while (cursor.moveToNext()) {
+                liveIds.put(cursor.getLong(idColumn), 0);
+            }
+            
+            for (int i = 0; i < base.size(); i++) {
+                long id = base.getId(i);
+                if (!liveIds.containsKey(id)) {
+                    pendingRemovals.add(id);
+                    pendingUpserts.remove(id);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Size {@code base} will have once the pending changes are applied.
+     */
+    private int pendingSize(TrackStore base) {
+        int size = base.size() - pendingRemovals.size();
+        for (Long id : pendingUpserts.keySet()) {
+            if (!base.contains(id)) {
+                size++;
+            }
+        }
+        return size;
+    }
+    
+    private long[] pendingIds() {
+        long[] ids = new long[pendingUpserts.size() + pendingRemovals.size()];
+        int count = 0;
+        for (Long id : pendingUpserts.keySet()) {
+            ids[count++] = id;
+        }
+        for (Long id : pendingRemovals) {
+            ids[count++] = id;
+        }
+        return ids;
+    }
+    
+    /**
+     * Builds the next snapshot from {@code base} and the pending changes, then swaps
+     * it in. Only the swap, and the search index catching up, hold the reader lock.
+     */
+    private TrackStore applyPending(TrackStore base, boolean rescan) {
+        TrackStore next = (rescan ? TrackStore.EMPTY : base).apply(pendingUpserts, pendingRemovals);
+        
+        synchronized (this) {
+            if (rescan) {
+                searchIndex = null;
+            } else if (searchIndex != null) {
+                for (Long id : pendingRemovals) {
+                    int index = base.indexOf(id);
+                    searchIndex.remove(id, base.getTitle(index), base.getArtist(index),
+                            base.getAlbum(index));
+                }
+                for (Music music : pendingUpserts.values()) {
+                    int index = base.indexOf(music.getId());
+                    if (index >= 0) {
+                        searchIndex.remove(music.getId(), base.getTitle(index),
+                                base.getArtist(index), base.getAlbum(index));
+                    }
+                    searchIndex.add(music.getId(), music.getTitle(), music.getArtist(), music.getAlbum());
+                }
+            }
+            snapshot = next;
+        }
+        
+        // Art may have been added along with the changed rows
+        AlbumArtLoader.resetMissing();
+        pendingUpserts.clear();
+        pendingRemovals.clear();
+        return next;
+    }
+    
+    private String getMediaVersion() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            String version = MediaStore.getVersion(context);
+            return version != null ? version : "";
+        }
+        return "";
+    }
+    
+    private void loadState() {
+        LibraryIndex index = LibraryIndex.read(new File(context.getFilesDir(), INDEX_FILE));
+        if (index == null) {
+            return;
+        }
+        
+        mediaVersion = index.getMediaVersion();
+        generation = index.getGeneration();
+        modifiedWatermark = index.getModifiedWatermark();
+        addedWatermark = index.getAddedWatermark();
+        snapshot = index.getTracks();
+    }
+    
+    private void saveState(TrackStore store) {
+        LibraryIndex index = new LibraryIndex(mediaVersion, generation,
+                modifiedWatermark, addedWatermark, store);
+        try {
+            index.write(new File(context.getFilesDir(), INDEX_FILE));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.jununmp3.player.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from long keys to non-negative int values, used to look
+ * up track positions by id without boxing.
+ */
+public class LongIntMap {
+    
+    public static final int MISSING = -1;
+    
+    private long[] keys;
+    private int[] values;
+    private int size;
+    
+    public LongIntMap() {
+        this(16);
+    }
+    
+    public LongIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, MISSING);
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public int get(long key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (values[slot] == MISSING) {
+                return MISSING;
+            }
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+        }
+    }
+    
+    public boolean containsKey(long key) {
+        return get(key) != MISSING;
+    }
+    
+    public void put(long key, int value) {
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (values[slot] == MISSING) {
+                keys[slot] = key;
+                values[slot] = value;
+                size++;
+                return;
+            }
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+        }
+    }
+    
+    public int remove(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != MISSING && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (values[slot] == MISSING) {
+            return MISSING;
+        }
+        
+        int removed = values[slot];
+        values[slot] = MISSING;
+        size--;
+        
+        // Shift the rest of the probe run back so lookups never stop early
+        for (int next = (slot + 1) & mask; values[next] != MISSING; next = (next + 1) & mask) {
+            int home = hash(keys[next]) & mask;
+            boolean movable = slot <= next ? (home <= slot || home > next) : (home <= slot && home > next);
+            if (movable) {
+                keys[slot] = keys[next];
+                values[slot] = values[next];
+                values[next] = MISSING;
+                slot = next;
+            }
+        }
+        return removed;
+    }
+    
+    public void clear() {
+        Arrays.fill(values, MISSING);
+        size = 0;
+    }
+    
+    /**
+     * Copies the entries, in no particular order, into arrays that hold at least
+     * {@link #size()} elements.
+     */
+    public void getEntries(long[] keysOut, int[] valuesOut) {
+        int count = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != MISSING) {
+                keysOut[count] = keys[i];
+                valuesOut[count] = values[i];
+                count++;
+            }
+        }
+    }
+    
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, MISSING);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != MISSING) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+    
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
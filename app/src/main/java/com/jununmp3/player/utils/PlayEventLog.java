@@ -0,0 +1,578 @@
+package com.jununmp3.player.utils;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Append-only log of what was played, how long it was listened to and how it ended.
+ * <p>
+ * {@link #record} only copies the event into primitive arrays; a background thread
+ * appends them in batches of fixed-size records to numbered segment files and starts
+ * a new segment once the current one is full. Segments older than
+ * {@link #RAW_RETENTION_DAYS}, or beyond {@link #MAX_SEGMENTS}, are folded into
+ * per-day, per-track totals and deleted. Totals older than
+ * {@link #DAILY_RETENTION_DAYS} are merged further into {@link #BUCKET_DAYS}-day
+ * buckets, so years of history stay small. Queries combine both and run on the
+ * calling thread.
+ * <p>
+ * Segment layout (big-endian): magic, format version, then records of track id,
+ * start time, listened ms, seek count and end reason. A torn record at the end of
+ * the last segment is cut off when the log is opened.
+ */
+public class PlayEventLog {
+    
+    public static final int REASON_COMPLETED = 0;
+    public static final int REASON_SKIPPED = 1;
+    public static final int REASON_STOPPED = 2;
+    public static final int REASON_ERROR = 3;
+    
+    public static final int RAW_RETENTION_DAYS = 90;
+    public static final int DAILY_RETENTION_DAYS = 730;
+    public static final int BUCKET_DAYS = 30;
+    public static final int MAX_SEGMENTS = 64;
+    
+    // Listening at least this long counts as a play even if the track was skipped
+    private static final long MIN_PLAY_MS = 30000;
+    
+    private static final String LOG_DIR = "play_events";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String AGGREGATE_FILE = "aggregates.bin";
+    private static final int MAGIC = 0x4A504556; // "JPEV"
+    private static final int AGGREGATE_MAGIC = 0x4A504147; // "JPAG"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 8 + 8 + 4 + 2 + 1;
+    private static final long SEGMENT_MAX_BYTES = 256 * 1024;
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    private static final long MAX_MILLIS = DAY_MS * 1000000L * 365;
+    
+    private static final int BATCH_SIZE = 64;
+    private static final long WRITE_DELAY_MS = 10000;
+    private static final int MSG_WRITE = 1;
+    
+    private static PlayEventLog instance;
+    private final File directory;
+    private final Handler handler;
+    
+    // Events not written yet, guarded by this
+    private long[] pendingTrackIds = new long[BATCH_SIZE];
+    private long[] pendingStartTimes = new long[BATCH_SIZE];
+    private int[] pendingListened = new int[BATCH_SIZE];
+    private short[] pendingSeeks = new short[BATCH_SIZE];
+    private byte[] pendingReasons = new byte[BATCH_SIZE];
+    private int pendingCount = 0;
+    
+    // File state, guarded by fileLock
+    private final Object fileLock = new Object();
+    private List<Integer> segments;
+    private int foldedThrough = 0;
+    
+    public static class Totals {
+        private int plays;
+        private int skips;
+        private long listenedMs;
+        
+        void add(int plays, int skips, long listenedMs) {
+            this.plays += plays;
+            this.skips += skips;
+            this.listenedMs += listenedMs;
+        }
+        
+        public int getPlays() { return plays; }
+        public int getSkips() { return skips; }
+        public long getListenedMs() { return listenedMs; }
+    }
+    
+    private interface Sink {
+        void add(long trackId, int day, int plays, int skips, long listenedMs);
+    }
+    
+    private PlayEventLog(Context context) {
+        directory = new File(context.getApplicationContext().getFilesDir(), LOG_DIR);
+        
+        HandlerThread thread = new HandlerThread("PlayEventLog", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_WRITE) {
+                    flush();
+                }
+            }
+        };
+    }
+    
+    public static synchronized PlayEventLog getInstance(Context context) {
+        if (instance == null) {
+            instance = new PlayEventLog(context);
+        }
+        return instance;
+    }
+    
+    /**
+     * Writes buffered events now. Does nothing if the log was never opened in this
+     * process.
+     */
+    public static void flushPendingWrites() {
+        PlayEventLog log;
+        synchronized (PlayEventLog.class) {
+            log = instance;
+        }
+        if (log != null) {
+            log.handler.removeMessages(MSG_WRITE);
+            log.flush();
+        }
+    }
+    
+    /**
+     * Buffers one listening session. Cheap enough for the main thread: no I/O and
+     * no allocation unless the writer has fallen behind.
+     */
+    public synchronized void record(long trackId, long startedAt, long listenedMs, int seeks, int reason) {
+        if (pendingCount == pendingTrackIds.length) {
+            int capacity = pendingCount * 2;
+            pendingTrackIds = Arrays.copyOf(pendingTrackIds, capacity);
+            pendingStartTimes = Arrays.copyOf(pendingStartTimes, capacity);
+            pendingListened = Arrays.copyOf(pendingListened, capacity);
+            pendingSeeks = Arrays.copyOf(pendingSeeks, capacity);
+            pendingReasons = Arrays.copyOf(pendingReasons, capacity);
+        }
+        int i = pendingCount++;
+        pendingTrackIds[i] = trackId;
+        pendingStartTimes[i] = startedAt;
+        pendingListened[i] = (int) Math.min(listenedMs, Integer.MAX_VALUE);
+        pendingSeeks[i] = (short) Math.min(seeks, Short.MAX_VALUE);
+        pendingReasons[i] = (byte) reason;
+        
+        if (pendingCount == BATCH_SIZE) {
+            handler.removeMessages(MSG_WRITE);
+            handler.sendEmptyMessage(MSG_WRITE);
+        } else if (pendingCount == 1) {
+            handler.sendEmptyMessageDelayed(MSG_WRITE, WRITE_DELAY_MS);
+        }
+    }
+    
+    /**
+     * Plays, skips and listening time per track between {@code fromMillis} and
+     * {@code toMillis}. History older than {@link #RAW_RETENTION_DAYS} is only kept
+     * per day, so the range is rounded to whole days (or buckets) there.
+     */
+    public Map<Long, Totals> getTrackTotals(long fromMillis, long toMillis) {
+        final Map<Long, Totals> result = new HashMap<>();
+        scan(fromMillis, toMillis, (trackId, day, plays, skips, listenedMs) ->
+                totalsFor(result, trackId).add(plays, skips, listenedMs));
+        return result;
+    }
+    
+    /**
+     * Like {@link #getTrackTotals}, grouped by the artist the track has in
+     * {@code library}. Tracks no longer in the library are left out.
+     */
+    public Map<String, Totals> getArtistTotals(long fromMillis, long toMillis, final TrackStore library) {
+        final Map<String, Totals> result = new HashMap<>();
+        scan(fromMillis, toMillis, (trackId, day, plays, skips, listenedMs) -> {
+            int index = library.indexOf(trackId);
+            if (index >= 0) {
+                totalsFor(result, library.getArtist(index)).add(plays, skips, listenedMs);
+            }
+        });
+        return result;
+    }
+    
+    /**
+     * Totals per local calendar day, keyed by days since the epoch. Bucketed history
+     * is reported on the first day of its bucket.
+     */
+    public Map<Integer, Totals> getDailyTotals(long fromMillis, long toMillis) {
+        final Map<Integer, Totals> result = new HashMap<>();
+        scan(fromMillis, toMillis, (trackId, day, plays, skips, listenedMs) ->
+                totalsFor(result, day).add(plays, skips, listenedMs));
+        return result;
+    }
+    
+    private static <K> Totals totalsFor(Map<K, Totals> totals, K key) {
+        Totals entry = totals.get(key);
+        if (entry == null) {
+            entry = new Totals();
+            totals.put(key, entry);
+        }
+        return entry;
+    }
+    
+    private void scan(long fromMillis, long toMillis, Sink sink) {
+        flush();
+        int fromDay = toDay(fromMillis);
+        int toDay = toDay(toMillis);
+        
+        synchronized (fileLock) {
+            try {
+                ensureOpened();
+                readAggregates(fromDay, toDay, sink);
+                for (int number : segments) {
+                    ByteBuffer records = readSegment(number);
+                    while (records != null && records.remaining() >= RECORD_SIZE) {
+                        long trackId = records.getLong();
+                        long startedAt = records.getLong();
+                        int listened = records.getInt();
+                        records.getShort();
+                        int reason = records.get();
+                        if (startedAt >= fromMillis && startedAt < toMillis) {
+                            boolean played = isPlay(reason, listened);
+                            sink.add(trackId, toDay(startedAt), played ? 1 : 0, played ? 0 : 1, listened);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    private static boolean isPlay(int reason, long listenedMs) {
+        return reason == REASON_COMPLETED || listenedMs >= MIN_PLAY_MS;
+    }
+    
+    private void flush() {
+        synchronized (fileLock) {
+            int count;
+            byte[] data;
+            synchronized (this) {
+                count = pendingCount;
+                if (count == 0) {
+                    return;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(count * RECORD_SIZE);
+                for (int i = 0; i < count; i++) {
+                    buffer.putLong(pendingTrackIds[i]);
+                    buffer.putLong(pendingStartTimes[i]);
+                    buffer.putInt(pendingListened[i]);
+                    buffer.putShort(pendingSeeks[i]);
+                    buffer.put(pendingReasons[i]);
+                }
+                data = buffer.array();
+            }
+            
+            boolean written = false;
+            boolean rotated = false;
+            try {
+                ensureOpened();
+                rotated = append(data);
+                written = true;
+            } catch (IOException e) {
+                // The events stay buffered for the next attempt
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                if (written) {
+                    dropPending(count);
+                }
+                if (pendingCount > 0) {
+                    handler.removeMessages(MSG_WRITE);
+                    handler.sendEmptyMessageDelayed(MSG_WRITE, WRITE_DELAY_MS);
+                }
+            }
+            if (rotated) {
+                try {
+                    compact(System.currentTimeMillis());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+    
+    private void dropPending(int count) {
+        int remaining = pendingCount - count;
+        System.arraycopy(pendingTrackIds, count, pendingTrackIds, 0, remaining);
+        System.arraycopy(pendingStartTimes, count, pendingStartTimes, 0, remaining);
+        System.arraycopy(pendingListened, count, pendingListened, 0, remaining);
+        System.arraycopy(pendingSeeks, count, pendingSeeks, 0, remaining);
+        System.arraycopy(pendingReasons, count, pendingReasons, 0, remaining);
+        pendingCount = remaining;
+    }
+    
+    /**
+     * Lists the segments and repairs the log after a crash: segments that were already
+     * folded into the totals are deleted and a torn record at the end is cut off.
+     */
+    private void ensureOpened() throws IOException {
+        if (segments != null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        foldedThrough = readFoldedThrough();
+        
+        List<Integer> found = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                int number = segmentNumber(file.getName());
+                if (number < 0) {
+                    continue;
+                }
+                if (number <= foldedThrough) {
+                    file.delete();
+                } else {
+                    found.add(number);
+                }
+            }
+        }
+        Collections.sort(found);
+        
+        if (!found.isEmpty()) {
+            File last = segmentFile(found.get(found.size() - 1));
+            long length = last.length();
+            if (length < HEADER_SIZE) {
+                last.delete();
+                found.remove(found.size() - 1);
+            } else if ((length - HEADER_SIZE) % RECORD_SIZE != 0) {
+                try (RandomAccessFile file = new RandomAccessFile(last, "rw")) {
+                    file.setLength(length - (length - HEADER_SIZE) % RECORD_SIZE);
+                }
+            }
+        }
+        segments = found;
+    }
+    
+    /**
+     * Appends records to the last segment, starting a new one when it is full.
+     * Returns true if a new segment was started.
+     */
+    private boolean append(byte[] data) throws IOException {
+        boolean rotated = false;
+        int last = segments.isEmpty() ? foldedThrough : segments.get(segments.size() - 1);
+        File file = segmentFile(last);
+        if (segments.isEmpty() || file.length() + data.length > SEGMENT_MAX_BYTES) {
+            last++;
+            file = segmentFile(last);
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+            }
+            segments.add(last);
+            rotated = segments.size() > 1;
+        }
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(data);
+        }
+        return rotated;
+    }
+    
+    /**
+     * Folds old full segments into the totals file. The file records the last segment
+     * folded in and is replaced before any segment is deleted, so a crash in between
+     * never counts a segment twice.
+     */
+    private void compact(long now) throws IOException {
+        long rawCutoff = now - RAW_RETENTION_DAYS * DAY_MS;
+        List<Integer> folded = new ArrayList<>();
+        Map<DayTrack, Totals> totals = null;
+        
+        // The last segment is still being written and is never folded
+        for (int i = 0; i < segments.size() - 1; i++) {
+            int number = segments.get(i);
+            ByteBuffer records = readSegment(number);
+            boolean overLimit = segments.size() - folded.size() > MAX_SEGMENTS;
+            if (!overLimit && records != null && newestStart(records) >= rawCutoff) {
+                break;
+            }
+            if (totals == null) {
+                totals = loadAggregates(toDay(now) - DAILY_RETENTION_DAYS);
+            }
+            while (records != null && records.remaining() >= RECORD_SIZE) {
+                long trackId = records.getLong();
+                long startedAt = records.getLong();
+                int listened = records.getInt();
+                records.getShort();
+                int reason = records.get();
+                boolean played = isPlay(reason, listened);
+                totalsFor(totals, new DayTrack(toDay(startedAt), trackId))
+                        .add(played ? 1 : 0, played ? 0 : 1, listened);
+            }
+            folded.add(number);
+        }
+        if (folded.isEmpty()) {
+            return;
+        }
+        
+        writeAggregates(totals, folded.get(folded.size() - 1));
+        for (int number : folded) {
+            segmentFile(number).delete();
+        }
+        segments.removeAll(folded);
+    }
+    
+    private static long newestStart(ByteBuffer records) {
+        long newest = Long.MIN_VALUE;
+        for (int position = records.position(); position + RECORD_SIZE <= records.limit(); position += RECORD_SIZE) {
+            newest = Math.max(newest, records.getLong(position + 8));
+        }
+        return newest;
+    }
+    
+    /**
+     * Returns the records of a segment, or null if it is unreadable.
+     */
+    private ByteBuffer readSegment(int number) throws IOException {
+        File file = segmentFile(number);
+        byte[] data = new byte[(int) file.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(data);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (data.length < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            return null;
+        }
+        return buffer;
+    }
+    
+    private int readFoldedThrough() {
+        File file = new File(directory, AGGREGATE_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() == AGGREGATE_MAGIC && in.readInt() == FORMAT_VERSION) {
+                return in.readInt();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+    
+    private void readAggregates(int fromDay, int toDay, Sink sink) throws IOException {
+        File file = new File(directory, AGGREGATE_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != AGGREGATE_MAGIC || in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+            in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int day = in.readInt();
+                long trackId = in.readLong();
+                int plays = in.readInt();
+                int skips = in.readInt();
+                long listenedMs = in.readLong();
+                if (day >= fromDay && day <= toDay) {
+                    sink.add(trackId, day, plays, skips, listenedMs);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Loads the totals for merging, moving days before {@code bucketBefore} into
+     * their bucket.
+     */
+    private Map<DayTrack, Totals> loadAggregates(final int bucketBefore) throws IOException {
+        final Map<DayTrack, Totals> totals = new HashMap<>();
+        readAggregates(Integer.MIN_VALUE, Integer.MAX_VALUE, (trackId, day, plays, skips, listenedMs) -> {
+            int key = day < bucketBefore ? day - ((day % BUCKET_DAYS) + BUCKET_DAYS) % BUCKET_DAYS : day;
+            totalsFor(totals, new DayTrack(key, trackId)).add(plays, skips, listenedMs);
+        });
+        return totals;
+    }
+    
+    private void writeAggregates(Map<DayTrack, Totals> totals, int foldedThrough) throws IOException {
+        File file = new File(directory, AGGREGATE_FILE);
+        File temp = new File(directory, AGGREGATE_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(AGGREGATE_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(foldedThrough);
+            out.writeInt(totals.size());
+            for (Map.Entry<DayTrack, Totals> entry : totals.entrySet()) {
+                Totals value = entry.getValue();
+                out.writeInt(entry.getKey().day);
+                out.writeLong(entry.getKey().trackId);
+                out.writeInt(value.plays);
+                out.writeInt(value.skips);
+                out.writeLong(value.listenedMs);
+            }
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+        this.foldedThrough = foldedThrough;
+    }
+    
+    private File segmentFile(int number) {
+        return new File(directory, String.format(Locale.ROOT, "%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+    
+    private static int segmentNumber(String fileName) {
+        if (!fileName.startsWith(SEGMENT_PREFIX) || !fileName.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(SEGMENT_PREFIX.length(),
+                    fileName.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Local calendar day of {@code millis}, as days since the epoch.
+     */
+    private static int toDay(long millis) {
+        // Keeps open-ended ranges such as Long.MAX_VALUE from overflowing
+        millis = Math.max(-MAX_MILLIS, Math.min(MAX_MILLIS, millis));
+        long local = millis + TimeZone.getDefault().getOffset(millis);
+        return (int) (local >= 0 ? local / DAY_MS : (local - DAY_MS + 1) / DAY_MS);
+    }
+    
+    private static final class DayTrack {
+        final int day;
+        final long trackId;
+        
+        DayTrack(int day, long trackId) {
+            this.day = day;
+            this.trackId = trackId;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof DayTrack)) {
+                return false;
+            }
+            DayTrack other = (DayTrack) obj;
+            return day == other.day && trackId == other.trackId;
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * day + (int) (trackId ^ (trackId >>> 32));
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package com.jununmp3.player.utils;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Play counts and recently played tracks, updated one play at a time.
+ * <p>
+ * Recents are the distinct tracks among the last {@link #RECENT_LIMIT} plays, kept in
+ * a ring buffer of play events. A replayed track's older event stays in the ring and
+ * is recognised as stale when it falls out. Counts are exact, and the
+ * {@link #TOP_LIMIT} most played tracks sit in an indexed min-heap, so the library is
+ * never re-sorted: a play costs O(1) for recents and O(log K) for the top list, plus
+ * sorting the K top tracks when the played one is among them. Each play is passed on
+ * to the "Recently Played" and "Most Played" playlists, and the
+ * history file is rewritten in the background a few seconds after the last play.
+ * Smart playlists whose rules use play counts are re-checked for the played track.
+ */
+public class PlayHistory implements SmartRule.PlayCounts {
+    
+    public static final int RECENT_LIMIT = 50;
+    public static final int TOP_LIMIT = 50;
+    
+    private static final String HISTORY_FILE = "play_history.bin";
+    private static final int MAGIC = 0x4A504C48; // "JPLH"
+    private static final int FORMAT_VERSION = 1;
+    private static final long WRITE_DELAY_MS = 5000;
+    private static final int MSG_WRITE = 1;
+    
+    private static PlayHistory instance;
+    private final Context context;
+    private final Handler handler;
+    
+    // Ring of the last RECENT_LIMIT plays; play n is in slot n % RECENT_LIMIT
+    private final long[] recentPlays = new long[RECENT_LIMIT];
+    private int playCount = 0;
+    // Track id -> number of its latest play, only for tracks still in the ring
+    private final LongIntMap latestPlay = new LongIntMap();
+    private final LongIntMap playCounts = new LongIntMap();
+    private final TopTracks topTracks = new TopTracks(TOP_LIMIT);
+    private boolean dirty = false;
+    private final Object fileLock = new Object();
+
+    private PlayHistory(Context context) {
+        this.context = context.getApplicationContext();
+        
+        HandlerThread thread = new HandlerThread("PlayHistory", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_WRITE) {
+                    write();
+                }
+            }
+        };
+        load();
+    }
+    
+    public static synchronized PlayHistory getInstance(Context context) {
+        if (instance == null) {
+            instance = new PlayHistory(context);
+        }
+        return instance;
+    }
+    
+    /**
+     * Writes unsaved plays now. Does nothing if history was never opened in this
+     * process.
+     */
+    public static void flushPendingWrites() {
+        PlayHistory history;
+        synchronized (PlayHistory.class) {
+            history = instance;
+        }
+        if (history != null) {
+            history.handler.removeMessages(MSG_WRITE);
+            history.write();
+        }
+    }
+    
+    public void recordPlay(long trackId) {
+        long evicted;
+        long[] mostPlayed;
+        synchronized (this) {
+            evicted = pushRecent(trackId);
+            
+            int count = playCounts.get(trackId);
+            count = count == LongIntMap.MISSING ? 1 : count + 1;
+            playCounts.put(trackId, count);
+            
+            topTracks.update(trackId, count);
+            // The play may have moved the track into the top list or up within it
+            mostPlayed = topTracks.contains(trackId) ? topTracks.sorted() : null;
+            
+            if (!dirty) {
+                dirty = true;
+                handler.sendEmptyMessageDelayed(MSG_WRITE, WRITE_DELAY_MS);
+            }
+        }
+        
+        PlaylistManager playlists = PlaylistManager.getInstance(context);
+        playlists.updateRecentlyPlayed(trackId, evicted);
+        if (mostPlayed != null) {
+            playlists.syncPlaylist(PlaylistManager.MOST_PLAYED, mostPlayed);
+        }
+        playlists.onTrackPlayed(trackId);
+    }
+    
+    @Override
+    public synchronized int getPlayCount(long trackId) {
+        int count = playCounts.get(trackId);
+        return count == LongIntMap.MISSING ? 0 : count;
+    }
+    
+    /**
+     * Distinct recently played tracks, most recent first.
+     */
+    public synchronized long[] getRecentlyPlayed() {
+        long[] recent = new long[latestPlay.size()];
+        int count = 0;
+        int oldest = Math.max(0, playCount - RECENT_LIMIT);
+        for (int play = playCount - 1; play >= oldest; play--) {
+            long trackId = recentPlays[play % RECENT_LIMIT];
+            if (latestPlay.get(trackId) == play) {
+                recent[count++] = trackId;
+            }
+        }
+        return recent;
+    }
+    
+    /**
+     * The most played tracks, highest count first. Sorts only the top list.
+     */
+    public synchronized long[] getMostPlayed() {
+        return topTracks.sorted();
+    }
+    
+    /**
+     * Adds a play to the ring and returns the track that is no longer recent because
+     * of it, or -1.
+     */
+    private long pushRecent(long trackId) {
+        int slot = playCount % RECENT_LIMIT;
+        long evicted = -1;
+        if (playCount >= RECENT_LIMIT) {
+            long oldest = recentPlays[slot];
+            if (latestPlay.get(oldest) == playCount - RECENT_LIMIT) {
+                latestPlay.remove(oldest);
+                if (oldest != trackId) {
+                    evicted = oldest;
+                }
+            }
+        }
+        recentPlays[slot] = trackId;
+        latestPlay.put(trackId, playCount);
+        playCount++;
+        return evicted;
+    }
+    
+    private void load() {
+        File file = new File(context.getFilesDir(), HISTORY_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+            int recentCount = in.readInt();
+            for (int i = 0; i < recentCount; i++) {
+                pushRecent(in.readLong());
+            }
+            int countCount = in.readInt();
+            for (int i = 0; i < countCount; i++) {
+                long trackId = in.readLong();
+                int count = in.readInt();
+                playCounts.put(trackId, count);
+                topTracks.update(trackId, count);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        
+        // Playlist writes are batched separately, so after a kill the two can disagree
+        PlaylistManager playlists = PlaylistManager.getInstance(context);
+        playlists.syncPlaylist(PlaylistManager.RECENTLY_PLAYED, reverse(getRecentlyPlayed()));
+        playlists.syncPlaylist(PlaylistManager.MOST_PLAYED, topTracks.sorted());
+    }
+    
+    private void write() {
+        synchronized (fileLock) {
+            long[] recent;
+            long[] trackIds;
+            int[] counts;
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                dirty = false;
+                // Oldest first, so loading replays them through the ring in order
+                int oldest = Math.max(0, playCount - RECENT_LIMIT);
+                recent = new long[playCount - oldest];
+                for (int play = oldest; play < playCount; play++) {
+                    recent[play - oldest] = recentPlays[play % RECENT_LIMIT];
+                }
+                trackIds = new long[playCounts.size()];
+                counts = new int[playCounts.size()];
+                playCounts.getEntries(trackIds, counts);
+            }
+            
+            File file = new File(context.getFilesDir(), HISTORY_FILE);
+            File temp = new File(context.getFilesDir(), HISTORY_FILE + ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeInt(recent.length);
+                    for (long trackId : recent) {
+                        out.writeLong(trackId);
+                    }
+                    out.writeInt(trackIds.length);
+                    for (int i = 0; i < trackIds.length; i++) {
+                        out.writeLong(trackIds[i]);
+                        out.writeInt(counts[i]);
+                    }
+                }
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Could not replace " + file);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (this) {
+                    dirty = true;
+                }
+            }
+        }
+    }
+    
+    private static long[] reverse(long[] values) {
+        for (int i = 0, j = values.length - 1; i < j; i++, j--) {
+            long value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+        return values;
+    }
+    
+    /**
+     * Indexed min-heap of the tracks with the highest counts. Counts only grow, so a
+     * track outside the heap can only get in by overtaking the current minimum.
+     */
+    static final class TopTracks {
+        private final long[] ids;
+        private final int[] counts;
+        private final LongIntMap positions = new LongIntMap();
+        private int size;
+        
+        TopTracks(int capacity) {
+            ids = new long[capacity];
+            counts = new int[capacity];
+        }
+        
+        boolean contains(long trackId) {
+            return positions.containsKey(trackId);
+        }
+        
+        /**
+         * Records the new count of {@code trackId} and returns the track it pushed out
+         * of the heap, or -1.
+         */
+        long update(long trackId, int count) {
+            int position = positions.get(trackId);
+            if (position != LongIntMap.MISSING) {
+                counts[position] = count;
+                siftDown(position);
+                return -1;
+            }
+            if (size < ids.length) {
+                set(size, trackId, count);
+                siftUp(size++);
+                return -1;
+            }
+            if (count <= counts[0]) {
+                return -1;
+            }
+            long removed = ids[0];
+            positions.remove(removed);
+            set(0, trackId, count);
+            siftDown(0);
+            return removed;
+        }
+        
+        /**
+         * The tracks by count, highest first; ties by track id so the order is stable.
+         */
+        long[] sorted() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int byCount = Integer.compare(counts[b], counts[a]);
+                    return byCount != 0 ? byCount : Long.compare(ids[a], ids[b]);
+                }
+            });
+            
+            long[] result = new long[size];
+            for (int i = 0; i < size; i++) {
+                result[i] = ids[order[i]];
+            }
+            return result;
+        }
+        
+        private void siftUp(int position) {
+            while (position > 0) {
+                int parent = (position - 1) / 2;
+                if (counts[parent] <= counts[position]) {
+                    break;
+                }
+                swap(position, parent);
+                position = parent;
+            }
+        }
+        
+        private void siftDown(int position) {
+            while (true) {
+                int smallest = position;
+                int left = 2 * position + 1;
+                int right = left + 1;
+                if (left < size && counts[left] < counts[smallest]) {
+                    smallest = left;
+                }
+                if (right < size && counts[right] < counts[smallest]) {
+                    smallest = right;
+                }
+                if (smallest == position) {
+                    return;
+                }
+                swap(position, smallest);
+                position = smallest;
+            }
+        }
+        
+        private void swap(int a, int b) {
+            long id = ids[a];
+            int count = counts[a];
+            set(a, ids[b], counts[b]);
+            set(b, id, count);
+        }
+        
+        private void set(int position, long trackId, int count) {
+            ids[position] = trackId;
+            counts[position] = count;
+            positions.put(trackId, position);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.jununmp3.player.utils;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import com.jununmp3.player.model.Playlist;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SQLite storage for playlists.
+ * <p>
+ * Playlists are one row each and their entries are rows of {@code playlist_tracks}
+ * keyed by playlist and position, so a change only rewrites the playlist it touches.
+ * An entry is just the MediaStore track id and when it was added; tracks are resolved
+ * against the library when shown, so playlists never hold stale copies of metadata.
+ * Listing playlists reads the header rows plus an entry count; the entries themselves
+ * are read the first time a playlist's track list is used.
+ */
+public class PlaylistDatabase extends SQLiteOpenHelper {
+    
+    private static final String DATABASE_NAME = "playlists.db";
+    private static final int DATABASE_VERSION = 1;
+    
+    private static final String TABLE_PLAYLISTS = "playlists";
+    private static final String TABLE_TRACKS = "playlist_tracks";
+    
+    private static final String INSERT_TRACK = "INSERT INTO " + TABLE_TRACKS +
+            " (playlist_id, position, track_id, added_at) VALUES (?, ?, ?, ?)";
+    
+    public PlaylistDatabase(Context context) {
+        super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+    }
+    
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.setForeignKeyConstraintsEnabled(true);
+    }
+    
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_PLAYLISTS + " (" +
+                "id INTEGER PRIMARY KEY, " +
+                "name TEXT NOT NULL, " +
+                "description TEXT, " +
+                "date_created INTEGER NOT NULL, " +
+                "date_modified INTEGER NOT NULL, " +
+                "rule TEXT)");
+        db.execSQL("CREATE TABLE " + TABLE_TRACKS + " (" +
+                "playlist_id INTEGER NOT NULL REFERENCES " + TABLE_PLAYLISTS + "(id) ON DELETE CASCADE, " +
+                "position INTEGER NOT NULL, " +
+                "track_id INTEGER NOT NULL, " +
+                "added_at INTEGER NOT NULL, " +
+                "PRIMARY KEY (playlist_id, position))");
+        db.execSQL("CREATE INDEX playlist_tracks_track ON " + TABLE_TRACKS + " (track_id)");
+    }
+    
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // First version, nothing to migrate yet
+    }
+    
+    /**
+     * Reads every playlist without its entries. The returned playlists load their
+     * track lists from this database on first use.
+     */
+    public List<Playlist> loadPlaylists() {
+        List<Playlist> playlists = new ArrayList<>();
+        String sql = "SELECT p.id, p.name, p.description, p.date_created, p.date_modified, " +
+                "(SELECT COUNT(*) FROM " + TABLE_TRACKS + " t WHERE t.playlist_id = p.id), p.rule " +
+                "FROM " + TABLE_PLAYLISTS + " p ORDER BY p.id";
+        
+        try (Cursor cursor = getReadableDatabase().rawQuery(sql, null)) {
+            while (cursor.moveToNext()) {
+                Playlist playlist = new Playlist(
+                    cursor.getLong(0),
+                    cursor.getString(1),
+                    cursor.getString(2),
+                    cursor.getInt(5),
+                    cursor.getLong(3),
+                    cursor.getLong(4),
+                    this::loadTracks
+                );
+                playlist.setRule(cursor.getString(6));
+                playlists.add(playlist);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return playlists;
+    }
+    
+    public Playlist.TrackEntries loadTracks(long playlistId) {
+        String[] columns = {"track_id", "added_at"};
+        
+        try (Cursor cursor = getReadableDatabase().query(TABLE_TRACKS, columns,
+                "playlist_id = ?", new String[] {String.valueOf(playlistId)}, null, null, "position")) {
+            int count = cursor.getCount();
+            long[] trackIds = new long[count];
+            long[] addedAt = new long[count];
+            int i = 0;
+            while (cursor.moveToNext() && i < count) {
+                trackIds[i] = cursor.getLong(0);
+                addedAt[i] = cursor.getLong(1);
+                i++;
+            }
+            return new Playlist.TrackEntries(trackIds, addedAt, i);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+    
+    /**
+     * Inserts {@code playlist} together with its entries.
+     */
+    public void insertPlaylist(Playlist playlist) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.insertWithOnConflict(TABLE_PLAYLISTS, null, toValues(playlist),
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            insertTracks(db, playlist);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+    
+    /**
+     * Writes the name, description and dates of {@code playlist}, leaving its entries
+     * untouched.
+     */
+    public void updatePlaylistInfo(Playlist playlist) {
+        getWritableDatabase().update(TABLE_PLAYLISTS, toValues(playlist),
+                "id = ?", new String[] {String.valueOf(playlist.getId())});
+    }
+    
+    /**
+     * Writes {@code playlist}. Its entries are only rewritten if they were loaded,
+     * since an unloaded playlist cannot have changed them.
+     */
+    public void savePlaylist(Playlist playlist) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            updatePlaylistInfo(playlist);
+            if (playlist.isLoaded()) {
+                db.delete(TABLE_TRACKS, "playlist_id = ?", new String[] {String.valueOf(playlist.getId())});
+                insertTracks(db, playlist);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+    
+    public void deletePlaylist(long playlistId) {
+        // Entries go with it through ON DELETE CASCADE
+        getWritableDatabase().delete(TABLE_PLAYLISTS, "id = ?", new String[] {String.valueOf(playlistId)});
+    }
+    
+    public void deleteAllPlaylists() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_TRACKS, null, null);
+            db.delete(TABLE_PLAYLISTS, null, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+    
+    /**
+     * Runs {@code work} in one transaction. The write methods above nest inside it.
+     */
+    public void runInTransaction(Runnable work) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            work.run();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+    
+    /**
+     * Inserts many playlists in one transaction, used when migrating old storage.
+     */
+    public void insertPlaylists(List<Playlist> playlists) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Playlist playlist : playlists) {
+                db.insertWithOnConflict(TABLE_PLAYLISTS, null, toValues(playlist),
+                        SQLiteDatabase.CONFLICT_REPLACE);
+                insertTracks(db, playlist);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+    
+    private void insertTracks(SQLiteDatabase db, Playlist playlist) {
+        Playlist.TrackEntries entries = playlist.getEntries();
+        if (entries.size() == 0) {
+            return;
+        }
+        
+        SQLiteStatement statement = db.compileStatement(INSERT_TRACK);
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                statement.bindLong(1, playlist.getId());
+                statement.bindLong(2, i);
+                statement.bindLong(3, entries.getTrackId(i));
+                statement.bindLong(4, entries.getAddedAt(i));
+                statement.executeInsert();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+    
+    private static ContentValues toValues(Playlist playlist) {
+        ContentValues values = new ContentValues();
+        values.put("id", playlist.getId());
+        values.put("name", playlist.getName());
+        values.put("description", playlist.getDescription());
+        values.put("date_created", playlist.getDateCreated());
+        values.put("date_modified", playlist.getDateModified());
+        values.put("rule", playlist.getRule());
+        return values;
+    }
+}
@@ -0,0 +1,567 @@
+package com.jununmp3.player.utils;
+
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.util.Xml;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.jununmp3.player.model.Playlist;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Reads and writes playlist files in M3U8, PLS, XSPF and JSON.
+ * <p>
+ * Both directions stream: a file is parsed entry by entry and every location is
+ * resolved to a library track id through {@link TrackStore#indexOfPath(String)} as it
+ * is read, so the only thing that grows with the file is the playlist's id array.
+ * Export walks the playlist's entries against the library and writes each row
+ * straight to the output. Progress is reported and cancellation checked every
+ * {@link #CHECK_INTERVAL} entries, on the calling thread.
+ */
+public class PlaylistFiles {
+    
+    public static final int FORMAT_M3U8 = 0;
+    public static final int FORMAT_PLS = 1;
+    public static final int FORMAT_XSPF = 2;
+    public static final int FORMAT_JSON = 3;
+    
+    private static final String[] EXTENSIONS = {"m3u8", "pls", "xspf", "json"};
+    private static final String XSPF_NAMESPACE = "http://xspf.org/ns/0/";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CHECK_INTERVAL = 256;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    
+    public interface ProgressListener {
+        /**
+         * {@code total} is -1 when the size of the input is unknown.
+         */
+        void onProgress(long done, long total);
+    }
+    
+    /**
+     * A parsed playlist that is not managed yet. Its id is 0 and its name is null
+     * when the file did not carry one.
+     */
+    public static class ImportResult {
+        public final Playlist playlist;
+        public final int entryCount;
+        public final int unresolvedCount;
+        
+        ImportResult(Playlist playlist, int entryCount, int unresolvedCount) {
+            this.playlist = playlist;
+            this.entryCount = entryCount;
+            this.unresolvedCount = unresolvedCount;
+        }
+    }
+    
+    private PlaylistFiles() {}
+    
+    /**
+     * Guesses the format from a file name's extension, or returns -1.
+     */
+    public static int formatForName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0) {
+            return -1;
+        }
+        String extension = fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+        if (extension.equals("m3u")) {
+            return FORMAT_M3U8;
+        }
+        for (int i = 0; i < EXTENSIONS.length; i++) {
+            if (EXTENSIONS[i].equals(extension)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    public static String getExtension(int format) {
+        return EXTENSIONS[format];
+    }
+    
+    /**
+     * Parses a playlist from {@code in}, which is not closed. {@code length} is the
+     * size in bytes for progress, or -1. Relative locations are resolved against
+     * {@code baseDir} when it is not null.
+     *
+     * @throws android.os.OperationCanceledException if {@code signal} is cancelled
+     */
+    public static ImportResult read(InputStream in, long length, int format, File baseDir,
+                                    TrackStore library, ProgressListener listener,
+                                    CancellationSignal signal) throws IOException {
+        CountingInputStream counter = new CountingInputStream(in);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(counter, UTF_8), BUFFER_SIZE);
+        Importer importer = new Importer(library, baseDir, counter, length, listener, signal);
+        
+        switch (format) {
+            case FORMAT_M3U8:
+                readM3u(reader, importer);
+                break;
+            case FORMAT_PLS:
+                readPls(reader, importer);
+                break;
+            case FORMAT_XSPF:
+                readXspf(reader, importer);
+                break;
+            case FORMAT_JSON:
+                readJson(reader, importer);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown playlist format " + format);
+        }
+        importer.finish();
+        return new ImportResult(importer.playlist, importer.entryCount, importer.unresolvedCount);
+    }
+    
+    /**
+     * Writes {@code playlist} to {@code out}, which is flushed but not closed. Entries
+     * whose track is no longer in {@code library} are left out. Returns the number of
+     * entries written.
+     *
+     * @throws android.os.OperationCanceledException if {@code signal} is cancelled
+     */
+    public static int write(Playlist playlist, TrackStore library, OutputStream out, int format,
+                            ProgressListener listener, CancellationSignal signal) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8), BUFFER_SIZE);
+        Playlist.TrackEntries entries = playlist.getEntries();
+        Exporter exporter = new Exporter(entries, library, listener, signal);
+        
+        switch (format) {
+            case FORMAT_M3U8:
+                writeM3u(playlist, exporter, writer);
+                break;
+            case FORMAT_PLS:
+                writePls(exporter, writer);
+                break;
+            case FORMAT_XSPF:
+                writeXspf(playlist, exporter, writer);
+                break;
+            case FORMAT_JSON:
+                writeJson(playlist, exporter, writer);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown playlist format " + format);
+        }
+        writer.flush();
+        exporter.finish();
+        return exporter.written;
+    }
+    
+    private static void readM3u(BufferedReader reader, Importer importer) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = stripBom(line).trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.charAt(0) == '#') {
+                if (line.startsWith("#PLAYLIST:")) {
+                    importer.name = line.substring("#PLAYLIST:".length()).trim();
+                }
+                continue;
+            }
+            importer.add(importer.resolve(line), 0);
+        }
+    }
+    
+    private static void readPls(BufferedReader reader, Importer importer) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = stripBom(line).trim();
+            int separator = line.indexOf('=');
+            // Entries are taken in file order; FileN keys are numbered that way in practice
+            if (separator > 4 && line.regionMatches(true, 0, "File", 0, 4)) {
+                importer.add(importer.resolve(line.substring(separator + 1)), 0);
+            }
+        }
+    }
+    
+    private static void readXspf(Reader reader, Importer importer) throws IOException {
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(reader);
+            
+            boolean inTrack = false;
+            boolean hasLocation = false;
+            int resolved = -1;
+            int event;
+            while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG) {
+                    String tag = parser.getName();
+                    if (tag.equals("track")) {
+                        inTrack = true;
+                        hasLocation = false;
+                        resolved = -1;
+                    } else if (inTrack && tag.equals("location")) {
+                        // A track may list alternative locations, the first one found wins
+                        hasLocation = true;
+                        String location = parser.nextText();
+                        if (resolved < 0) {
+                            resolved = importer.resolve(location);
+                        }
+                    } else if (!inTrack && parser.getDepth() == 2 && tag.equals("title")) {
+                        importer.name = parser.nextText().trim();
+                    } else if (!inTrack && parser.getDepth() == 2 && tag.equals("annotation")) {
+                        importer.description = parser.nextText().trim();
+                    }
+                } else if (event == XmlPullParser.END_TAG && parser.getName().equals("track")) {
+                    if (hasLocation) {
+                        importer.add(resolved, 0);
+                    }
+                    inTrack = false;
+                }
+            }
+        } catch (XmlPullParserException e) {
+            throw new IOException("Malformed XSPF", e);
+        }
+    }
+    
+    private static void readJson(Reader reader, Importer importer) throws IOException {
+        JsonReader json = new JsonReader(reader);
+        try {
+            json.beginObject();
+            while (json.hasNext()) {
+                String field = json.nextName();
+                if (field.equals("name") && json.peek() == JsonToken.STRING) {
+                    importer.name = json.nextString();
+                } else if (field.equals("description") && json.peek() == JsonToken.STRING) {
+                    importer.description = json.nextString();
+                } else if (field.equals("tracks")) {
+                    json.beginArray();
+                    while (json.hasNext()) {
+                        readJsonTrack(json, importer);
+                    }
+                    json.endArray();
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Valid JSON of the wrong shape, e.g. an array at the top or a huge addedAt
+            throw new IOException("Malformed JSON playlist", e);
+        }
+    }
+    
+    private static void readJsonTrack(JsonReader json, Importer importer) throws IOException {
+        String path = null;
+        long addedAt = 0;
+        json.beginObject();
+        while (json.hasNext()) {
+            String field = json.nextName();
+            if (field.equals("path") && json.peek() == JsonToken.STRING) {
+                path = json.nextString();
+            } else if (field.equals("addedAt") && json.peek() == JsonToken.NUMBER) {
+                addedAt = json.nextLong();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        if (path != null) {
+            importer.add(importer.resolve(path), addedAt);
+        }
+    }
+    
+    private static void writeM3u(Playlist playlist, Exporter exporter, Writer writer) throws IOException {
+        writer.write("#EXTM3U\n");
+        if (playlist.getName() != null) {
+            writer.write("#PLAYLIST:" + playlist.getName() + "\n");
+        }
+        
+        TrackStore library = exporter.library;
+        int index;
+        while ((index = exporter.next()) >= 0) {
+            writer.write("#EXTINF:");
+            writer.write(String.valueOf(library.getDuration(index) / 1000));
+            writer.write(',');
+            writer.write(library.getArtist(index));
+            writer.write(" - ");
+            writer.write(library.getTitle(index));
+            writer.write('\n');
+            writer.write(library.getPath(index));
+            writer.write('\n');
+        }
+    }
+    
+    private static void writePls(Exporter exporter, Writer writer) throws IOException {
+        writer.write("[playlist]\n");
+        
+        TrackStore library = exporter.library;
+        int index;
+        while ((index = exporter.next()) >= 0) {
+            int number = exporter.written;
+            writer.write("File" + number + "=" + library.getPath(index) + "\n");
+            writer.write("Title" + number + "=" + library.getArtist(index) + " - " + library.getTitle(index) + "\n");
+            writer.write("Length" + number + "=" + library.getDuration(index) / 1000 + "\n");
+        }
+        // The count is only known once missing tracks have been skipped
+        writer.write("NumberOfEntries=" + exporter.written + "\n");
+        writer.write("Version=2\n");
+    }
+    
+    private static void writeXspf(Playlist playlist, Exporter exporter, Writer writer) throws IOException {
+        XmlSerializer xml = Xml.newSerializer();
+        xml.setOutput(writer);
+        xml.startDocument("UTF-8", null);
+        xml.setPrefix("", XSPF_NAMESPACE);
+        xml.startTag(XSPF_NAMESPACE, "playlist");
+        xml.attribute(null, "version", "1");
+        writeXmlText(xml, "title", playlist.getName());
+        writeXmlText(xml, "annotation", playlist.getDescription());
+        xml.startTag(XSPF_NAMESPACE, "trackList");
+        
+        TrackStore library = exporter.library;
+        int index;
+        while ((index = exporter.next()) >= 0) {
+            xml.startTag(XSPF_NAMESPACE, "track");
+            writeXmlText(xml, "location", "file://" + Uri.encode(library.getPath(index), "/"));
+            writeXmlText(xml, "title", library.getTitle(index));
+            writeXmlText(xml, "creator", library.getArtist(index));
+            writeXmlText(xml, "album", library.getAlbum(index));
+            writeXmlText(xml, "duration", String.valueOf(library.getDuration(index)));
+            xml.endTag(XSPF_NAMESPACE, "track");
+        }
+        
+        xml.endTag(XSPF_NAMESPACE, "trackList");
+        xml.endTag(XSPF_NAMESPACE, "playlist");
+        xml.endDocument();
+    }
+    
+    private static void writeXmlText(XmlSerializer xml, String tag, String text) throws IOException {
+        if (text != null && !text.isEmpty()) {
+            xml.startTag(XSPF_NAMESPACE, tag);
+            xml.text(text);
+            xml.endTag(XSPF_NAMESPACE, tag);
+        }
+    }
+    
+    private static void writeJson(Playlist playlist, Exporter exporter, Writer writer) throws IOException {
+        JsonWriter json = new JsonWriter(writer);
+        json.beginObject();
+        json.name("name").value(playlist.getName());
+        json.name("description").value(playlist.getDescription());
+        json.name("tracks").beginArray();
+        
+        TrackStore library = exporter.library;
+        int index;
+        while ((index = exporter.next()) >= 0) {
+            json.beginObject();
+            json.name("path").value(library.getPath(index));
+            json.name("title").value(library.getTitle(index));
+            json.name("artist").value(library.getArtist(index));
+            json.name("album").value(library.getAlbum(index));
+            json.name("duration").value(library.getDuration(index));
+            json.name("addedAt").value(exporter.addedAt());
+            json.endObject();
+        }
+        
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+    
+    private static String stripBom(String line) {
+        return !line.isEmpty() && line.charAt(0) == '\uFEFF' ? line.substring(1) : line;
+    }
+    
+    /**
+     * Resolves locations and collects the matching track ids into a detached playlist.
+     */
+    private static final class Importer {
+        final Playlist playlist = new Playlist(0, null, null);
+        final TrackStore library;
+        final File baseDir;
+        final CountingInputStream counter;
+        final long length;
+        final ProgressListener listener;
+        final CancellationSignal signal;
+        final long importedAt = System.currentTimeMillis();
+        String name;
+        String description;
+        int entryCount;
+        int unresolvedCount;
+        
+        Importer(TrackStore library, File baseDir, CountingInputStream counter, long length,
+                 ProgressListener listener, CancellationSignal signal) {
+            this.library = library;
+            this.baseDir = baseDir;
+            this.counter = counter;
+            this.length = length;
+            this.listener = listener;
+            this.signal = signal;
+        }
+        
+        /**
+         * Returns the library position for a location, or -1. Tries the path as
+         * written, then relative to the playlist's directory, then its canonical form
+         * (which also resolves links such as /sdcard).
+         */
+        int resolve(String location) {
+            String path = location.trim();
+            if (path.regionMatches(true, 0, "file://", 0, 7)) {
+                path = Uri.decode(path.substring(7));
+            }
+            if (path.isEmpty()) {
+                return -1;
+            }
+            path = path.replace('\\', '/');
+            
+            int index = library.indexOfPath(path);
+            if (index >= 0) {
+                return index;
+            }
+            File file = new File(path);
+            if (!file.isAbsolute()) {
+                if (baseDir == null) {
+                    return -1;
+                }
+                file = new File(baseDir, path);
+                index = library.indexOfPath(file.getPath());
+                if (index >= 0) {
+                    return index;
+                }
+            }
+            try {
+                return library.indexOfPath(file.getCanonicalPath());
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+        
+        void add(int index, long addedAt) {
+            if (index >= 0) {
+                playlist.addTrack(library.getId(index), addedAt > 0 ? addedAt : importedAt);
+            } else {
+                unresolvedCount++;
+            }
+            entryCount++;
+            if (entryCount % CHECK_INTERVAL == 0) {
+                checkpoint();
+            }
+        }
+        
+        void checkpoint() {
+            if (signal != null) {
+                signal.throwIfCanceled();
+            }
+            if (listener != null) {
+                listener.onProgress(counter.count, length);
+            }
+        }
+        
+        void finish() {
+            playlist.setName(name != null && !name.isEmpty() ? name : null);
+            playlist.setDescription(description);
+            if (listener != null) {
+                listener.onProgress(counter.count, length >= 0 ? counter.count : -1);
+            }
+        }
+    }
+    
+    /**
+     * Walks the entries that are still in the library, checking in as it goes.
+     */
+    private static final class Exporter {
+        final Playlist.TrackEntries entries;
+        final TrackStore library;
+        final ProgressListener listener;
+        final CancellationSignal signal;
+        int position = -1;
+        int written;
+        
+        Exporter(Playlist.TrackEntries entries, TrackStore library, ProgressListener listener,
+                 CancellationSignal signal) {
+            this.entries = entries;
+            this.library = library;
+            this.listener = listener;
+            this.signal = signal;
+        }
+        
+        /**
+         * Advances to the next entry in the library and returns its position there,
+         * or -1 once all entries have been visited.
+         */
+        int next() {
+            while (++position < entries.size()) {
+                if (position % CHECK_INTERVAL == 0 && position > 0) {
+                    if (signal != null) {
+                        signal.throwIfCanceled();
+                    }
+                    if (listener != null) {
+                        listener.onProgress(position, entries.size());
+                    }
+                }
+                int index = library.indexOf(entries.getTrackId(position));
+                if (index >= 0) {
+                    written++;
+                    return index;
+                }
+            }
+            return -1;
+        }
+        
+        long addedAt() {
+            return entries.getAddedAt(position);
+        }
+        
+        void finish() {
+            if (listener != null) {
+                listener.onProgress(entries.size(), entries.size());
+            }
+        }
+    }
+    
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+        
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result >= 0) {
+                count++;
+            }
+            return result;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int result = super.read(buffer, offset, length);
+            if (result > 0) {
+                count += result;
+            }
+            return result;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -2,168 +2,288 @@ package com.jununmp3.player.utils;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.jununmp3.player.model.Music;
 import com.jununmp3.player.model.Playlist;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class PlaylistManager {
     
+    // Playlists used to be one JSON blob in these preferences; migrated on first start
     private static final String PREFS_NAME = "junun_playlists";
     private static final String PLAYLISTS_KEY = "playlists";
+    private static final String NEXT_ID_KEY = "next_playlist_id";
+    public static final String RECENTLY_PLAYED = "Recently Played";
+    public static final String MOST_PLAYED = "Most Played";
     private static PlaylistManager instance;
     private Context context;
+    // Kept in id order, which is also creation order since ids only grow
     private List<Playlist> playlists;
+    private final Map<Long, Playlist> playlistsById = new HashMap<>();
+    private final Map<String, Playlist> playlistsByName = new HashMap<>();
+    private long nextId = 1;
     private Gson gson;
+    private PlaylistDatabase database;
+    private PlaylistWriter writer;
+    private Playlist.TrackResolver trackResolver;
+    private final LibrarySync librarySync;
+    
+    // Parsed rules of the smart playlists, and their matchers compiled against
+    // matcherStore; the matchers are dropped when the library snapshot changes
+    private final Map<Long, SmartRule> smartRules = new HashMap<>();
+    private final Map<Long, SmartRule.Matcher> matchers = new HashMap<>();
+    private TrackStore matcherStore;
     
     private PlaylistManager(Context context) {
         this.context = context.getApplicationContext();
         this.gson = new Gson();
         this.playlists = new ArrayList<>();
+        this.database = new PlaylistDatabase(this.context);
+        this.writer = new PlaylistWriter(database, this);
+        // Entries are track ids, shown against whatever the library currently holds
+        this.librarySync = LibrarySync.getInstance(this.context);
+        this.trackResolver = (trackIds, count) -> librarySync.getSnapshot().resolve(trackIds, count);
         loadPlaylists();
+        librarySync.setChangeListener(this::onLibraryChanged);
     }
     
     public static synchronized PlaylistManager getInstance(Context context) {
         if (instance == null) {
             instance = new PlaylistManager(context);
+            // In the background: it needs PlayHistory, whose loading needs this instance
+            final PlaylistManager manager = instance;
+            LibraryQueryExecutor.getInstance().submit(LibraryQueryExecutor.CHANNEL_PLAYLISTS,
+                    "catchUpSmartPlaylists", signal -> manager.catchUpSmartPlaylists(), null);
         }
         return instance;
     }
     
-    public List<Playlist> getAllPlaylists() {
-        return new ArrayList<>(playlists);
+    /**
+     * Writes pending playlist changes before the process may go away. Does nothing if
+     * playlists were never opened in this process.
+     */
+    public static void flushPendingWrites() {
+        PlaylistManager manager;
+        synchronized (PlaylistManager.class) {
+            manager = instance;
+        }
+        if (manager != null) {
+            manager.flush();
+        }
     }
     
-    public Playlist getPlaylist(long id) {
-        for (Playlist playlist : playlists) {
-            if (playlist.getId() == id) {
-                return playlist;
-            }
+    /**
+     * Like {@link #flushPendingWrites()}, but writes on the background writer thread,
+     * so the caller does not wait for the database. For the main thread.
+     */
+    public static void flushPendingWritesInBackground() {
+        PlaylistManager manager;
+        synchronized (PlaylistManager.class) {
+            manager = instance;
+        }
+        if (manager != null) {
+            manager.writer.flushInBackground();
         }
-        return null;
     }
     
-    public Playlist getPlaylistByName(String name) {
-        for (Playlist playlist : playlists) {
-            if (playlist.getName().equals(name)) {
-                return playlist;
-            }
-        }
-        return null;
+    /**
+     * Changes are written in the background shortly after they are made; this writes
+     * them immediately on the calling thread.
+     */
+    public void flush() {
+        writer.flush();
+    }
+    
+    public synchronized List<Playlist> getAllPlaylists() {
+        return new ArrayList<>(playlists);
+    }
+    
+    public synchronized Playlist getPlaylist(long id) {
+        return playlistsById.get(id);
+    }
+    
+    public synchronized Playlist getPlaylistByName(String name) {
+        return playlistsByName.get(name);
     }
     
-    public boolean createPlaylist(String name, String description) {
+    public synchronized boolean createPlaylist(String name, String description) {
         if (getPlaylistByName(name) != null) {
             return false; // Playlist with this name already exists
         }
         
-        long id = generateNewId();
+        long id = allocateId();
         Playlist newPlaylist = new Playlist(id, name, description);
         playlists.add(newPlaylist);
-        savePlaylists();
+        index(newPlaylist);
+        writer.markInserted(newPlaylist);
         return true;
     }
     
-    public boolean deletePlaylist(long id) {
-        Playlist playlistToRemove = null;
-        for (Playlist playlist : playlists) {
-            if (playlist.getId() == id) {
-                playlistToRemove = playlist;
-                break;
-            }
-        }
-        
+    public synchronized boolean deletePlaylist(long id) {
+        Playlist playlistToRemove = playlistsById.remove(id);
         if (playlistToRemove != null) {
-            playlists.remove(playlistToRemove);
-            savePlaylists();
+            playlists.remove(findPosition(id));
+            playlistsByName.remove(playlistToRemove.getName());
+            smartRules.remove(id);
+            matchers.remove(id);
+            writer.markDeleted(id);
             return true;
         }
         return false;
     }
     
-    public boolean renamePlaylist(long id, String newName) {
+    public synchronized boolean renamePlaylist(long id, String newName) {
         if (getPlaylistByName(newName) != null) {
             return false; // Playlist with this name already exists
         }
         
         Playlist playlist = getPlaylist(id);
         if (playlist != null) {
+            playlistsByName.remove(playlist.getName());
             playlist.setName(newName);
-            savePlaylists();
+            playlistsByName.put(newName, playlist);
+            writer.markInfoChanged(playlist);
             return true;
         }
         return false;
     }
     
-    public boolean updatePlaylistDescription(long id, String description) {
+    public synchronized boolean updatePlaylistDescription(long id, String description) {
         Playlist playlist = getPlaylist(id);
         if (playlist != null) {
             playlist.setDescription(description);
-            savePlaylists();
+            writer.markInfoChanged(playlist);
             return true;
         }
         return false;
     }
     
-    public void updatePlaylist(Playlist playlist) {
-        for (int i = 0; i < playlists.size(); i++) {
-            if (playlists.get(i).getId() == playlist.getId()) {
-                playlists.set(i, playlist);
-                savePlaylists();
-                break;
-            }
+    public synchronized void updatePlaylist(Playlist playlist) {
+        Playlist previous = playlistsById.get(playlist.getId());
+        if (previous != null) {
+            playlists.set(findPosition(playlist.getId()), playlist);
+            playlistsByName.remove(previous.getName());
+            index(playlist);
+            writer.markChanged(playlist);
         }
     }
     
-    private long generateNewId() {
-        long maxId = 0;
-        for (Playlist playlist : playlists) {
-            if (playlist.getId() > maxId) {
-                maxId = playlist.getId();
-            }
-        }
-        return maxId + 1;
+    /**
+     * Hands out ids that only ever grow, also across restarts, so a deleted playlist's
+     * id is never given to a new one.
+     */
+    private long allocateId() {
+        long id = nextId++;
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putLong(NEXT_ID_KEY, nextId).apply();
+        return id;
     }
     
-    private void loadPlaylists() {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        String playlistsJson = prefs.getString(PLAYLISTS_KEY, "");
+    private void index(Playlist playlist) {
+        playlist.setTrackResolver(trackResolver);
+        playlistsById.put(playlist.getId(), playlist);
+        playlistsByName.put(playlist.getName(), playlist);
         
-        if (!playlistsJson.isEmpty()) {
+        matchers.remove(playlist.getId());
+        smartRules.remove(playlist.getId());
+        if (playlist.isSmart()) {
             try {
-                Type listType = new TypeToken<List<Playlist>>(){}.getType();
-                List<Playlist> loadedPlaylists = gson.fromJson(playlistsJson, listType);
-                if (loadedPlaylists != null) {
-                    this.playlists = loadedPlaylists;
-                }
-            } catch (Exception e) {
+                smartRules.put(playlist.getId(), SmartRule.parse(playlist.getRule()));
+            } catch (IllegalArgumentException e) {
                 e.printStackTrace();
-                this.playlists = new ArrayList<>();
             }
         }
+    }
+    
+    /**
+     * Position of playlist {@code id} in the id-ordered list, by binary search.
+     */
+    private int findPosition(long id) {
+        int low = 0;
+        int high = playlists.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = playlists.get(mid).getId();
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+    
+    private void loadPlaylists() {
+        migrateLegacyPlaylists();
         
+        // Only headers are read here, entries are loaded per playlist when used
+        this.playlists = database.loadPlaylists();
+        for (Playlist playlist : playlists) {
+            index(playlist);
+            nextId = Math.max(nextId, playlist.getId() + 1);
+        }
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        nextId = Math.max(nextId, prefs.getLong(NEXT_ID_KEY, 1));
+
         // Create default playlists if none exist
         if (playlists.isEmpty()) {
             createDefaultPlaylists();
         }
     }
     
-    private void savePlaylists() {
+    /**
+     * Moves playlists from the old SharedPreferences JSON into the database, then
+     * drops the JSON so this only happens once.
+     */
+    private void migrateLegacyPlaylists() {
         SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        String playlistsJson = gson.toJson(playlists);
-        prefs.edit().putString(PLAYLISTS_KEY, playlistsJson).apply();
+        String playlistsJson = prefs.getString(PLAYLISTS_KEY, "");
+        if (playlistsJson.isEmpty()) {
+            return;
+        }
+        
+        try {
+            Type listType = new TypeToken<List<LegacyPlaylist>>(){}.getType();
+            List<LegacyPlaylist> legacyPlaylists = gson.fromJson(playlistsJson, listType);
+            if (legacyPlaylists != null) {
+                List<Playlist> converted = new ArrayList<>();
+                for (LegacyPlaylist legacy : legacyPlaylists) {
+                    converted.add(legacy.toPlaylist());
+                }
+                database.insertPlaylists(converted);
+            }
+            prefs.edit().remove(PLAYLISTS_KEY).apply();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
     
     private void createDefaultPlaylists() {
         createPlaylist("Favorites", "Your favorite songs");
-        createPlaylist("Recently Played", "Songs you've played recently");
-        createPlaylist("Most Played", "Your most played songs");
+        createPlaylist(RECENTLY_PLAYED, "Songs you've played recently");
+        createPlaylist(MOST_PLAYED, "Your most played songs");
     }
     
-    public List<Playlist> searchPlaylists(String query) {
+    public synchronized List<Playlist> searchPlaylists(String query) {
         List<Playlist> results = new ArrayList<>();
         String lowerQuery = query.toLowerCase();
         
@@ -178,25 +298,421 @@ public class PlaylistManager {
         return results;
     }
     
-    public int getPlaylistCount() {
+    public synchronized int getPlaylistCount() {
         return playlists.size();
     }
     
-    public boolean isPlaylistEmpty(long id) {
+    public synchronized boolean isPlaylistEmpty(long id) {
         Playlist playlist = getPlaylist(id);
         return playlist == null || playlist.isEmpty();
     }
     
-    public void clearAllPlaylists() {
+    /**
+     * Drops entries whose track is no longer in the library. Returns how many were
+     * removed. Missing tracks are otherwise just skipped when the playlist is shown.
+     */
+    public synchronized int removeMissingTracks(long id) {
+        Playlist playlist = getPlaylist(id);
+        if (playlist == null) {
+            return 0;
+        }
+        
+        TrackStore library = LibrarySync.getInstance(context).getSnapshot();
+        Playlist.TrackEntries entries = playlist.getEntries();
+        int removed = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            long trackId = entries.getTrackId(i);
+            if (!library.contains(trackId) && playlist.removeTrack(trackId)) {
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            writer.markChanged(playlist);
+        }
+        return removed;
+    }
+    
+    /**
+     * Moves {@code trackId} to the end of "Recently Played" and drops {@code evictedId}
+     * from it unless that is -1. Constant time; see {@link PlayHistory}.
+     */
+    public synchronized void updateRecentlyPlayed(long trackId, long evictedId) {
+        Playlist playlist = getPlaylistByName(RECENTLY_PLAYED);
+        if (playlist == null) {
+            return;
+        }
+        playlist.removeTrack(trackId);
+        if (evictedId != -1) {
+            playlist.removeTrack(evictedId);
+        }
+        playlist.addTrack(trackId);
+        writer.markChanged(playlist);
+    }
+    
+    /**
+     * Makes playlist {@code name} hold exactly {@code trackIds}, in that order, unless
+     * it already does. Meant for short lists such as "Most Played", which is synced
+     * with the top tracks in rank order after every play of one of them.
+     */
+    public synchronized void syncPlaylist(String name, long[] trackIds) {
+        Playlist playlist = getPlaylistByName(name);
+        if (playlist == null) {
+            return;
+        }
+        
+        Playlist.TrackEntries entries = playlist.getEntries();
+        boolean same = entries.size() == trackIds.length;
+        for (int i = 0; same && i < trackIds.length; i++) {
+            same = entries.getTrackId(i) == trackIds[i];
+        }
+        if (!same) {
+            replaceTracks(playlist, trackIds, trackIds.length);
+        }
+    }
+    
+    private void replaceTracks(Playlist playlist, long[] trackIds, int count) {
+        playlist.clearPlaylist();
+        for (int i = 0; i < count; i++) {
+            playlist.addTrack(trackIds[i]);
+        }
+        writer.markChanged(playlist);
+    }
+    
+    /**
+     * Creates a playlist whose tracks are the library tracks matching {@code ruleText},
+     * kept up to date as the library and play counts change. Returns false if the name
+     * is taken; throws IllegalArgumentException if the rule does not parse.
+     */
+    public boolean createSmartPlaylist(String name, String ruleText) {
+        SmartRule rule = SmartRule.parse(ruleText);
+        SmartRule.PlayCounts counts = PlayHistory.getInstance(context);
+        TrackStore library = librarySync.getSnapshot();
+        synchronized (this) {
+            if (getPlaylistByName(name) != null) {
+                return false;
+            }
+            
+            Playlist playlist = new Playlist(allocateId(), name, rule.getText());
+            playlist.setRule(rule.getText());
+            playlists.add(playlist);
+            index(playlist);
+            writer.markInserted(playlist);
+            evaluate(playlist, rule, library, counts);
+            return true;
+        }
+    }
+    
+    /**
+     * Replaces the rule of smart playlist {@code id} and re-evaluates it over the whole
+     * library. Throws IllegalArgumentException if the rule does not parse.
+     */
+    public boolean updateSmartRule(long id, String ruleText) {
+        SmartRule rule = SmartRule.parse(ruleText);
+        SmartRule.PlayCounts counts = PlayHistory.getInstance(context);
+        TrackStore library = librarySync.getSnapshot();
+        synchronized (this) {
+            Playlist playlist = getPlaylist(id);
+            if (playlist == null || !playlist.isSmart()) {
+                return false;
+            }
+            
+            playlist.setRule(rule.getText());
+            smartRules.put(id, rule);
+            matchers.remove(id);
+            writer.markInfoChanged(playlist);
+            evaluate(playlist, rule, library, counts);
+            return true;
+        }
+    }
+    
+    /**
+     * Re-checks the smart playlists that depend on play counts for {@code trackId}.
+     * Called by {@link PlayHistory} after each play.
+     */
+    public void onTrackPlayed(long trackId) {
+        SmartRule.PlayCounts counts = PlayHistory.getInstance(context);
+        TrackStore library = librarySync.getSnapshot();
+        synchronized (this) {
+            int index = library.indexOf(trackId);
+            for (Map.Entry<Long, SmartRule> entry : smartRules.entrySet()) {
+                if (entry.getValue().usesPlayCounts()) {
+                    Playlist playlist = playlistsById.get(entry.getKey());
+                    SmartRule.Matcher matcher = getMatcher(entry.getKey(), entry.getValue(), library, counts);
+                    if (updateMembership(playlist, matcher, trackId, index)) {
+                        writer.markChanged(playlist);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Evaluates every smart playlist against the current snapshot. Syncs that ran
+     * while no PlaylistManager existed, in this process or an earlier one, were
+     * reported to nobody and are not reported again, so this runs once per process.
+     */
+    private Void catchUpSmartPlaylists() {
+        SmartRule.PlayCounts counts = PlayHistory.getInstance(context);
+        synchronized (this) {
+            // Read under the lock, so a change reported meanwhile is never undone
+            TrackStore library = librarySync.getSnapshot();
+            for (Map.Entry<Long, SmartRule> entry : smartRules.entrySet()) {
+                evaluate(playlistsById.get(entry.getKey()), entry.getValue(), library, counts);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Only the changed tracks can have changed membership, so only they are checked;
+     * after a full rescan every smart playlist is evaluated again.
+     */
+    private void onLibraryChanged(TrackStore library, long[] changedIds) {
+        SmartRule.PlayCounts counts = PlayHistory.getInstance(context);
+        synchronized (this) {
+            for (Map.Entry<Long, SmartRule> entry : smartRules.entrySet()) {
+                Playlist playlist = playlistsById.get(entry.getKey());
+                if (changedIds == null) {
+                    evaluate(playlist, entry.getValue(), library, counts);
+                    continue;
+                }
+                
+                SmartRule.Matcher matcher = getMatcher(entry.getKey(), entry.getValue(), library, counts);
+                boolean changed = false;
+                for (long trackId : changedIds) {
+                    changed |= updateMembership(playlist, matcher, trackId, library.indexOf(trackId));
+                }
+                if (changed) {
+                    writer.markChanged(playlist);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Sets the tracks of {@code playlist} to those matching {@code rule}, in library
+     * order, unless it already holds exactly those.
+     */
+    private void evaluate(Playlist playlist, SmartRule rule, TrackStore library, SmartRule.PlayCounts counts) {
+        SmartRule.Matcher matcher = getMatcher(playlist.getId(), rule, library, counts);
+        long[] matching = new long[Math.max(16, playlist.getMusicCount())];
+        int count = 0;
+        boolean same = true;
+        for (int i = 0; i < library.size(); i++) {
+            if (matcher.matches(i)) {
+                if (count == matching.length) {
+                    matching = Arrays.copyOf(matching, count * 2);
+                }
+                long trackId = library.getId(i);
+                matching[count++] = trackId;
+                same = same && playlist.containsTrack(trackId);
+            }
+        }
+        if (!same || count != playlist.getMusicCount()) {
+            replaceTracks(playlist, matching, count);
+        }
+    }
+    
+    /**
+     * Adds or removes {@code trackId}, at {@code index} in the library or -1 if it is
+     * gone, so that membership follows the rule. Returns true if it changed.
+     */
+    private static boolean updateMembership(Playlist playlist, SmartRule.Matcher matcher,
+                                            long trackId, int index) {
+        if (index >= 0 && matcher.matches(index)) {
+            return playlist.addTrack(trackId);
+        }
+        return playlist.removeTrack(trackId);
+    }
+    
+    private SmartRule.Matcher getMatcher(long playlistId, SmartRule rule, TrackStore library,
+                                         SmartRule.PlayCounts counts) {
+        if (library != matcherStore) {
+            matchers.clear();
+            matcherStore = library;
+        }
+        SmartRule.Matcher matcher = matchers.get(playlistId);
+        if (matcher == null) {
+            matcher = rule.compile(library, counts);
+            matchers.put(playlistId, matcher);
+        }
+        return matcher;
+    }
+    
+    public synchronized void clearAllPlaylists() {
         playlists.clear();
-        savePlaylists();
+        playlistsById.clear();
+        playlistsByName.clear();
+        smartRules.clear();
+        matchers.clear();
+        writer.markAllDeleted();
+    }
+    
+    /**
+     * Writes every playlist into {@code directory}, one file per playlist, and returns
+     * the files written. Does file I/O on the calling thread. Progress counts entries
+     * over all playlists. A playlist that fails to write is skipped; on cancellation
+     * the partly written file is deleted and OperationCanceledException is thrown.
+     */
+    public List<File> exportPlaylists(File directory, int format,
+                                      final PlaylistFiles.ProgressListener listener,
+                                      CancellationSignal signal) {
+        List<Playlist> snapshots = new ArrayList<>();
+        long total = 0;
+        synchronized (this) {
+            for (Playlist playlist : playlists) {
+                Playlist snapshot = snapshot(playlist);
+                snapshots.add(snapshot);
+                total += snapshot.getMusicCount();
+            }
+        }
+        
+        TrackStore library = LibrarySync.getInstance(context).getSnapshot();
+        List<File> written = new ArrayList<>();
+        Set<String> usedNames = new HashSet<>();
+        long done = 0;
+        directory.mkdirs();
+        for (Playlist playlist : snapshots) {
+            String fileName = toFileName(playlist.getName());
+            if (!usedNames.add(fileName)) {
+                fileName = fileName + " (" + playlist.getId() + ")";
+            }
+            File file = new File(directory, fileName + "." + PlaylistFiles.getExtension(format));
+            
+            final long base = done;
+            final long grandTotal = total;
+            PlaylistFiles.ProgressListener progress = listener == null ? null
+                    : (entriesDone, entriesTotal) -> listener.onProgress(base + entriesDone, grandTotal);
+            try (OutputStream out = new FileOutputStream(file)) {
+                PlaylistFiles.write(playlist, library, out, format, progress, signal);
+                written.add(file);
+            } catch (OperationCanceledException e) {
+                file.delete();
+                throw e;
+            } catch (IOException e) {
+                e.printStackTrace();
+                file.delete();
+            }
+            done += playlist.getMusicCount();
+        }
+        return written;
     }
     
-    public void exportPlaylists() {
-        // TODO: Implement playlist export functionality
+    /**
+     * Writes playlist {@code id} to {@code out}, for destinations that are not plain
+     * files. Returns the number of entries written, or -1 if there is no such playlist.
+     */
+    public int exportPlaylist(long id, OutputStream out, int format,
+                              PlaylistFiles.ProgressListener listener,
+                              CancellationSignal signal) throws IOException {
+        Playlist snapshot;
+        synchronized (this) {
+            Playlist playlist = getPlaylist(id);
+            if (playlist == null) {
+                return -1;
+            }
+            snapshot = snapshot(playlist);
+        }
+        TrackStore library = LibrarySync.getInstance(context).getSnapshot();
+        return PlaylistFiles.write(snapshot, library, out, format, listener, signal);
     }
     
-    public void importPlaylists() {
-        // TODO: Implement playlist import functionality
+    /**
+     * Imports each file as a new playlist and returns the ones created. The format
+     * comes from the extension; unknown or unreadable files are skipped. Progress
+     * counts bytes over all files. A file is only added once it has been read to the
+     * end, so cancelling keeps the playlists already imported and drops the rest.
+     */
+    public List<Playlist> importPlaylists(List<File> files,
+                                          final PlaylistFiles.ProgressListener listener,
+                                          CancellationSignal signal) {
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        
+        List<Playlist> imported = new ArrayList<>();
+        long done = 0;
+        for (File file : files) {
+            int format = PlaylistFiles.formatForName(file.getName());
+            if (format >= 0) {
+                final long base = done;
+                final long grandTotal = total;
+                PlaylistFiles.ProgressListener progress = listener == null ? null
+                        : (bytesDone, bytesTotal) -> listener.onProgress(base + bytesDone, grandTotal);
+                try (InputStream in = new FileInputStream(file)) {
+                    Playlist playlist = importPlaylist(in, file.length(), format, file.getParentFile(),
+                            stripExtension(file.getName()), progress, signal);
+                    imported.add(playlist);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            done += file.length();
+        }
+        return imported;
+    }
+    
+    /**
+     * Reads one playlist from {@code in} and adds it. {@code fallbackName} is used when
+     * the file has no name of its own, with a number appended if it is taken.
+     */
+    public Playlist importPlaylist(InputStream in, long length, int format, File baseDir,
+                                   String fallbackName, PlaylistFiles.ProgressListener listener,
+                                   CancellationSignal signal) throws IOException {
+        TrackStore library = LibrarySync.getInstance(context).getSnapshot();
+        PlaylistFiles.ImportResult result =
+                PlaylistFiles.read(in, length, format, baseDir, library, listener, signal);
+        
+        Playlist playlist = result.playlist;
+        synchronized (this) {
+            String name = playlist.getName() != null ? playlist.getName() : fallbackName;
+            playlist.setId(allocateId());
+            playlist.setName(uniqueName(name));
+            playlists.add(playlist);
+            index(playlist);
+            writer.markInserted(playlist);
+        }
+        return playlist;
+    }
+    
+    private static Playlist snapshot(Playlist playlist) {
+        return new Playlist(playlist.getId(), playlist.getName(), playlist.getDescription(),
+                playlist.getEntries(), playlist.getDateCreated(), playlist.getDateModified());
+    }
+    
+    private String uniqueName(String name) {
+        String candidate = name;
+        for (int i = 2; playlistsByName.containsKey(candidate); i++) {
+            candidate = name + " (" + i + ")";
+        }
+        return candidate;
+    }
+    
+    private static String toFileName(String name) {
+        String fileName = name.replaceAll("[\\\\/:*?\"<>|\\x00-\\x1f]", "_").trim();
+        return fileName.isEmpty() ? "playlist" : fileName;
+    }
+    
+    private static String stripExtension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+    
+    /**
+     * Shape of the old JSON, which embedded a full copy of every track.
+     */
+    private static class LegacyPlaylist {
+        long id;
+        String name;
+        String description;
+        List<Music> musicList;
+        long dateCreated;
+        long dateModified;
+        
+        Playlist toPlaylist() {
+            List<Music> tracks = musicList != null ? musicList : new ArrayList<Music>();
+            return new Playlist(id, name, description, tracks, dateCreated, dateModified);
+        }
     }
 }
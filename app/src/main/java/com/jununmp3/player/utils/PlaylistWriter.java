@@ -0,0 +1,222 @@
+package com.jununmp3.player.utils;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+
+import com.jununmp3.player.model.Playlist;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-behind persistence for {@link PlaylistManager}.
+ * <p>
+ * Mutations only mark a playlist dirty. The first mark schedules a flush on a
+ * background thread a short moment later; everything marked until then is written
+ * in a single transaction, so a burst of edits to one playlist becomes one write.
+ * A failed flush keeps its changes pending for the next one, {@link #flush()}
+ * writes synchronously for shutdown and {@link #flushInBackground()} skips the delay.
+ */
+class PlaylistWriter {
+    
+    private static final long WRITE_DELAY_MS = 300;
+    private static final int MSG_FLUSH = 1;
+    
+    private static final int CHANGED_INFO = 1;
+    private static final int CHANGED_TRACKS = 2;
+    private static final int INSERTED = 4;
+    private static final int DELETED = 8;
+    
+    private final PlaylistDatabase database;
+    // Guards the pending changes and the playlists they point at; the manager itself
+    private final Object dataLock;
+    private final Handler handler;
+    private final Map<Long, Pending> pending = new LinkedHashMap<>();
+    private boolean clearAll = false;
+    
+    PlaylistWriter(PlaylistDatabase database, Object dataLock) {
+        this.database = database;
+        this.dataLock = dataLock;
+        
+        HandlerThread thread = new HandlerThread("PlaylistWriter", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_FLUSH) {
+                    flush();
+                }
+            }
+        };
+    }
+    
+    void markInserted(Playlist playlist) {
+        mark(playlist, INSERTED);
+    }
+    
+    void markInfoChanged(Playlist playlist) {
+        mark(playlist, CHANGED_INFO);
+    }
+    
+    /**
+     * Marks the name, dates and, if they are loaded, the entries of {@code playlist}.
+     */
+    void markChanged(Playlist playlist) {
+        mark(playlist, playlist.isLoaded() ? CHANGED_INFO | CHANGED_TRACKS : CHANGED_INFO);
+    }
+    
+    void markDeleted(long playlistId) {
+        synchronized (dataLock) {
+            Pending change = getPending(playlistId);
+            change.playlist = null;
+            change.flags = DELETED;
+        }
+        schedule();
+    }
+    
+    void markAllDeleted() {
+        synchronized (dataLock) {
+            pending.clear();
+            clearAll = true;
+        }
+        schedule();
+    }
+    
+    boolean hasPendingWrites() {
+        synchronized (dataLock) {
+            return clearAll || !pending.isEmpty();
+        }
+    }
+    
+    /**
+     * Writes every pending change on the writer thread without waiting out the delay.
+     */
+    void flushInBackground() {
+        handler.removeMessages(MSG_FLUSH);
+        handler.sendEmptyMessage(MSG_FLUSH);
+    }
+    
+    /**
+     * Writes every pending change now, on the calling thread. Flushes are serialized
+     * so an older snapshot can never be written after a newer one.
+     */
+    synchronized void flush() {
+        handler.removeMessages(MSG_FLUSH);
+        
+        final boolean clear;
+        final List<Pending> changes = new ArrayList<>();
+        synchronized (dataLock) {
+            clear = clearAll;
+            for (Pending change : pending.values()) {
+                changes.add(change.snapshot());
+            }
+            pending.clear();
+            clearAll = false;
+        }
+        if (!clear && changes.isEmpty()) {
+            return;
+        }
+        
+        try {
+            database.runInTransaction(() -> {
+                if (clear) {
+                    database.deleteAllPlaylists();
+                }
+                for (Pending change : changes) {
+                    if ((change.flags & DELETED) != 0) {
+                        database.deletePlaylist(change.playlistId);
+                    } else if ((change.flags & INSERTED) != 0) {
+                        database.insertPlaylist(change.playlist);
+                    } else {
+                        database.savePlaylist(change.playlist);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+            requeue(clear, changes);
+        }
+    }
+    
+    private void mark(Playlist playlist, int flags) {
+        synchronized (dataLock) {
+            Pending change = getPending(playlist.getId());
+            if ((change.flags & DELETED) != 0) {
+                // The id was reused after a delete; the insert replaces the old row
+                change.flags = INSERTED;
+            }
+            change.playlist = playlist;
+            change.flags |= flags;
+        }
+        schedule();
+    }
+    
+    private Pending getPending(long playlistId) {
+        Pending change = pending.get(playlistId);
+        if (change == null) {
+            change = new Pending(playlistId);
+            pending.put(playlistId, change);
+        }
+        return change;
+    }
+    
+    /**
+     * Puts the changes of a failed flush back, unless the playlist has been changed
+     * again since, in which case the newer change already covers it.
+     */
+    private void requeue(boolean clear, List<Pending> changes) {
+        synchronized (dataLock) {
+            clearAll |= clear;
+            for (Pending change : changes) {
+                if (!pending.containsKey(change.playlistId)) {
+                    pending.put(change.playlistId, change);
+                }
+            }
+        }
+        handler.sendEmptyMessageDelayed(MSG_FLUSH, WRITE_DELAY_MS);
+    }
+    
+    private void schedule() {
+        // The window starts at the first change, so a steady stream still gets written
+        if (!handler.hasMessages(MSG_FLUSH)) {
+            handler.sendEmptyMessageDelayed(MSG_FLUSH, WRITE_DELAY_MS);
+        }
+    }
+    
+    private static class Pending {
+        final long playlistId;
+        Playlist playlist;
+        int flags;
+        
+        Pending(long playlistId) {
+            this.playlistId = playlistId;
+        }
+        
+        /**
+         * Copies what has to be written, so the write can run outside the lock.
+         */
+        Pending snapshot() {
+            Pending copy = new Pending(playlistId);
+            copy.flags = flags;
+            if (playlist != null) {
+                boolean withTracks = (flags & (INSERTED | CHANGED_TRACKS)) != 0;
+                if (withTracks) {
+                    copy.playlist = new Playlist(playlist.getId(), playlist.getName(),
+                            playlist.getDescription(), playlist.getEntries(),
+                            playlist.getDateCreated(), playlist.getDateModified());
+                } else {
+                    // Not loaded, so savePlaylist() leaves the stored entries alone
+                    copy.playlist = new Playlist(playlist.getId(), playlist.getName(),
+                            playlist.getDescription(), playlist.getMusicCount(),
+                            playlist.getDateCreated(), playlist.getDateModified(), null);
+                }
+                copy.playlist.setRule(playlist.getRule());
+            }
+            return copy;
+        }
+    }
+}
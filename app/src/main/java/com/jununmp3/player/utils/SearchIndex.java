@@ -0,0 +1,366 @@
+package com.jununmp3.player.utils;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * In-memory inverted index over track titles, artists and albums.
+ * <p>
+ * Text is normalized (accents stripped, lower-cased, split on anything that is not
+ * a letter or digit) and every token maps to a postings list of documents. Each query
+ * token matches index tokens by prefix through a sorted token map; a token with no
+ * prefix match falls back to tokens one edit away. Results must match every query
+ * token and are ranked by which field matched and whether the match was exact.
+ */
+public class SearchIndex {
+    
+    private static final int FIELD_TITLE = 0;
+    private static final int FIELD_ARTIST = 1;
+    private static final int FIELD_ALBUM = 2;
+    private static final int[] FIELD_WEIGHTS = {6, 4, 2};
+    private static final int MIN_FUZZY_LENGTH = 4;
+    
+    private final TreeMap<String, Postings> tokens = new TreeMap<>();
+    private final LongIntMap docsById = new LongIntMap();
+    private long[] docIds = new long[16];
+    private int docCount;
+    private int[] freeDocs = new int[16];
+    private int freeCount;
+    
+    // Per-query scratch space indexed by document, reset after every search
+    private int[] matchedTokens = new int[0];
+    private int[] tokenScores = new int[0];
+    private int[] totalScores = new int[0];
+    private int[] touched = new int[0];
+    private int touchedCount;
+    
+    public SearchIndex() {}
+    
+    public SearchIndex(TrackStore tracks) {
+        for (int i = 0; i < tracks.size(); i++) {
+            add(tracks.getId(i), tracks.getTitle(i), tracks.getArtist(i), tracks.getAlbum(i));
+        }
+    }
+    
+    public synchronized int size() {
+        return docsById.size();
+    }
+    
+    /**
+     * Indexes the track {@code id}. The track must not already be in the index.
+     */
+    public synchronized void add(long id, String title, String artist, String album) {
+        int doc;
+        if (freeCount > 0) {
+            doc = freeDocs[--freeCount];
+        } else {
+            if (docCount == docIds.length) {
+                docIds = Arrays.copyOf(docIds, docCount * 2);
+            }
+            doc = docCount++;
+        }
+        docIds[doc] = id;
+        docsById.put(id, doc);
+        
+        indexField(doc, FIELD_TITLE, title);
+        indexField(doc, FIELD_ARTIST, artist);
+        indexField(doc, FIELD_ALBUM, album);
+    }
+    
+    /**
+     * Removes the track {@code id}. The text must be what it was indexed with, since
+     * the index keeps no copy of it.
+     */
+    public synchronized void remove(long id, String title, String artist, String album) {
+        int doc = docsById.remove(id);
+        if (doc == LongIntMap.MISSING) {
+            return;
+        }
+        
+        unindexField(doc, title);
+        unindexField(doc, artist);
+        unindexField(doc, album);
+        if (freeCount == freeDocs.length) {
+            freeDocs = Arrays.copyOf(freeDocs, freeCount * 2);
+        }
+        freeDocs[freeCount++] = doc;
+    }
+    
+    public synchronized void clear() {
+        tokens.clear();
+        docsById.clear();
+        docCount = 0;
+        freeCount = 0;
+    }
+    
+    /**
+     * Returns the ids of up to {@code limit} tracks matching every token of
+     * {@code query}, best match first.
+     */
+    public synchronized long[] search(String query, int limit) {
+        List<String> queryTokens = tokenize(query);
+        if (queryTokens.isEmpty() || limit <= 0) {
+            return new long[0];
+        }
+        
+        ensureScratch();
+        touchedCount = 0;
+        int tokenCount = queryTokens.size();
+        for (int i = 0; i < tokenCount; i++) {
+            if (!match(queryTokens.get(i), i)) {
+                resetScratch();
+                return new long[0];
+            }
+        }
+        
+        // Bounded min-heap keeps only the best `limit` candidates
+        PriorityQueue<Integer> best = new PriorityQueue<>(limit + 1, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareDocs(b, a);
+            }
+        });
+        for (int i = 0; i < touchedCount; i++) {
+            int doc = touched[i];
+            if (matchedTokens[doc] != tokenCount) {
+                continue;
+            }
+            if (best.size() < limit) {
+                best.add(doc);
+            } else if (compareDocs(doc, best.peek()) < 0) {
+                best.poll();
+                best.add(doc);
+            }
+        }
+        
+        List<Integer> ranked = new ArrayList<>(best);
+        Collections.sort(ranked, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareDocs(a, b);
+            }
+        });
+        resetScratch();
+        
+        long[] results = new long[ranked.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = docIds[ranked.get(i)];
+        }
+        return results;
+    }
+    
+    /**
+     * Orders by score, then by document number. Documents are numbered in the order
+     * the (title-sorted) library was added, so ties come out close to title order
+     * without any string comparisons.
+     */
+    private int compareDocs(int a, int b) {
+        int result = totalScores[b] - totalScores[a];
+        return result != 0 ? result : a - b;
+    }
+    
+    /**
+     * Scores the documents matching {@code queryToken}. Only documents that matched
+     * all earlier tokens are kept. Returns false if nothing matched.
+     */
+    private boolean match(String queryToken, int tokenIndex) {
+        boolean matched = false;
+        
+        SortedMap<String, Postings> prefixMatches = tokens.subMap(queryToken, queryToken + Character.MAX_VALUE);
+        for (Map.Entry<String, Postings> entry : prefixMatches.entrySet()) {
+            boolean exact = entry.getKey().length() == queryToken.length();
+            matched |= collect(entry.getValue(), exact ? 2 : 1, tokenIndex);
+        }
+        
+        if (!matched && queryToken.length() >= MIN_FUZZY_LENGTH) {
+            // Typo tolerance: only tokens sharing the first letter are considered, which
+            // keeps the scan to a small slice of the dictionary
+            String first = queryToken.substring(0, 1);
+            SortedMap<String, Postings> candidates = tokens.subMap(first, first + Character.MAX_VALUE);
+            for (Map.Entry<String, Postings> entry : candidates.entrySet()) {
+                if (withinOneEdit(queryToken, entry.getKey())) {
+                    matched |= collect(entry.getValue(), 1, tokenIndex);
+                }
+            }
+        }
+        return matched;
+    }
+    
+    private boolean collect(Postings postings, int multiplier, int tokenIndex) {
+        boolean matched = false;
+        for (int i = 0; i < postings.size; i++) {
+            int entry = postings.entries[i];
+            int doc = entry >>> 2;
+            int score = FIELD_WEIGHTS[entry & 3] * multiplier;
+            
+            if (matchedTokens[doc] == tokenIndex) {
+                // First hit for this token on a document that matched all earlier ones
+                if (tokenIndex == 0) {
+                    touched[touchedCount++] = doc;
+                }
+                matchedTokens[doc] = tokenIndex + 1;
+                tokenScores[doc] = score;
+                totalScores[doc] += score;
+                matched = true;
+            } else if (matchedTokens[doc] == tokenIndex + 1 && score > tokenScores[doc]) {
+                // A better field for the same token, keep only the best one
+                totalScores[doc] += score - tokenScores[doc];
+                tokenScores[doc] = score;
+            }
+        }
+        return matched;
+    }
+    
+    private void ensureScratch() {
+        int capacity = docCount;
+        if (matchedTokens.length < capacity) {
+            matchedTokens = new int[capacity];
+            tokenScores = new int[capacity];
+            totalScores = new int[capacity];
+            touched = new int[capacity];
+        }
+    }
+    
+    private void resetScratch() {
+        for (int i = 0; i < touchedCount; i++) {
+            int doc = touched[i];
+            matchedTokens[doc] = 0;
+            tokenScores[doc] = 0;
+            totalScores[doc] = 0;
+        }
+        touchedCount = 0;
+    }
+    
+    private void indexField(int doc, int field, String text) {
+        for (String token : tokenize(text)) {
+            Postings postings = tokens.get(token);
+            if (postings == null) {
+                postings = new Postings();
+                tokens.put(token, postings);
+            }
+            postings.add(doc << 2 | field);
+        }
+    }
+    
+    private void unindexField(int doc, String text) {
+        for (String token : tokenize(text)) {
+            Postings postings = tokens.get(token);
+            if (postings != null && postings.removeDoc(doc) && postings.size == 0) {
+                tokens.remove(token);
+            }
+        }
+    }
+    
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        if (isAscii(text)) {
+            // Nothing to decompose, skip the Normalizer for the common case
+            return text.toLowerCase(Locale.ROOT);
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return decomposed.replaceAll("\\p{M}+", "").toLowerCase(Locale.ROOT);
+    }
+    
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    static List<String> tokenize(String text) {
+        List<String> result = new ArrayList<>();
+        String normalized = normalize(text);
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            boolean wordChar = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String token = normalized.substring(start, i);
+                if (!result.contains(token)) {
+                    result.add(token);
+                }
+                start = -1;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * True if {@code a} and {@code b} differ by at most one insertion, deletion,
+     * substitution or adjacent transposition.
+     */
+    static boolean withinOneEdit(String a, String b) {
+        int lengthA = a.length();
+        int lengthB = b.length();
+        if (Math.abs(lengthA - lengthB) > 1) {
+            return false;
+        }
+        
+        int i = 0;
+        while (i < lengthA && i < lengthB && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        if (i == lengthA && i == lengthB) {
+            return true;
+        }
+        
+        if (lengthA == lengthB) {
+            // Substitution, or a swap of two neighbouring characters
+            if (a.regionMatches(i + 1, b, i + 1, lengthA - i - 1)) {
+                return true;
+            }
+            return i + 1 < lengthA
+                    && a.charAt(i) == b.charAt(i + 1)
+                    && a.charAt(i + 1) == b.charAt(i)
+                    && a.regionMatches(i + 2, b, i + 2, lengthA - i - 2);
+        }
+        if (lengthA > lengthB) {
+            return a.regionMatches(i + 1, b, i, lengthB - i);
+        }
+        return b.regionMatches(i + 1, a, i, lengthA - i);
+    }
+    
+    /**
+     * Growable array of {@code doc << 2 | field} entries.
+     */
+    private static class Postings {
+        int[] entries = new int[2];
+        int size;
+        
+        void add(int entry) {
+            if (size == entries.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(entries, 0, grown, 0, size);
+                entries = grown;
+            }
+            entries[size++] = entry;
+        }
+        
+        boolean removeDoc(int doc) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (entries[i] >>> 2 != doc) {
+                    entries[kept++] = entries[i];
+                }
+            }
+            boolean removed = kept != size;
+            size = kept;
+            return removed;
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package com.jununmp3.player.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Rule of a smart playlist, such as
+ * {@code artist = "Daft Punk" and duration > 3m and played < 2}.
+ * <p>
+ * Conditions compare a field with a value: {@code title}, {@code artist} and
+ * {@code album} take text and support {@code =}, {@code !=}, {@code ~} (contains)
+ * and {@code !~}, case-insensitively; {@code duration} (seconds, or with an
+ * {@code s}/{@code m}/{@code h} suffix or as {@code m:ss}), {@code size} (bytes, or
+ * {@code kb}/{@code mb}/{@code gb}) and {@code played} (play count) take numbers
+ * and the usual comparisons. Conditions combine with {@code and}, {@code or},
+ * {@code not} and parentheses.
+ * <p>
+ * A parsed rule is compiled against one {@link TrackStore} into a tree of
+ * {@link Matcher}s. Text conditions on artist and album are decided once per
+ * interned name when compiling, so per track they cost an array lookup.
+ */
+public final class SmartRule {
+    
+    private static final int FIELD_TITLE = 0;
+    private static final int FIELD_ARTIST = 1;
+    private static final int FIELD_ALBUM = 2;
+    private static final int FIELD_DURATION = 3;
+    private static final int FIELD_SIZE = 4;
+    private static final int FIELD_PLAYED = 5;
+    private static final String[] FIELD_NAMES = {"title", "artist", "album", "duration", "size", "played"};
+    
+    private static final int OP_EQ = 0;
+    private static final int OP_NE = 1;
+    private static final int OP_LT = 2;
+    private static final int OP_LE = 3;
+    private static final int OP_GT = 4;
+    private static final int OP_GE = 5;
+    private static final int OP_CONTAINS = 6;
+    private static final int OP_NOT_CONTAINS = 7;
+    private static final String[] OP_SYMBOLS = {"=", "!=", "<", "<=", ">", ">=", "~", "!~"};
+    
+    public interface PlayCounts {
+        int getPlayCount(long trackId);
+    }
+    
+    public interface Matcher {
+        boolean matches(int index);
+    }
+    
+    private final String text;
+    private final Node root;
+    private final boolean usesPlayCounts;
+    
+    private SmartRule(String text, Node root) {
+        this.text = text;
+        this.root = root;
+        this.usesPlayCounts = root.usesField(FIELD_PLAYED);
+    }
+    
+    /**
+     * Parses {@code text}, throwing IllegalArgumentException with the position of the
+     * problem if it is not a valid rule.
+     */
+    public static SmartRule parse(String text) {
+        Parser parser = new Parser(text);
+        Node root = parser.parseExpression();
+        parser.expectEnd();
+        return new SmartRule(text, root);
+    }
+    
+    public String getText() {
+        return text;
+    }
+    
+    /**
+     * True if the result can change when a track is played.
+     */
+    public boolean usesPlayCounts() {
+        return usesPlayCounts;
+    }
+    
+    /**
+     * Compiles the rule for tracks of {@code store}. {@code counts} may be null when
+     * the rule does not use play counts.
+     */
+    public Matcher compile(TrackStore store, PlayCounts counts) {
+        return root.compile(store, counts);
+    }
+    
+    @Override
+    public String toString() {
+        return text;
+    }
+    
+    private abstract static class Node {
+        abstract Matcher compile(TrackStore store, PlayCounts counts);
+        abstract boolean usesField(int field);
+    }
+    
+    private static final class And extends Node {
+        final Node left;
+        final Node right;
+        
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+        
+        @Override
+        Matcher compile(TrackStore store, PlayCounts counts) {
+            final Matcher a = left.compile(store, counts);
+            final Matcher b = right.compile(store, counts);
+            return index -> a.matches(index) && b.matches(index);
+        }
+        
+        @Override
+        boolean usesField(int field) {
+            return left.usesField(field) || right.usesField(field);
+        }
+    }
+    
+    private static final class Or extends Node {
+        final Node left;
+        final Node right;
+        
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+        
+        @Override
+        Matcher compile(TrackStore store, PlayCounts counts) {
+            final Matcher a = left.compile(store, counts);
+            final Matcher b = right.compile(store, counts);
+            return index -> a.matches(index) || b.matches(index);
+        }
+        
+        @Override
+        boolean usesField(int field) {
+            return left.usesField(field) || right.usesField(field);
+        }
+    }
+    
+    private static final class Not extends Node {
+        final Node operand;
+        
+        Not(Node operand) {
+            this.operand = operand;
+        }
+        
+        @Override
+        Matcher compile(TrackStore store, PlayCounts counts) {
+            final Matcher a = operand.compile(store, counts);
+            return index -> !a.matches(index);
+        }
+        
+        @Override
+        boolean usesField(int field) {
+            return operand.usesField(field);
+        }
+    }
+    
+    private static final class TextCondition extends Node {
+        final int field;
+        final int op;
+        // Lower-cased, so comparisons only fold the track's side
+        final String value;
+        
+        TextCondition(int field, int op, String value) {
+            this.field = field;
+            this.op = op;
+            this.value = value.toLowerCase(Locale.ROOT);
+        }
+        
+        @Override
+        Matcher compile(final TrackStore store, PlayCounts counts) {
+            if (field == FIELD_TITLE) {
+                return index -> test(store.getTitle(index));
+            }
+            
+            // Decide each distinct artist or album name once
+            final boolean artist = field == FIELD_ARTIST;
+            int count = artist ? store.getArtistCount() : store.getAlbumNameCount();
+            final boolean[] matching = new boolean[count];
+            for (int ref = 0; ref < count; ref++) {
+                matching[ref] = test(artist ? store.getArtistName(ref) : store.getAlbumName(ref));
+            }
+            if (artist) {
+                return index -> matching[store.getArtistRef(index)];
+            }
+            return index -> matching[store.getAlbumRef(index)];
+        }
+        
+        boolean test(String text) {
+            String folded = text != null ? text.toLowerCase(Locale.ROOT) : "";
+            switch (op) {
+                case OP_EQ:
+                    return folded.equals(value);
+                case OP_NE:
+                    return !folded.equals(value);
+                case OP_CONTAINS:
+                    return folded.contains(value);
+                default:
+                    return !folded.contains(value);
+            }
+        }
+        
+        @Override
+        boolean usesField(int field) {
+            return this.field == field;
+        }
+    }
+    
+    private static final class NumberCondition extends Node {
+        final int field;
+        final int op;
+        final long value;
+        
+        NumberCondition(int field, int op, long value) {
+            this.field = field;
+            this.op = op;
+            this.value = value;
+        }
+        
+        @Override
+        Matcher compile(final TrackStore store, final PlayCounts counts) {
+            switch (field) {
+                case FIELD_DURATION:
+                    return index -> compare(store.getDuration(index));
+                case FIELD_SIZE:
+                    return index -> compare(store.getSize(index));
+                default:
+                    if (counts == null) {
+                        return index -> compare(0);
+                    }
+                    return index -> compare(counts.getPlayCount(store.getId(index)));
+            }
+        }
+        
+        boolean compare(long actual) {
+            switch (op) {
+                case OP_EQ:
+                    return actual == value;
+                case OP_NE:
+                    return actual != value;
+                case OP_LT:
+                    return actual < value;
+                case OP_LE:
+                    return actual <= value;
+                case OP_GT:
+                    return actual > value;
+                default:
+                    return actual >= value;
+            }
+        }
+        
+        @Override
+        boolean usesField(int field) {
+            return this.field == field;
+        }
+    }
+    
+    /**
+     * Recursive-descent parser; {@code or} binds looser than {@code and}.
+     */
+    private static final class Parser {
+        private final String text;
+        private final List<String> tokens = new ArrayList<>();
+        private final List<Integer> offsets = new ArrayList<>();
+        private int position = 0;
+        
+        Parser(String text) {
+            if (text == null) {
+                throw new IllegalArgumentException("Empty rule");
+            }
+            this.text = text;
+            tokenize();
+        }
+        
+        Node parseExpression() {
+            Node node = parseTerm();
+            while (acceptKeyword("or")) {
+                node = new Or(node, parseTerm());
+            }
+            return node;
+        }
+        
+        private Node parseTerm() {
+            Node node = parseFactor();
+            while (acceptKeyword("and")) {
+                node = new And(node, parseFactor());
+            }
+            return node;
+        }
+        
+        private Node parseFactor() {
+            if (acceptKeyword("not")) {
+                return new Not(parseFactor());
+            }
+            if (accept("(")) {
+                Node node = parseExpression();
+                expect(")");
+                return node;
+            }
+            return parseCondition();
+        }
+        
+        private Node parseCondition() {
+            int fieldAt = position;
+            String name = next("field").toLowerCase(Locale.ROOT);
+            int field = indexOf(FIELD_NAMES, name);
+            if (field < 0) {
+                throw error("Unknown field '" + name + "'", fieldAt);
+            }
+            int opAt = position;
+            int op = indexOf(OP_SYMBOLS, next("operator"));
+            if (op < 0) {
+                throw error("Expected an operator", opAt);
+            }
+            int valueAt = position;
+            String value = next("value");
+            if (value.startsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            
+            if (field <= FIELD_ALBUM) {
+                if (op != OP_EQ && op != OP_NE && op != OP_CONTAINS && op != OP_NOT_CONTAINS) {
+                    throw error("Text fields only support =, !=, ~ and !~", opAt);
+                }
+                return new TextCondition(field, op, value);
+            }
+            if (op == OP_CONTAINS || op == OP_NOT_CONTAINS) {
+                throw error("~ and !~ only apply to text fields", opAt);
+            }
+            return new NumberCondition(field, op, parseNumber(field, value, valueAt));
+        }
+        
+        /**
+         * Converts to the unit the store uses: milliseconds for duration, bytes for size.
+         */
+        private long parseNumber(int field, String value, int at) {
+            String lower = value.toLowerCase(Locale.ROOT);
+            try {
+                if (field == FIELD_DURATION) {
+                    int colon = lower.indexOf(':');
+                    if (colon > 0) {
+                        return (Long.parseLong(lower.substring(0, colon)) * 60
+                                + Long.parseLong(lower.substring(colon + 1))) * 1000;
+                    }
+                    long scale = 1000;
+                    if (lower.endsWith("h")) {
+                        scale = 3600 * 1000;
+                    } else if (lower.endsWith("m")) {
+                        scale = 60 * 1000;
+                    }
+                    return Math.round(Double.parseDouble(stripUnit(lower, "hms")) * scale);
+                }
+                if (field == FIELD_SIZE) {
+                    long scale = 1;
+                    if (lower.endsWith("gb")) {
+                        scale = 1024L * 1024 * 1024;
+                    } else if (lower.endsWith("mb")) {
+                        scale = 1024 * 1024;
+                    } else if (lower.endsWith("kb")) {
+                        scale = 1024;
+                    }
+                    return Math.round(Double.parseDouble(stripUnit(lower, "kmgb")) * scale);
+                }
+                return Long.parseLong(lower);
+            } catch (NumberFormatException e) {
+                throw error("Invalid number '" + value + "'", at);
+            }
+        }
+        
+        private static String stripUnit(String value, String unitChars) {
+            int end = value.length();
+            while (end > 0 && unitChars.indexOf(value.charAt(end - 1)) >= 0) {
+                end--;
+            }
+            return value.substring(0, end);
+        }
+        
+        void expectEnd() {
+            if (position < tokens.size()) {
+                throw error("Unexpected '" + tokens.get(position) + "'", position);
+            }
+        }
+        
+        private boolean accept(String token) {
+            if (position < tokens.size() && tokens.get(position).equals(token)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+        
+        private boolean acceptKeyword(String keyword) {
+            if (position < tokens.size() && tokens.get(position).equalsIgnoreCase(keyword)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+        
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw error("Expected '" + token + "'", position);
+            }
+        }
+        
+        private String next(String what) {
+            if (position >= tokens.size()) {
+                throw error("Expected a " + what, position);
+            }
+            return tokens.get(position++);
+        }
+        
+        private IllegalArgumentException error(String message, int tokenIndex) {
+            int offset = tokenIndex < offsets.size() ? offsets.get(tokenIndex) : text.length();
+            return new IllegalArgumentException(message + " at " + offset + " in rule: " + text);
+        }
+        
+        private void tokenize() {
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                int start = i;
+                if (Character.isWhitespace(c)) {
+                    i++;
+                    continue;
+                }
+                if (c == '(' || c == ')' || c == '=' || c == '~') {
+                    i++;
+                } else if (c == '!' || c == '<' || c == '>') {
+                    i++;
+                    if (i < text.length() && (text.charAt(i) == '=' || (c == '!' && text.charAt(i) == '~'))) {
+                        i++;
+                    }
+                } else if (c == '"') {
+                    i = text.indexOf('"', i + 1);
+                    if (i < 0) {
+                        offsets.add(start);
+                        throw error("Unterminated string", offsets.size() - 1);
+                    }
+                    i++;
+                } else {
+                    while (i < text.length() && isWordChar(text.charAt(i))) {
+                        i++;
+                    }
+                    if (i == start) {
+                        offsets.add(start);
+                        throw error("Unexpected '" + c + "'", offsets.size() - 1);
+                    }
+                }
+                tokens.add(text.substring(start, i));
+                offsets.add(start);
+            }
+        }
+        
+        private static boolean isWordChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '.' || c == ':' || c == '_' || c == '-' || c == '\'';
+        }
+        
+        private static int indexOf(String[] values, String value) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i].equals(value)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package com.jununmp3.player.utils;
+
+import com.jununmp3.player.model.Music;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Immutable, column-oriented snapshot of the music library.
+ * <p>
+ * Numeric fields live in primitive arrays, artists, albums and directories are
+ * interned into shared tables, and paths are stored as a directory reference plus a
+ * file name. {@link Music} objects are only created on demand by {@link #get(int)}
+ * and the {@link #asList()} view, so holding the library costs a handful of arrays
+ * instead of one object graph per track.
+ */
+public final class TrackStore {
+    
+    private static final Comparator<String> TITLE_ORDER = String.CASE_INSENSITIVE_ORDER;
+    
+    public static final TrackStore EMPTY = new Builder(0).build(false);
+    
+    private final int size;
+    private final long[] ids;
+    private final long[] albumIds;
+    private final long[] durations;
+    private final long[] sizes;
+    private final int[] trackNumbers;
+    private final String[] titles;
+    private final int[] artistRefs;
+    private final int[] albumRefs;
+    private final int[] dirRefs;
+    private final String[] fileNames;
+    // Null where the display name is just the file name
+    private final String[] displayNames;
+    private final String[] artistTable;
+    private final String[] albumTable;
+    private final String[] dirTable;
+    private final LongIntMap indexById;
+    // Path hash -> position, built the first time a path is looked up
+    private volatile LongIntMap indexByPath;
+    private List<Music> listView;
+    
+    private TrackStore(Builder builder, int[] order) {
+        size = builder.size;
+        ids = new long[size];
+        albumIds = new long[size];
+        durations = new long[size];
+        sizes = new long[size];
+        trackNumbers = new int[size];
+        titles = new String[size];
+        artistRefs = new int[size];
+        albumRefs = new int[size];
+        dirRefs = new int[size];
+        fileNames = new String[size];
+        displayNames = new String[size];
+        indexById = new LongIntMap(size);
+        
+        for (int i = 0; i < size; i++) {
+            int from = order != null ? order[i] : i;
+            ids[i] = builder.ids[from];
+            albumIds[i] = builder.albumIds[from];
+            durations[i] = builder.durations[from];
+            sizes[i] = builder.sizes[from];
+            trackNumbers[i] = builder.trackNumbers[from];
+            titles[i] = builder.titles[from];
+            artistRefs[i] = builder.artistRefs[from];
+            albumRefs[i] = builder.albumRefs[from];
+            dirRefs[i] = builder.dirRefs[from];
+            fileNames[i] = builder.fileNames[from];
+            displayNames[i] = builder.displayNames[from];
+            indexById.put(ids[i], i);
+        }
+        
+        artistTable = builder.artists.toArray();
+        albumTable = builder.albums.toArray();
+        dirTable = builder.dirs.toArray();
+    }
+    
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+    
+    public long getId(int index) { return ids[index]; }
+    public long getAlbumId(int index) { return albumIds[index]; }
+    public long getDuration(int index) { return durations[index]; }
+    public long getSize(int index) { return sizes[index]; }
+    public int getTrackNumber(int index) { return trackNumbers[index]; }
+    public String getTitle(int index) { return titles[index]; }
+    public String getArtist(int index) { return artistTable[artistRefs[index]]; }
+    public String getAlbum(int index) { return albumTable[albumRefs[index]]; }
+    public String getPath(int index) { return dirTable[dirRefs[index]] + fileNames[index]; }
+    public String getAlbumArt(int index) { return MusicLibrary.getAlbumArtUri(albumIds[index]); }
+    
+    public String getDisplayName(int index) {
+        String displayName = displayNames[index];
+        return displayName != null ? displayName : fileNames[index];
+    }
+    
+    /**
+     * Interned artist reference of the track, equal for every track by the same artist.
+     */
+    public int getArtistRef(int index) { return artistRefs[index]; }
+    
+    /**
+     * Interned album-name reference of the track.
+     */
+    public int getAlbumRef(int index) { return albumRefs[index]; }
+    
+    public int getArtistCount() { return artistTable.length; }
+    public int getAlbumNameCount() { return albumTable.length; }
+    public String getArtistName(int artistRef) { return artistTable[artistRef]; }
+    public String getAlbumName(int albumRef) { return albumTable[albumRef]; }
+    
+    /**
+     * Returns the position of the track with {@code id}, or -1.
+     */
+    public int indexOf(long id) {
+        return indexById.get(id);
+    }
+    
+    public boolean contains(long id) {
+        return indexById.containsKey(id);
+    }
+    
+    /**
+     * Returns the position of the track stored at {@code path}, or -1. The index
+     * behind this keeps a 64-bit hash per track rather than the joined paths.
+     */
+    public int indexOfPath(String path) {
+        if (path == null) {
+            return -1;
+        }
+        LongIntMap index = indexByPath;
+        if (index == null) {
+            index = buildPathIndex();
+        }
+        int position = index.get(hashPath(path, ""));
+        return position >= 0 && pathEquals(position, path) ? position : -1;
+    }
+    
+    private synchronized LongIntMap buildPathIndex() {
+        if (indexByPath == null) {
+            LongIntMap index = new LongIntMap(size);
+            for (int i = 0; i < size; i++) {
+                index.put(hashPath(dirTable[dirRefs[i]], fileNames[i]), i);
+            }
+            indexByPath = index;
+        }
+        return indexByPath;
+    }
+    
+    private boolean pathEquals(int index, String path) {
+        String dir = dirTable[dirRefs[index]];
+        String fileName = fileNames[index];
+        return path.length() == dir.length() + fileName.length()
+                && path.startsWith(dir) && path.endsWith(fileName);
+    }
+    
+    /**
+     * FNV-1a over {@code dir} followed by {@code fileName}, equal to the hash of the
+     * joined path without building it.
+     */
+    private static long hashPath(String dir, String fileName) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < dir.length(); i++) {
+            hash = (hash ^ dir.charAt(i)) * 0x100000001b3L;
+        }
+        for (int i = 0; i < fileName.length(); i++) {
+            hash = (hash ^ fileName.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+    
+    /**
+     * Materializes the track at {@code index}. The result is a detached copy.
+     */
+    public Music get(int index) {
+        Music music = new Music(ids[index], titles[index], getArtist(index), getAlbum(index),
+                albumIds[index], durations[index], getPath(index), getAlbumArt(index),
+                sizes[index], getDisplayName(index));
+        music.setTrackNumber(trackNumbers[index]);
+        return music;
+    }
+    
+    public Music findById(long id) {
+        int index = indexOf(id);
+        return index >= 0 ? get(index) : null;
+    }
+    
+    /**
+     * Read-only {@link List} view for code that works with Music. Rows are created as
+     * they are read, and {@code indexOf}/{@code contains} are id lookups.
+     */
+    public List<Music> asList() {
+        if (listView == null) {
+            listView = new MusicListView();
+        }
+        return listView;
+    }
+    
+    /**
+     * Looks up {@code count} track ids in one pass and returns the ones still in the
+     * library, in the same order. The result is a read-only view that creates each
+     * Music when it is read.
+     */
+    public List<Music> resolve(long[] trackIds, int count) {
+        int[] found = new int[count];
+        int foundCount = 0;
+        for (int i = 0; i < count; i++) {
+            int index = indexOf(trackIds[i]);
+            if (index >= 0) {
+                found[foundCount++] = index;
+            }
+        }
+        return new ResolvedListView(found, 0, foundCount);
+    }
+    
+    /**
+     * Read-only view of the tracks at {@code indices[from]} up to
+     * {@code indices[from + count]}. The array is shared and must not change.
+     */
+    public List<Music> view(int[] indices, int from, int count) {
+        return new ResolvedListView(indices, from, count);
+    }
+    
+    /**
+     * True if the track at {@code index} holds exactly the data in {@code music}.
+     */
+    public boolean sameContent(int index, Music music) {
+        return ids[index] == music.getId()
+                && albumIds[index] == music.getAlbumId()
+                && durations[index] == music.getDuration()
+                && sizes[index] == music.getSize()
+                && trackNumbers[index] == music.getTrackNumber()
+                && titles[index].equals(music.getTitle())
+                && getArtist(index).equals(music.getArtist())
+                && getAlbum(index).equals(music.getAlbum())
+                && getPath(index).equals(music.getPath())
+                && getDisplayName(index).equals(music.getDisplayName());
+    }
+    
+    /**
+     * Returns a new title-sorted store with {@code removals} dropped and
+     * {@code upserts} inserted or replacing the rows with the same id.
+     */
+    public TrackStore apply(Map<Long, Music> upserts, Set<Long> removals) {
+        if (upserts.isEmpty() && removals.isEmpty()) {
+            return this;
+        }
+        
+        Builder builder = new Builder(size + upserts.size());
+        for (int i = 0; i < size; i++) {
+            long id = ids[i];
+            if (!removals.contains(id) && !upserts.containsKey(id)) {
+                builder.add(this, i);
+            }
+        }
+        for (Music music : upserts.values()) {
+            builder.add(music);
+        }
+        return builder.build(true);
+    }
+    
+    private class MusicListView extends AbstractList<Music> implements RandomAccess {
+        @Override
+        public Music get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return TrackStore.this.get(index);
+        }
+        
+        @Override
+        public int size() {
+            return size;
+        }
+        
+        @Override
+        public int indexOf(Object o) {
+            if (!(o instanceof Music)) {
+                return -1;
+            }
+            Music music = (Music) o;
+            int index = TrackStore.this.indexOf(music.getId());
+            return index >= 0 && getPath(index).equals(music.getPath()) ? index : -1;
+        }
+        
+        @Override
+        public int lastIndexOf(Object o) {
+            return indexOf(o);
+        }
+        
+        @Override
+        public boolean contains(Object o) {
+            return indexOf(o) >= 0;
+        }
+    }
+    
+    private class ResolvedListView extends AbstractList<Music> implements RandomAccess {
+        private final int[] indices;
+        private final int from;
+        private final int count;
+        
+        ResolvedListView(int[] indices, int from, int count) {
+            this.indices = indices;
+            this.from = from;
+            this.count = count;
+        }
+        
+        @Override
+        public Music get(int index) {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+            }
+            return TrackStore.this.get(indices[from + index]);
+        }
+        
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+    
+    /**
+     * Accumulates rows, interning the shared string columns as it goes.
+     */
+    public static final class Builder {
+        private int size;
+        private long[] ids;
+        private long[] albumIds;
+        private long[] durations;
+        private long[] sizes;
+        private int[] trackNumbers;
+        private String[] titles;
+        private int[] artistRefs;
+        private int[] albumRefs;
+        private int[] dirRefs;
+        private String[] fileNames;
+        private String[] displayNames;
+        private final StringTable artists = new StringTable();
+        private final StringTable albums = new StringTable();
+        private final StringTable dirs = new StringTable();
+        
+        public Builder(int expectedSize) {
+            int capacity = Math.max(16, expectedSize);
+            ids = new long[capacity];
+            albumIds = new long[capacity];
+            durations = new long[capacity];
+            sizes = new long[capacity];
+            trackNumbers = new int[capacity];
+            titles = new String[capacity];
+            artistRefs = new int[capacity];
+            albumRefs = new int[capacity];
+            dirRefs = new int[capacity];
+            fileNames = new String[capacity];
+            displayNames = new String[capacity];
+        }
+        
+        public Builder add(Music music) {
+            return add(music.getId(), music.getTitle(), music.getArtist(), music.getAlbum(),
+                    music.getAlbumId(), music.getDuration(), music.getPath(),
+                    music.getSize(), music.getDisplayName(), music.getTrackNumber());
+        }
+        
+        public Builder add(TrackStore store, int index) {
+            return add(store.ids[index], store.titles[index], store.getArtist(index),
+                    store.getAlbum(index), store.albumIds[index], store.durations[index],
+                    store.getPath(index), store.sizes[index], store.getDisplayName(index),
+                    store.trackNumbers[index]);
+        }
+        
+        public Builder add(long id, String title, String artist, String album, long albumId,
+                           long duration, String path, long size, String displayName,
+                           int trackNumber) {
+            ensureCapacity(this.size + 1);
+            int i = this.size++;
+            
+            int split = path.lastIndexOf('/') + 1;
+            String fileName = path.substring(split);
+            
+            ids[i] = id;
+            albumIds[i] = albumId;
+            durations[i] = duration;
+            sizes[i] = size;
+            trackNumbers[i] = trackNumber;
+            titles[i] = title;
+            artistRefs[i] = artists.intern(artist);
+            albumRefs[i] = albums.intern(album);
+            dirRefs[i] = dirs.intern(path.substring(0, split));
+            fileNames[i] = fileName;
+            displayNames[i] = fileName.equals(displayName) ? null : displayName;
+            return this;
+        }
+        
+        /**
+         * Builds the store, optionally sorted by title (then id) like MediaStore's
+         * default library order.
+         */
+        public TrackStore build(boolean sortByTitle) {
+            int[] order = null;
+            if (sortByTitle && size > 1) {
+                Integer[] boxed = new Integer[size];
+                for (int i = 0; i < size; i++) {
+                    boxed[i] = i;
+                }
+                Arrays.sort(boxed, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        int result = TITLE_ORDER.compare(titles[a], titles[b]);
+                        return result != 0 ? result : Long.compare(ids[a], ids[b]);
+                    }
+                });
+                order = new int[size];
+                for (int i = 0; i < size; i++) {
+                    order[i] = boxed[i];
+                }
+            }
+            return new TrackStore(this, order);
+        }
+        
+        private void ensureCapacity(int capacity) {
+            if (capacity <= ids.length) {
+                return;
+            }
+            int grown = Math.max(capacity, ids.length * 2);
+            ids = Arrays.copyOf(ids, grown);
+            albumIds = Arrays.copyOf(albumIds, grown);
+            durations = Arrays.copyOf(durations, grown);
+            sizes = Arrays.copyOf(sizes, grown);
+            trackNumbers = Arrays.copyOf(trackNumbers, grown);
+            titles = Arrays.copyOf(titles, grown);
+            artistRefs = Arrays.copyOf(artistRefs, grown);
+            albumRefs = Arrays.copyOf(albumRefs, grown);
+            dirRefs = Arrays.copyOf(dirRefs, grown);
+            fileNames = Arrays.copyOf(fileNames, grown);
+            displayNames = Arrays.copyOf(displayNames, grown);
+        }
+    }
+    
+    private static final class StringTable {
+        private final Map<String, Integer> refs = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+        
+        int intern(String value) {
+            Integer ref = refs.get(value);
+            if (ref == null) {
+                ref = values.size();
+                values.add(value);
+                refs.put(value, ref);
+            }
+            return ref;
+        }
+        
+        String[] toArray() {
+            return values.toArray(new String[0]);
+        }
+    }
+}
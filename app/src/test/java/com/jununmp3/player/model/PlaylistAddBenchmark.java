@@ -0,0 +1,70 @@
+package com.jununmp3.player.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Time to add tracks one by one to an empty playlist, with the List.contains check
+ * Playlist.addMusic used to do and with the indexed {@link Playlist#addTrack}.
+ */
+public class PlaylistAddBenchmark {
+    
+    private static final int[] SIZES = {1000, 10000};
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 20;
+    
+    @Test
+    public void indexedAddIsFasterThanAScan() {
+        System.out.println("tracks   List.contains   addTrack");
+        for (int size : SIZES) {
+            List<Music> tracks = tracks(size);
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                addScanning(tracks);
+                addIndexed(tracks);
+            }
+            long scanning = Long.MAX_VALUE;
+            long indexed = Long.MAX_VALUE;
+            for (int i = 0; i < ROUNDS; i++) {
+                long start = System.nanoTime();
+                assertEquals(size, addScanning(tracks));
+                scanning = Math.min(scanning, System.nanoTime() - start);
+                
+                start = System.nanoTime();
+                assertEquals(size, addIndexed(tracks));
+                indexed = Math.min(indexed, System.nanoTime() - start);
+            }
+            System.out.println(String.format("%6d   %10.3f ms   %6.3f ms", size, scanning / 1e6, indexed / 1e6));
+        }
+    }
+    
+    private static int addScanning(List<Music> tracks) {
+        List<Music> musicList = new ArrayList<>();
+        for (Music music : tracks) {
+            if (!musicList.contains(music)) {
+                musicList.add(music);
+            }
+        }
+        return musicList.size();
+    }
+    
+    private static int addIndexed(List<Music> tracks) {
+        Playlist playlist = new Playlist(1, "Mix", null);
+        for (Music music : tracks) {
+            playlist.addTrack(music.getId(), 0);
+        }
+        return playlist.getMusicCount();
+    }
+    
+    private static List<Music> tracks(int count) {
+        List<Music> tracks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tracks.add(new Music(i, "Track " + i, "Artist", "Album", 1000, "/music/" + i + ".mp3",
+                    null, 0, i + ".mp3"));
+        }
+        return tracks;
+    }
+}
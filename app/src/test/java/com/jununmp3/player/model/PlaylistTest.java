@@ -0,0 +1,165 @@
+package com.jununmp3.player.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PlaylistTest {
+    
+    @Test
+    public void addIgnoresDuplicatesAndRemoveKeepsTheOrder() {
+        Playlist playlist = new Playlist(1, "Mix", null);
+        for (long id = 1; id <= 5; id++) {
+            assertTrue(playlist.addTrack(id, id * 10));
+        }
+        assertFalse(playlist.addTrack(3, 99));
+        assertTrue(playlist.removeTrack(2));
+        assertFalse(playlist.removeTrack(2));
+        
+        assertEquals(4, playlist.getMusicCount());
+        assertArrayEquals(new long[] {1, 3, 4, 5}, trackIds(playlist.getEntries()));
+        assertEquals(3, playlist.getTrackId(1));
+        assertEquals(30, playlist.getAddedAt(1));
+        assertFalse(playlist.containsTrack(2));
+        assertTrue(playlist.containsTrack(5));
+    }
+    
+    @Test
+    public void indexSurvivesCompaction() {
+        Playlist playlist = new Playlist(1, "Mix", null);
+        for (long id = 0; id < 100; id++) {
+            playlist.addTrack(id, 0);
+        }
+        // Enough removals to compact more than once
+        for (long id = 0; id < 100; id += 2) {
+            playlist.removeTrack(id);
+        }
+        for (long id = 0; id < 80; id += 4) {
+            playlist.removeTrack(id + 1);
+        }
+        
+        List<Long> expected = new ArrayList<>();
+        for (long id = 0; id < 100; id++) {
+            boolean removed = id % 2 == 0 || (id < 80 && id % 4 == 1);
+            assertEquals("track " + id, !removed, playlist.containsTrack(id));
+            if (!removed) {
+                expected.add(id);
+            }
+        }
+        assertEquals(expected.size(), playlist.getMusicCount());
+        long[] ids = trackIds(playlist.getEntries());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals((long) expected.get(i), ids[i]);
+        }
+        assertTrue(playlist.addTrack(0, 0));
+        assertEquals(0, playlist.getTrackId(playlist.getMusicCount() - 1));
+    }
+    
+    @Test
+    public void removeMusicAtCountsLivePositions() {
+        Playlist playlist = new Playlist(1, "Mix", null);
+        for (long id = 1; id <= 4; id++) {
+            playlist.addTrack(id, 0);
+        }
+        playlist.removeTrack(1);
+        playlist.removeMusicAt(1);
+        
+        assertArrayEquals(new long[] {2, 4}, trackIds(playlist.getEntries()));
+        assertFalse(playlist.containsTrack(3));
+    }
+    
+    @Test
+    public void musicListSkipsRemovedAndMissingTracks() {
+        final Set<Long> library = new HashSet<>();
+        library.add(1L);
+        library.add(3L);
+        library.add(4L);
+        Playlist playlist = new Playlist(1, "Mix", null);
+        playlist.setTrackResolver((trackIds, count) -> {
+            List<Music> tracks = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                if (library.contains(trackIds[i])) {
+                    tracks.add(new Music(trackIds[i], "Track", "Artist", "Album", 0, "/m.mp3", null, 0, "m.mp3"));
+                }
+            }
+            return tracks;
+        });
+        for (long id = 1; id <= 4; id++) {
+            playlist.addTrack(id, 0);
+        }
+        playlist.removeTrack(3);
+        
+        List<Music> tracks = playlist.getMusicList();
+        assertEquals(2, tracks.size());
+        assertEquals(1, tracks.get(0).getId());
+        assertEquals(4, tracks.get(1).getId());
+    }
+    
+    @Test
+    public void entriesAreLoadedOnceWhenFirstNeeded() {
+        final AtomicInteger loads = new AtomicInteger();
+        Playlist playlist = new Playlist(7, "Saved", null, 2, 0, 0, playlistId -> {
+            loads.incrementAndGet();
+            assertEquals(7, playlistId);
+            return new Playlist.TrackEntries(new long[] {5, 6}, new long[] {50, 60}, 2);
+        });
+        
+        assertEquals(2, playlist.getMusicCount());
+        assertFalse(playlist.isLoaded());
+        assertTrue(playlist.containsTrack(6));
+        assertArrayEquals(new long[] {5, 6}, trackIds(playlist.getEntries()));
+        assertTrue(playlist.isLoaded());
+        assertEquals(1, loads.get());
+    }
+    
+    @Test
+    public void readsWhileEditingOnAnotherThreadSeeNoRemovedSlots() throws InterruptedException {
+        final Playlist playlist = new Playlist(1, "Mix", null);
+        for (long id = 0; id < 200; id++) {
+            playlist.addTrack(id, id);
+        }
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread editor = new Thread(() -> {
+            for (int round = 0; round < 200; round++) {
+                for (long id = 0; id < 200; id += 3) {
+                    playlist.removeTrack(id);
+                }
+                for (long id = 0; id < 200; id += 3) {
+                    playlist.addTrack(id, id);
+                }
+            }
+        });
+        editor.start();
+        while (editor.isAlive() && failure.get() == null) {
+            Playlist.TrackEntries entries = playlist.getEntries();
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.getTrackId(i) < 0 || entries.getAddedAt(i) != entries.getTrackId(i)) {
+                    failure.set("Bad entry " + entries.getTrackId(i) + " at " + i);
+                }
+            }
+        }
+        editor.join();
+        
+        assertNull(failure.get());
+        assertEquals(200, playlist.getMusicCount());
+    }
+    
+    private static long[] trackIds(Playlist.TrackEntries entries) {
+        long[] ids = new long[entries.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = entries.getTrackId(i);
+        }
+        return ids;
+    }
+}
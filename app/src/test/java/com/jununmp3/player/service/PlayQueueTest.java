@@ -0,0 +1,234 @@
+package com.jununmp3.player.service;
+
+import com.jununmp3.player.model.Music;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PlayQueueTest {
+    
+    @Test
+    public void editsWithoutShuffle() {
+        PlayQueue queue = new PlayQueue();
+        queue.setTracks(tracks(1, 5), 1);
+        queue.playNext(tracks(10, 2));
+        queue.enqueue(tracks(20, 1));
+        queue.move(0, 6);
+        queue.remove(3);
+        
+        assertEquals(Arrays.asList(2L, 10L, 11L, 4L, 5L, 1L, 20L), ids(queue.snapshot()));
+        assertEquals(2, queue.getCurrent().getId());
+    }
+    
+    @Test
+    public void shuffleStartsWithTheCurrentTrack() {
+        PlayQueue queue = new PlayQueue();
+        queue.setTracks(tracks(1, 100), 42);
+        queue.setShuffleEnabled(true);
+        
+        assertEquals(0, queue.getCurrentPosition());
+        assertEquals(43, queue.getCurrent().getId());
+        assertSameTracks(tracks(1, 100), queue.snapshot());
+    }
+    
+    @Test
+    public void removeUnderShuffleKeepsThePlayOrder() {
+        PlayQueue queue = shuffled(300, 7);
+        queue.setCurrentPosition(5);
+        List<Long> before = ids(queue.snapshot());
+        Music current = queue.getCurrent();
+        
+        Music removed = queue.remove(2);
+        
+        List<Long> expected = new ArrayList<>(before);
+        assertEquals((long) expected.remove(2), removed.getId());
+        assertEquals(expected, ids(queue.snapshot()));
+        assertSame(current, queue.getCurrent());
+        assertEquals(4, queue.getCurrentPosition());
+    }
+    
+    @Test
+    public void removingTheCurrentTrackUnderShuffleMovesToTheNextOne() {
+        PlayQueue queue = shuffled(20, 3);
+        queue.setCurrentPosition(19);
+        List<Long> before = ids(queue.snapshot());
+        
+        queue.remove(19);
+        
+        assertEquals(18, queue.getCurrentPosition());
+        assertEquals(before.get(18), (Long) queue.getCurrent().getId());
+    }
+    
+    @Test
+    public void playNextUnderShuffleGoesRightAfterTheCurrentTrack() {
+        PlayQueue queue = shuffled(50, 0);
+        queue.setCurrentPosition(3);
+        List<Long> before = ids(queue.snapshot());
+        
+        queue.playNext(tracks(1000, 2));
+        
+        List<Long> expected = new ArrayList<>(before);
+        expected.addAll(4, Arrays.asList(1000L, 1001L));
+        assertEquals(expected, ids(queue.snapshot()));
+        assertEquals(3, queue.getCurrentPosition());
+    }
+    
+    @Test
+    public void moveUnderShuffleKeepsTheCursorOnItsTrack() {
+        PlayQueue queue = shuffled(30, 9);
+        queue.setCurrentPosition(10);
+        List<Long> before = ids(queue.snapshot());
+        Music current = queue.getCurrent();
+        
+        queue.move(12, 2);
+        
+        List<Long> expected = new ArrayList<>(before);
+        expected.add(2, expected.remove(12));
+        assertEquals(expected, ids(queue.snapshot()));
+        assertSame(current, queue.getCurrent());
+        assertEquals(11, queue.getCurrentPosition());
+    }
+    
+    @Test
+    public void unshuffleAfterEditsGoesBackToTheEditedQueueOrder() {
+        PlayQueue queue = shuffled(40, 5);
+        queue.setCurrentPosition(7);
+        Music removed = queue.remove(0);
+        queue.playNext(tracks(100, 2));
+        queue.move(12, 2);
+        Music current = queue.getCurrent();
+        
+        queue.setShuffleEnabled(false);
+        
+        List<Long> expected = ids(tracks(1, 40));
+        expected.remove(removed.getId());
+        expected.addAll(expected.indexOf(current.getId()) + 1, Arrays.asList(100L, 101L));
+        assertEquals(expected, ids(queue.snapshot()));
+        assertSame(current, queue.getCurrent());
+        assertNull(queue.getShuffleOrder());
+    }
+    
+    @Test
+    public void editsUnderShuffleOnlyDrawWhatTheyTouch() {
+        PlayQueue queue = shuffled(1000000, 0);
+        queue.setCurrentPosition(2);
+        queue.remove(1);
+        queue.playNext(tracks(2000000, 3));
+        queue.move(0, 4);
+        queue.enqueue(tracks(3000000, 2));
+        
+        assertEquals(1000004, queue.size());
+        assertTrue(queue.getShuffleOrder().getDrawnCount() <= 6);
+    }
+    
+    @Test
+    public void enqueueUnderShuffleKeepsThePlayedOrder() {
+        PlayQueue queue = shuffled(30, 2);
+        queue.setCurrentPosition(4);
+        List<Long> played = ids(queue.snapshot().subList(0, 5));
+        
+        queue.enqueue(tracks(100, 3));
+        
+        assertEquals(played, ids(queue.snapshot().subList(0, 5)));
+        List<Music> all = new ArrayList<>(tracks(1, 30));
+        all.addAll(tracks(100, 3));
+        assertSameTracks(all, queue.snapshot());
+    }
+    
+    @Test
+    public void unshuffleWithoutEditsGoesBackToQueueOrder() {
+        PlayQueue queue = shuffled(40, 5);
+        queue.setCurrentPosition(7);
+        Music current = queue.getCurrent();
+        
+        queue.setShuffleEnabled(false);
+        
+        assertEquals(ids(tracks(1, 40)), ids(queue.snapshot()));
+        assertSame(current, queue.getCurrent());
+    }
+    
+    @Test
+    public void snapshotIsNotAffectedByLaterEdits() {
+        PlayQueue queue = shuffled(10, 0);
+        List<Music> snapshot = queue.snapshot();
+        List<Long> before = ids(snapshot);
+        
+        queue.remove(0);
+        queue.enqueue(tracks(100, 3));
+        
+        assertEquals(before, ids(snapshot));
+    }
+    
+    @Test
+    public void restoreRecreatesTheSavedShuffle() {
+        PlayQueue saved = shuffled(25, 4);
+        saved.setCurrentPosition(6);
+        Music current = saved.getCurrent();
+        int[] drawn = saved.getShuffleOrder().copyDrawn(0);
+        
+        PlayQueue restored = new PlayQueue();
+        restored.restore(saved.queueOrderSnapshot(), true, drawn, drawn.length, 6);
+        
+        assertTrue(restored.isShuffleEnabled());
+        assertEquals(6, restored.getCurrentPosition());
+        assertSame(current, restored.getCurrent());
+        for (int position = 0; position <= 6; position++) {
+            assertSame(saved.get(position), restored.get(position));
+        }
+        assertSameTracks(tracks(1, 25), restored.snapshot());
+    }
+    
+    @Test
+    public void removingTheLastTrackEmptiesTheQueue() {
+        PlayQueue queue = shuffled(1, 0);
+        queue.remove(0);
+        
+        assertTrue(queue.isEmpty());
+        assertEquals(-1, queue.getCurrentPosition());
+        assertNull(queue.getCurrent());
+        assertFalse(queue.snapshot().iterator().hasNext());
+    }
+    
+    private static PlayQueue shuffled(int size, int start) {
+        PlayQueue queue = new PlayQueue();
+        queue.setShuffleEnabled(true);
+        queue.setTracks(tracks(1, size), start);
+        return queue;
+    }
+    
+    private static List<Music> tracks(long firstId, int count) {
+        List<Music> tracks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long id = firstId + i;
+            tracks.add(new Music(id, "Track " + id, "Artist", "Album", 1000, "/music/" + id + ".mp3",
+                    null, 0, id + ".mp3"));
+        }
+        return Collections.unmodifiableList(tracks);
+    }
+    
+    private static List<Long> ids(List<Music> tracks) {
+        List<Long> ids = new ArrayList<>(tracks.size());
+        for (Music track : tracks) {
+            ids.add(track.getId());
+        }
+        return ids;
+    }
+    
+    private static void assertSameTracks(List<Music> expected, List<Music> actual) {
+        List<Long> expectedIds = ids(expected);
+        List<Long> actualIds = ids(actual);
+        Collections.sort(expectedIds);
+        Collections.sort(actualIds);
+        assertEquals(expectedIds, actualIds);
+    }
+}
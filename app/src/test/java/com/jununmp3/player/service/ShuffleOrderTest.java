@@ -0,0 +1,99 @@
+package com.jununmp3.player.service;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShuffleOrderTest {
+    
+    @Test
+    public void isAPermutationStartingWithTheGivenIndex() {
+        for (int seed = 0; seed < 20; seed++) {
+            ShuffleOrder order = new ShuffleOrder(50, 17, new Random(seed));
+            assertEquals(17, order.get(0));
+            assertPermutation(order);
+        }
+    }
+    
+    @Test
+    public void drawsOnlyWhatIsAskedFor() {
+        ShuffleOrder order = new ShuffleOrder(1000000, -1, new Random(3));
+        assertEquals(0, order.getDrawnCount());
+        order.get(4);
+        assertEquals(5, order.getDrawnCount());
+        assertEquals(2, order.copyDrawn(3).length);
+    }
+    
+    @Test
+    public void restoredOrderKeepsTheDrawnPrefix() {
+        for (int seed = 0; seed < 20; seed++) {
+            int size = 40;
+            ShuffleOrder original = new ShuffleOrder(size, seed % size, new Random(seed));
+            int drawnCount = 1 + seed % (size - 1);
+            original.get(drawnCount - 1);
+            int[] drawn = original.copyDrawn(0);
+            
+            ShuffleOrder restored = new ShuffleOrder(size, drawn, drawnCount, new Random(seed + 100));
+            assertEquals(drawnCount, restored.getDrawnCount());
+            assertArrayEquals(drawn, restored.copyDrawn(0));
+            assertPermutation(restored);
+        }
+    }
+    
+    @Test
+    public void restoredOrderWithNothingDrawnIsAPermutation() {
+        ShuffleOrder restored = new ShuffleOrder(10, new int[0], 0, new Random(5));
+        assertPermutation(restored);
+    }
+    
+    @Test
+    public void restoredFullyDrawnOrderIsUnchanged() {
+        int[] drawn = {3, 0, 4, 1, 2};
+        ShuffleOrder restored = new ShuffleOrder(5, drawn, 5, new Random(7));
+        for (int position = 0; position < drawn.length; position++) {
+            assertEquals(drawn[position], restored.get(position));
+        }
+    }
+    
+    @Test
+    public void derivedOrdersKeepTheDrawnPositions() {
+        ShuffleOrder order = new ShuffleOrder(20, 4, new Random(11));
+        order.get(5);
+        int[] drawn = order.copyDrawn(0);
+        
+        ShuffleOrder inserted = order.withInserted(2, 7, 3);
+        assertEquals(23, inserted.size());
+        assertArrayEquals(new int[] {shift(drawn[0]), shift(drawn[1]), 7, 8, 9, shift(drawn[2]),
+                shift(drawn[3]), shift(drawn[4]), shift(drawn[5])}, inserted.copyDrawn(0));
+        assertPermutation(inserted);
+        
+        ShuffleOrder removed = order.withRemoved(1);
+        assertEquals(19, removed.size());
+        assertEquals(5, removed.getDrawnCount());
+        assertPermutation(removed);
+        
+        ShuffleOrder moved = order.withMoved(0, 5);
+        assertArrayEquals(new int[] {drawn[1], drawn[2], drawn[3], drawn[4], drawn[5], drawn[0]},
+                moved.copyDrawn(0));
+        assertPermutation(moved);
+        assertArrayEquals(drawn, order.copyDrawn(0));
+    }
+    
+    private static int shift(int index) {
+        return index >= 7 ? index + 3 : index;
+    }
+    
+    private static void assertPermutation(ShuffleOrder order) {
+        boolean[] seen = new boolean[order.size()];
+        for (int position = 0; position < order.size(); position++) {
+            int index = order.get(position);
+            assertTrue("index " + index + " out of range", index >= 0 && index < order.size());
+            assertTrue("index " + index + " drawn twice", !seen[index]);
+            seen[index] = true;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.jununmp3.player.utils;
+
+import com.jununmp3.player.model.Music;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class LibraryGroupsTest {
+    
+    // Title order: Aerodynamic (1), Digital Love (2), Harder Better (3), One More Time (4), Voyager (5)
+    private final LibraryGroups groups = new LibraryGroups(new TrackStore.Builder(5)
+            .add(1, "Aerodynamic", "Daft Punk", "Discovery", 2, 207000, "/m/1.mp3", 0, "1.mp3", 2)
+            .add(2, "Digital Love", "Daft Punk", "Discovery", 2, 301000, "/m/2.mp3", 0, "2.mp3", 3)
+            .add(3, "Harder Better", "Daft Punk", "Discovery", 2, 224000, "/m/3.mp3", 0, "3.mp3", 4)
+            .add(4, "One More Time", "Daft Punk", "Discovery", 2, 320000, "/m/4.mp3", 0, "4.mp3", 1)
+            .add(5, "Voyager", "Daft Punk", "Discovery", 2, 227000, "/m/5.mp3", 0, "5.mp3", 0)
+            .build(true));
+    
+    @Test
+    public void albumTracksAreInTrackNumberOrder() {
+        int album = groups.findAlbum("Discovery");
+        assertEquals(Arrays.asList(5L, 4L, 1L, 2L, 3L), ids(groups.getAlbumTracks(album)));
+        assertEquals(1279000, groups.getAlbumDuration(album));
+    }
+    
+    @Test
+    public void artistTracksStayInTitleOrder() {
+        int artist = groups.findArtist("Daft Punk");
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), ids(groups.getArtistTracks(artist)));
+    }
+    
+    private static List<Long> ids(List<Music> tracks) {
+        List<Long> ids = new ArrayList<>(tracks.size());
+        for (Music track : tracks) {
+            ids.add(track.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,111 @@
+package com.jununmp3.player.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongIntMapTest {
+    
+    @Test
+    public void putGetAndOverwrite() {
+        LongIntMap map = new LongIntMap();
+        map.put(42, 1);
+        map.put(-7, 2);
+        map.put(42, 3);
+        
+        assertEquals(2, map.size());
+        assertEquals(3, map.get(42));
+        assertEquals(2, map.get(-7));
+        assertEquals(LongIntMap.MISSING, map.get(0));
+        assertTrue(map.containsKey(-7));
+        assertFalse(map.containsKey(8));
+    }
+    
+    @Test
+    public void growsPastItsExpectedSize() {
+        LongIntMap map = new LongIntMap(4);
+        for (int i = 0; i < 1000; i++) {
+            map.put(i * 1000003L, i);
+        }
+        assertEquals(1000, map.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, map.get(i * 1000003L));
+        }
+    }
+    
+    @Test
+    public void removeKeepsTheRestOfAProbeRunFindable() {
+        LongIntMap map = new LongIntMap(8);
+        // Small table with many keys, so probe runs overlap and wrap around
+        for (int i = 0; i < 12; i++) {
+            map.put(i, i);
+        }
+        for (int i = 0; i < 12; i += 3) {
+            assertEquals(i, map.remove(i));
+        }
+        assertEquals(LongIntMap.MISSING, map.remove(0));
+        for (int i = 0; i < 12; i++) {
+            assertEquals(i % 3 == 0 ? LongIntMap.MISSING : i, map.get(i));
+        }
+        assertEquals(8, map.size());
+    }
+    
+    @Test
+    public void matchesHashMapUnderRandomEdits() {
+        Random random = new Random(1);
+        LongIntMap map = new LongIntMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int step = 0; step < 20000; step++) {
+            long key = random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                Integer removed = expected.remove(key);
+                assertEquals(removed != null ? removed : LongIntMap.MISSING, map.remove(key));
+            } else {
+                int value = random.nextInt(1000);
+                expected.put(key, value);
+                map.put(key, value);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = 0; key < 500; key++) {
+            Integer value = expected.get(key);
+            assertEquals(value != null ? value : LongIntMap.MISSING, map.get(key));
+        }
+    }
+    
+    @Test
+    public void getEntriesCopiesEveryEntry() {
+        LongIntMap map = new LongIntMap();
+        for (int i = 0; i < 50; i++) {
+            map.put(100 + i, i);
+        }
+        map.remove(120);
+        
+        long[] keys = new long[map.size()];
+        int[] values = new int[map.size()];
+        map.getEntries(keys, values);
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(keys[i] - 100, values[i]);
+            assertTrue(keys[i] != 120);
+        }
+    }
+    
+    @Test
+    public void clearEmptiesTheMap() {
+        LongIntMap map = new LongIntMap();
+        map.put(1, 1);
+        map.put(2, 2);
+        map.clear();
+        
+        assertEquals(0, map.size());
+        assertEquals(LongIntMap.MISSING, map.get(1));
+        map.put(2, 5);
+        assertEquals(5, map.get(2));
+    }
+}
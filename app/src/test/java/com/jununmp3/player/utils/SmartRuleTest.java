@@ -0,0 +1,114 @@
+package com.jununmp3.player.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SmartRuleTest {
+    
+    // Title order: Around the World (1), Digital Love (2), Harder Better (3), Intro (4), Teardrop (5)
+    private final TrackStore store = new TrackStore.Builder(5)
+            .add(1, "Around the World", "Daft Punk", "Homework", 1, 429000, "/m/1.mp3", 7 * 1024 * 1024, "1.mp3", 0)
+            .add(2, "Digital Love", "Daft Punk", "Discovery", 2, 301000, "/m/2.mp3", 5 * 1024 * 1024, "2.mp3", 0)
+            .add(3, "Harder Better", "DAFT PUNK", "Discovery", 2, 224000, "/m/3.mp3", 4 * 1024 * 1024, "3.mp3", 0)
+            .add(4, "Intro", "The xx", "xx", 3, 128000, "/m/4.mp3", 2 * 1024 * 1024, "4.mp3", 0)
+            .add(5, "Teardrop", "Massive Attack", "Mezzanine", 4, 330000, "/m/5.mp3", 6 * 1024 * 1024, "5.mp3", 0)
+            .build(true);
+    
+    @Test
+    public void textConditionsIgnoreCase() {
+        assertEquals(Arrays.asList(1L, 2L, 3L), match("artist = \"daft punk\""));
+        assertEquals(Arrays.asList(4L, 5L), match("artist != \"Daft Punk\""));
+        assertEquals(Arrays.asList(2L, 3L), match("album ~ disc"));
+        assertEquals(Arrays.asList(1L, 4L, 5L), match("album !~ disc"));
+        assertEquals(Arrays.asList(1L), match("title ~ world"));
+    }
+    
+    @Test
+    public void durationsTakeUnits() {
+        assertEquals(Arrays.asList(1L, 2L, 5L), match("duration > 5m"));
+        assertEquals(Arrays.asList(1L, 2L, 5L), match("duration > 300"));
+        assertEquals(Arrays.asList(1L, 2L, 5L), match("duration > 5:00"));
+        assertEquals(Arrays.asList(4L), match("duration <= 128s"));
+        assertEquals(Arrays.asList(), match("duration >= 0.5h"));
+    }
+    
+    @Test
+    public void sizesTakeUnits() {
+        assertEquals(Arrays.asList(1L, 5L), match("size > 5mb"));
+        assertEquals(Arrays.asList(4L), match("size = 2048kb"));
+    }
+    
+    @Test
+    public void orBindsLooserThanAnd() {
+        assertEquals(Arrays.asList(1L, 2L, 4L),
+                match("artist = \"the xx\" or artist ~ daft and duration > 5m"));
+        assertEquals(Arrays.asList(1L, 2L),
+                match("(artist = \"the xx\" or artist ~ daft) and duration > 5m"));
+        assertEquals(Arrays.asList(4L, 5L), match("not artist ~ daft"));
+        assertEquals(Arrays.asList(5L), match("NOT (artist ~ daft OR album = xx)"));
+    }
+    
+    @Test
+    public void playCountsComeFromTheGivenCounts() {
+        SmartRule rule = SmartRule.parse("played >= 2 and artist ~ daft");
+        assertTrue(rule.usesPlayCounts());
+        assertFalse(SmartRule.parse("artist ~ daft").usesPlayCounts());
+        
+        SmartRule.PlayCounts counts = trackId -> trackId == 2 ? 5 : trackId == 5 ? 3 : 0;
+        assertEquals(Arrays.asList(2L), match(rule, counts));
+        // Without counts every track has been played 0 times
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), match(SmartRule.parse("played = 0"), null));
+    }
+    
+    @Test
+    public void keepsItsText() {
+        String text = "artist = \"Daft Punk\" and played < 2";
+        assertEquals(text, SmartRule.parse(text).getText());
+    }
+    
+    @Test
+    public void rejectsInvalidRules() {
+        assertInvalid("", "Expected a field");
+        assertInvalid("genre = rock", "Unknown field 'genre' at 0");
+        assertInvalid("artist > abc", "Text fields only support");
+        assertInvalid("duration ~ 3m", "only apply to text fields");
+        assertInvalid("duration > soon", "Invalid number 'soon' at 11");
+        assertInvalid("artist = \"Daft", "Unterminated string at 9");
+        assertInvalid("(artist = x", "Expected ')'");
+        assertInvalid("artist = x y", "Unexpected 'y'");
+        assertInvalid("artist = x and", "Expected a field");
+        assertInvalid("artist # x", "Unexpected '#'");
+    }
+    
+    private List<Long> match(String rule) {
+        return match(SmartRule.parse(rule), null);
+    }
+    
+    private List<Long> match(SmartRule rule, SmartRule.PlayCounts counts) {
+        SmartRule.Matcher matcher = rule.compile(store, counts);
+        List<Long> ids = new ArrayList<>();
+        for (int index = 0; index < store.size(); index++) {
+            if (matcher.matches(index)) {
+                ids.add(store.getId(index));
+            }
+        }
+        return ids;
+    }
+    
+    private static void assertInvalid(String rule, String message) {
+        try {
+            SmartRule.parse(rule);
+            fail("Parsed invalid rule: " + rule);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.jununmp3.player.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TopTracksTest {
+    
+    @Test
+    public void fillsUpWithoutEvicting() {
+        PlayHistory.TopTracks top = new PlayHistory.TopTracks(3);
+        assertEquals(-1, top.update(10, 1));
+        assertEquals(-1, top.update(11, 4));
+        assertEquals(-1, top.update(12, 2));
+        
+        assertArrayEquals(new long[] {11, 12, 10}, top.sorted());
+    }
+    
+    @Test
+    public void evictsTheLowestCountWhenOvertaken() {
+        PlayHistory.TopTracks top = new PlayHistory.TopTracks(3);
+        top.update(10, 1);
+        top.update(11, 4);
+        top.update(12, 2);
+        
+        assertEquals(10, top.update(13, 3));
+        assertFalse(top.contains(10));
+        assertTrue(top.contains(13));
+        assertArrayEquals(new long[] {11, 13, 12}, top.sorted());
+    }
+    
+    @Test
+    public void doesNotEvictForATie() {
+        PlayHistory.TopTracks top = new PlayHistory.TopTracks(2);
+        top.update(10, 2);
+        top.update(11, 3);
+        
+        assertEquals(-1, top.update(12, 2));
+        assertFalse(top.contains(12));
+        assertArrayEquals(new long[] {11, 10}, top.sorted());
+    }
+    
+    @Test
+    public void memberCountsMoveItUp() {
+        PlayHistory.TopTracks top = new PlayHistory.TopTracks(3);
+        top.update(10, 1);
+        top.update(11, 2);
+        top.update(12, 3);
+        
+        assertEquals(-1, top.update(10, 5));
+        // The old minimum is gone, so 11 is the one pushed out now
+        assertEquals(11, top.update(13, 3));
+        assertArrayEquals(new long[] {10, 12, 13}, top.sorted());
+    }
+    
+    @Test
+    public void sortedBreaksTiesByTrackId() {
+        PlayHistory.TopTracks top = new PlayHistory.TopTracks(4);
+        top.update(30, 2);
+        top.update(10, 2);
+        top.update(20, 2);
+        top.update(40, 7);
+        
+        assertArrayEquals(new long[] {40, 10, 20, 30}, top.sorted());
+    }
+    
+    @Test
+    public void keepsTheHighestCountsUnderRandomPlays() {
+        Random random = new Random(11);
+        int[] counts = new int[200];
+        PlayHistory.TopTracks top = new PlayHistory.TopTracks(10);
+        for (int play = 0; play < 5000; play++) {
+            int track = random.nextInt(counts.length);
+            top.update(track, ++counts[track]);
+        }
+        
+        long[] sorted = top.sorted();
+        assertEquals(10, sorted.length);
+        int lowest = counts[(int) sorted[sorted.length - 1]];
+        for (int track = 0; track < counts.length; track++) {
+            if (!top.contains(track)) {
+                assertTrue("track " + track + " should be in the top", counts[track] <= lowest);
+            }
+        }
+        for (int i = 1; i < sorted.length; i++) {
+            assertTrue(counts[(int) sorted[i - 1]] >= counts[(int) sorted[i]]);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.jununmp3.player.utils;
+
+import com.jununmp3.player.model.Music;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Retained heap of the library as a List of Music rows and as a TrackStore, for the
+ * sizes in the TrackStore request. Rows are synthetic but shaped like a MediaStore
+ * scan: 2k artists, 6k albums, every string a fresh instance as a cursor returns it.
+ */
+public class TrackStoreMemoryBenchmark {
+    
+    private static final int[] SIZES = {10000, 50000, 100000};
+    
+    @Test
+    public void trackStoreRetainsLessThanMusicRows() {
+        System.out.println("tracks   List<Music>   TrackStore");
+        for (int size : SIZES) {
+            long rows = retained(() -> musicRows(size));
+            long store = retained(() -> trackStore(size));
+            System.out.println(String.format("%6d   %8.1f MB   %8.1f MB", size, megabytes(rows), megabytes(store)));
+            assertTrue(store < rows);
+        }
+    }
+    
+    private interface Library {
+        Object build();
+    }
+    
+    private static List<Music> musicRows(int size) {
+        List<Music> rows = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            rows.add(new Music(i, title(i), artist(i), album(i), i % 6000, duration(i), path(i),
+                    MusicLibrary.getAlbumArtUri(i % 6000), size(i), fileName(i)));
+        }
+        return rows;
+    }
+    
+    private static TrackStore trackStore(int size) {
+        TrackStore.Builder builder = new TrackStore.Builder(size);
+        for (int i = 0; i < size; i++) {
+            builder.add(i, title(i), artist(i), album(i), i % 6000, duration(i), path(i), size(i), fileName(i), i % 20 + 1);
+        }
+        return builder.build(true);
+    }
+    
+    private static String title(int i) {
+        return "Track " + i;
+    }
+    
+    private static String artist(int i) {
+        return "Artist " + i % 2000;
+    }
+    
+    private static String album(int i) {
+        return "Album " + i % 6000;
+    }
+    
+    private static String path(int i) {
+        return "/storage/emulated/0/Music/" + artist(i) + "/" + album(i) + "/" + fileName(i);
+    }
+    
+    private static String fileName(int i) {
+        return String.format("%02d Track %d.mp3", i % 20 + 1, i);
+    }
+    
+    private static long duration(int i) {
+        return 120000 + i % 240000;
+    }
+    
+    private static long size(int i) {
+        return 3000000 + i % 9000000;
+    }
+    
+    /**
+     * Heap still in use while what {@code library} built is reachable.
+     */
+    private static long retained(Library library) {
+        long before = usedHeap();
+        Object built = library.build();
+        long after = usedHeap();
+        if (built == null) {
+            throw new AssertionError();
+        }
+        return after - before;
+    }
+    
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    private static double megabytes(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+}